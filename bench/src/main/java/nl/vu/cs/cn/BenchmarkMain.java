@@ -0,0 +1,27 @@
+package nl.vu.cs.cn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the JMH benchmarks. Unless a result format is given with -rf, the results are written as JSON to
+ * jmh-result-&lt;version&gt;.json, so that the runs of different versions can be compared.
+ * All other arguments are passed to JMH unchanged.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		List<String> jmhArgs = new ArrayList<String>(Arrays.asList(args));
+		if (!jmhArgs.contains("-rf")){
+			String version = BenchmarkMain.class.getPackage().getImplementationVersion();
+			jmhArgs.add("-rf");
+			jmhArgs.add("json");
+			jmhArgs.add("-rff");
+			jmhArgs.add("jmh-result-" + (version != null ? version : "dev") + ".json");
+		}
+		Main.main(jmhArgs.toArray(new String[jmhArgs.size()]));
+	}
+}
@@ -0,0 +1,67 @@
+package nl.vu.cs.cn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BoundedByteBuffer.buffer() and deBuffer(): a batch of chunks is buffered and read back with a different read size,
+ * so reads both span several chunks and split them. Scores are per chunk. The buffer copies the chunks into the slabs
+ * of its pool, which are allocated in the first iteration and reused afterwards.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferBenchmark {
+
+	static final int CHUNKS = 64;
+
+	/**size of the chunks buffered, as in the segments of the stack*/
+	@Param({"1", "64", "1460", "8152"})
+	public int chunkSize;
+
+	/**size of the reads taking the data out again*/
+	@Param({"100", "4096"})
+	public int readSize;
+
+	private BoundedByteBuffer buf;
+	private byte[][] chunks;
+	private byte[] dst;
+
+	@Setup
+	public void setup(){
+		buf = new BoundedByteBuffer(new BufferPool(BufferPool.DEFAULT_MAX_BYTES), TCP.BUFFER_SIZE);
+		chunks = new byte[CHUNKS][];
+		for (int i = 0; i < CHUNKS; i++){
+			chunks[i] = new byte[chunkSize];
+		}
+		dst = new byte[readSize];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CHUNKS)
+	public int bufferAndDeBuffer() throws FullCollectionException {
+		for (byte[] c : chunks){
+			buf.buffer(c);
+		}
+		int total = 0;
+		while (!buf.isEmpty()){
+			total += buf.deBuffer(dst, 0, readSize);
+		}
+		return total;
+	}
+}
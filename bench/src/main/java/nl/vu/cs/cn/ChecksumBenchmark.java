@@ -0,0 +1,45 @@
+package nl.vu.cs.cn;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TCPSegment.calculateChecksum() over segments of several sizes, including an odd one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+
+	/**segment length in bytes, header included*/
+	@Param({"20", "85", "1480", "8172"})
+	public int length;
+
+	private byte[] segment;
+
+	@Setup
+	public void setup(){
+		segment = new byte[length];
+		new Random(42).nextBytes(segment);
+	}
+
+	@Benchmark
+	public short checksum(){
+		return TCPSegment.calculateChecksum(0x0101a8c0, 0x0201a8c0, length, segment);
+	}
+}
@@ -0,0 +1,71 @@
+package nl.vu.cs.cn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.TCPSegment.TCPSegmentType;
+
+/**
+ * The sequence number handling of TCPControlBlock, as done for every segment sent or received.
+ * The sequence numbers start close to 2^32, so the wrap around is included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControlBlockBenchmark {
+
+	private TCPControlBlock tcb;
+	private byte[] data;
+	private TCPSegment incoming;
+
+	@Setup
+	public void setup(){
+		tcb = new TCPControlBlock();
+		tcb.setLocalSocketAddress(new SocketAddress(IpAddress.getAddress(0x0101a8c0), 80));
+		tcb.setRemoteSocketAddress(new SocketAddress(IpAddress.getAddress(0x0201a8c0), 12345));
+		tcb.generateSeqnr(TCPControlBlock.UINT_32_MAX - 1000);
+		data = new byte[64];
+		incoming = new TCPSegment(12345, 80, 0, 0, TCPSegmentType.DATA, data);
+	}
+
+	/**
+	 * creating a data segment advances the sequence number
+	 */
+	@Benchmark
+	public TCPSegment createDataSegment(){
+		return tcb.createDataSegment(data);
+	}
+
+	/**
+	 * the receive path: the order check, advancing the ack number and the ack itself
+	 */
+	@Benchmark
+	public TCPSegment receiveInOrder(){
+		incoming.seq_nr = tcb.getExpectedSeqnr();
+		incoming.ack_nr = tcb.getSeqnr();
+		if (!tcb.isInOrderPacket(incoming)){
+			throw new IllegalStateException();
+		}
+		tcb.getAndIncrementAcknr(incoming.data.length);
+		return tcb.generateAck(incoming);
+	}
+
+	@Benchmark
+	public long getAndIncrementSeqnr(){
+		return tcb.getAndIncrementSeqnr(TCP.MAX_DATA_LENGTH);
+	}
+}
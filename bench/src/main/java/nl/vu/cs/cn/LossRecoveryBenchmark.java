@@ -0,0 +1,86 @@
+package nl.vu.cs.cn;
+
+/**
+ * Measures how fast the stack recovers from loss: for every pattern, transfers the same number of bytes from a client
+ * to a server in the simulator, with a FaultInjector on the client stack, and reports the completion time and the
+ * goodput. The simulator uses a virtual clock, so the results are exact and the same on every run; compare them before
+ * and after changing the retransmission logic.
+ * <br/>
+ * Usage: LossRecoveryBenchmark [-b bytes] [-e link spec] [-p script]. The defaults are 1000000 bytes over the default
+ * link of the simulator, with the built-in patterns. -p runs a single script instead, see FaultInjector. Does not need
+ * the native IP library.
+ */
+public class LossRecoveryBenchmark {
+
+	/**the patterns: a name and a script for the injector of the client*/
+	static final String[][] PATTERNS = {
+		{"no loss", ""},
+		{"first data segment", "send data 1"},
+		{"10th data segment", "send data 10"},
+		{"burst of 3 data", "send data 10-12"},
+		{"burst of 6 data", "send data 10-15"},
+		{"every 10th of 100", "send data 10; send data 20; send data 30; send data 40; send data 50; " +
+				"send data 60; send data 70; send data 80; send data 90; send data 100"},
+		{"window of 5 acks", "receive ack 10-14"},
+		{"SYN", "send syn 1"},
+		{"SYNACK", "receive synack 1"},
+		{"SYNACK twice", "receive synack 1-2"},
+		{"FIN", "send fin 1"},
+	};
+
+	static final String USAGE = "Usage: LossRecoveryBenchmark [-b bytes] [-e link spec] [-p script]";
+
+	/**
+	 * runs one pattern.
+	 * @return the row of the report
+	 */
+	static String run(String name, String script, String link, int bytes){
+		Simulator sim = new Simulator(1);
+		sim.setDefaultLink(link);
+		TCP server = sim.addStack(1);
+		TCP client = sim.addStack(2);
+		FaultInjector faults = FaultInjector.parse(script);
+		client.setFaultInjector(faults);
+
+		long wall = System.nanoTime();
+		Simulator.Transfer t = new Simulator.Transfer(sim, server, client, bytes);
+		sim.runUntilIdle();
+		wall = System.nanoTime() - wall;
+
+		long completed = t.getCompletedAt();
+		String time = completed < 0 ? "-" : Long.toString(completed);
+		String goodput = completed <= 0 ? "-" : String.format("%.1f", t.getReceived() / (double) completed);
+		return String.format("%-20s %10s %12s %8d %8d %8d %8.1f", name, time, goodput,
+				client.getMetrics().getRetransmissions() + server.getMetrics().getRetransmissions(),
+				client.getMetrics().getTimeouts() + server.getMetrics().getTimeouts(),
+				faults.getDroppedSent() + faults.getDroppedReceived(), wall / 1e6);
+	}
+
+	public static void main(String[] args){
+		int bytes = 1000000;
+		String link = Simulator.DEFAULT_LINK;
+		String[][] patterns = PATTERNS;
+		for (int i = 0; i < args.length; i += 2){
+			if (i + 1 >= args.length){
+				System.err.println(USAGE);
+				System.exit(2);
+			} else if (args[i].equals("-b")){
+				bytes = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-e")){
+				link = args[i + 1];
+			} else if (args[i].equals("-p")){
+				patterns = new String[][] {{"script", args[i + 1]}};
+			} else {
+				System.err.println(USAGE);
+				System.exit(2);
+			}
+		}
+
+		System.out.println(bytes + " bytes, link " + link);
+		System.out.println(String.format("%-20s %10s %12s %8s %8s %8s %8s", "pattern", "time (ms)", "goodput (kB/s)",
+				"retrans", "timeouts", "dropped", "wall (ms)"));
+		for (String[] p : patterns){
+			System.out.println(run(p[0], p[1], link, bytes));
+		}
+	}
+}
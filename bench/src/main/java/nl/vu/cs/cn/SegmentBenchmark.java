@@ -0,0 +1,56 @@
+package nl.vu.cs.cn;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.vu.cs.cn.TCPSegment.TCPSegmentType;
+
+/**
+ * TCPSegment.encode() and decode() for segments with different amounts of data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentBenchmark {
+
+	/**bytes of data in the segment: none (ACK), small, an Ethernet MSS and the maximum of the stack*/
+	@Param({"0", "64", "1460", "8152"})
+	public int dataLength;
+
+	private TCPSegment segment;
+	private byte[] encoded;
+
+	@Setup
+	public void setup(){
+		byte[] data = new byte[dataLength];
+		for (int i = 0; i < data.length; i++){
+			data[i] = (byte) i;
+		}
+		segment = new TCPSegment(12345, 80, 1000, 2000, dataLength > 0 ? TCPSegmentType.DATA : TCPSegmentType.ACK, data);
+		encoded = segment.encode();
+	}
+
+	@Benchmark
+	public byte[] encode(){
+		return segment.encode();
+	}
+
+	@Benchmark
+	public TCPSegment decode(){
+		return TCPSegment.decode(encoded, encoded.length);
+	}
+}
@@ -0,0 +1,91 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.vu.cs.cn.IP.IpAddress;
+
+/**
+ * A full transfer between two stacks: Socket.write() on one side until Socket.read() on the other side has all the
+ * bytes. Uses the real IP layer, so the native library has to be on java.library.path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+	static final int PORT = 7001;
+
+	/**bytes per transfer*/
+	@Param({"1024", "65536", "1048576"})
+	public int size;
+
+	private TCP serverStack;
+	private TCP clientStack;
+	private TCP.Socket sender;
+	private TCP.Socket receiver;
+	private byte[] src;
+	private byte[] dst;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, InterruptedException {
+		serverStack = new TCP(1);
+		clientStack = new TCP(2);
+		receiver = serverStack.socket(PORT);
+		TCPFuture<Boolean> accepted = receiver.acceptAsync();
+		sender = clientStack.socket();
+		if (!sender.connect(IpAddress.getAddress(serverStack.getIPAddress()), PORT) || !accepted.await()){
+			throw new IOException("could not connect");
+		}
+		src = new byte[size];
+		dst = new byte[size];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		sender.close();
+		receiver.close();
+		//the next trial, with another size, runs in the same JVM on new stacks
+		serverStack.close();
+		clientStack.close();
+	}
+
+	@Benchmark
+	public int transfer(){
+		int written = 0;
+		int received = 0;
+		while (received < size){
+			if (written < size){
+				//write() does not block, it takes what fits in the send buffer
+				int n = sender.write(src, written, size - written);
+				if (n < 0){
+					throw new IllegalStateException("write failed");
+				}
+				written += n;
+			}
+			int n = receiver.read(dst, received, size - received);
+			if (n <= 0){
+				throw new IllegalStateException("connection closed");
+			}
+			received += n;
+		}
+		return received;
+	}
+}
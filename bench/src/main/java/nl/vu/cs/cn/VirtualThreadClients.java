@@ -0,0 +1,123 @@
+package nl.vu.cs.cn;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.vu.cs.cn.IP.IpAddress;
+
+/**
+ * Runs many clients on one TCP stack, each in its own virtual thread, against as many server sockets on a second stack,
+ * which also run in virtual threads. Every client connects, sends a request, reads the echo and closes, using the
+ * blocking socket calls.
+ * <br/>
+ * Usage: VirtualThreadClients [clients] [request size]. The defaults are 10000 clients and 64 bytes.
+ * Needs Java 21 or newer, and the native IP library (cnpracticum) on java.library.path.
+ */
+public class VirtualThreadClients {
+
+	/**the port the server sockets listen on*/
+	public static final int PORT = 7000;
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		final int size = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+		TCP serverStack = new TCP(1);
+		TCP clientStack = new TCP(2);
+		final IpAddress serverAddr = IpAddress.getAddress(serverStack.getIPAddress());
+
+		ExecutorService servers = Executors.newVirtualThreadPerTaskExecutor();
+		ExecutorService clientThreads = Executors.newVirtualThreadPerTaskExecutor();
+		final CountDownLatch started = new CountDownLatch(clients);
+		final AtomicInteger failures = new AtomicInteger();
+		final long[] latency = new long[clients];
+
+		for (int i = 0; i < clients; i++){
+			final TCP.Socket sock = serverStack.socket(PORT);
+			servers.execute(new Runnable() {
+				public void run() {
+					started.countDown();
+					sock.accept();
+					byte[] buf = new byte[size];
+					if (readFully(sock, buf) == size){
+						sock.write(buf, 0, size);
+					}
+					sock.close();
+				}
+			});
+		}
+		//a SYN which arrives before its server socket listens is retransmitted
+		started.await();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++){
+			final int id = i;
+			final TCP.Socket sock = clientStack.socket();
+			clientThreads.execute(new Runnable() {
+				public void run() {
+					long t = System.nanoTime();
+					byte[] request = new byte[size];
+					Arrays.fill(request, (byte) id);
+					if (!sock.connect(serverAddr, PORT)){
+						failures.incrementAndGet();
+						return;
+					}
+					byte[] reply = new byte[size];
+					boolean echoed = sock.write(request, 0, size) == size && readFully(sock, reply) == size &&
+							Arrays.equals(request, reply);
+					sock.close();
+					if (echoed){
+						latency[id] = System.nanoTime() - t;
+					} else {
+						failures.incrementAndGet();
+					}
+				}
+			});
+		}
+		clientThreads.shutdown();
+		clientThreads.awaitTermination(1, TimeUnit.HOURS);
+		long elapsed = System.nanoTime() - start;
+		servers.shutdownNow();
+
+		int ok = clients - failures.get();
+		long[] done = new long[clients];
+		int n = 0;
+		for (long l : latency){
+			if (l > 0){
+				done[n++] = l;
+			}
+		}
+		Arrays.sort(done, 0, n);
+
+		System.out.println("clients:          " + clients);
+		System.out.println("failed:           " + failures.get());
+		System.out.println("elapsed (ms):     " + TimeUnit.NANOSECONDS.toMillis(elapsed));
+		System.out.println("connections/s:    " + (ok * 1000000000L / Math.max(1, elapsed)));
+		if (n > 0){
+			System.out.println("latency p50 (ms): " + TimeUnit.NANOSECONDS.toMillis(done[n / 2]));
+			System.out.println("latency p99 (ms): " + TimeUnit.NANOSECONDS.toMillis(done[(int) (n * 0.99)]));
+			System.out.println("latency max (ms): " + TimeUnit.NANOSECONDS.toMillis(done[n - 1]));
+		}
+		System.exit(failures.get() == 0 ? 0 : 1);
+	}
+
+	/**
+	 * reads until the buffer is full or the other side closed the connection.
+	 * @return the number of bytes read
+	 */
+	static int readFully(TCP.Socket sock, byte[] buf){
+		int got = 0;
+		while (got < buf.length){
+			int n = sock.read(buf, got, buf.length - got);
+			if (n <= 0){
+				break;
+			}
+			got += n;
+		}
+		return got;
+	}
+}
@@ -0,0 +1,54 @@
+package nl.vu.cs.cn;
+
+import java.nio.ByteBuffer;
+
+import nl.vu.cs.cn.BufferPool.Chunk;
+
+/**
+ * Received data lent to the application by TCP.Socket.borrow(), without copying it out of the receive buffer.
+ * <br/>
+ * The bytes stay in the memory of the socket, and count towards its receive buffer, until release() is called: a
+ * socket which keeps too much data borrowed closes its window. The buffer must not be used after release().
+ */
+public final class BorrowedBuffer {
+
+	private final TCP.Socket socket;
+	private final ByteBuffer view;
+	private final int length;
+	private Chunk chunk;
+
+	BorrowedBuffer(TCP.Socket socket, Chunk chunk){
+		this.socket = socket;
+		this.chunk = chunk;
+		view = chunk.view();
+		length = view.remaining();
+	}
+
+	/**
+	 * @return a read-only view of the data, from its position to its limit
+	 */
+	public ByteBuffer buffer(){
+		return view;
+	}
+
+	/**
+	 * @return the number of bytes borrowed
+	 */
+	public int length(){
+		return length;
+	}
+
+	/**
+	 * gives the data back to the socket. Does nothing if it was released already.
+	 */
+	public void release(){
+		Chunk c;
+		synchronized(this){
+			c = chunk;
+			chunk = null;
+		}
+		if (c != null){
+			socket.giveBack(c, length);
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package nl.vu.cs.cn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import nl.vu.cs.cn.BufferPool.Chunk;
+
+/**
+ * class which represents the send or receive buffer of a socket. Internally represented using a list of chunks of a
+ * BufferPool, it is possible to write any number of bytes to the buffer and read any number of bytes from it.
+ * <br/>
+ * The buffer holds at most max_len bytes, its quota, and less if the pool runs out of memory. Chunks are taken from
+ * the pool as the buffer fills, and given back as soon as they are read.
+ * <br/>
+ * Chunks may also be lent to the application (see lend()). Until they are given back, their bytes still count towards
+ * the quota.
+ * @author Boris Mulder
+ */
+public class BoundedByteBuffer {
+
+	private final BufferPool pool;
+	private ArrayDeque<Chunk> list;
+
+	private int length;
+	private int max_len;
+	/**the number of bytes in lent chunks*/
+	private int lent;
+
+	/**
+	 * @param pool the pool to take the memory from
+	 * @param max_len the quota: the maximum number of bytes in the buffer
+	 */
+	public BoundedByteBuffer(BufferPool pool, int max_len){
+		this.pool = pool;
+		list = new ArrayDeque<Chunk>();
+		this.max_len = max_len;
+		this.length = 0;
+	}
+
+	/**
+	 * initializes this buffer to an empty buffer again
+	 */
+	public synchronized void init(){
+		while (!list.isEmpty()){
+			pool.release(list.removeFirst());
+		}
+		length = 0;
+	}
+
+	/**
+	 * changes the quota. If the buffer holds more bytes, it keeps them, but cannot grow until it holds less.
+	 * @param max_len the maximum number of bytes in the buffer
+	 */
+	public synchronized void setQuota(int max_len){
+		this.max_len = max_len;
+	}
+
+	public synchronized int getQuota(){
+		return max_len;
+	}
+
+	/**
+	 * Adds all bytes of an array to the buffer
+	 * @param arr
+	 * @throws FullCollectionException if they do not fit
+	 */
+	public synchronized void buffer(byte[] arr) throws FullCollectionException {
+		int n = buffer(arr, 0, arr.length);
+		if (n < arr.length){
+			//another buffer took the memory of the pool in the meantime
+			truncate(n);
+			throw new FullCollectionException("BoundedByteBuffer");
+		}
+	}
+
+	/**
+	 * Adds all bytes of an array to the buffer, like buffer(arr), but without copying them if the pool is on the heap:
+	 * the array itself is kept.
+	 * @param arr the array, which must not be changed anymore
+	 * @throws FullCollectionException if they do not fit
+	 */
+	public synchronized void append(byte[] arr) throws FullCollectionException {
+		if (arr.length > max_len - length - lent){
+			throw new FullCollectionException("BoundedByteBuffer");
+		}
+		Chunk c = pool.wrap(arr);
+		if (c == null){
+			buffer(arr);
+			return;
+		}
+		list.add(c);
+		length += arr.length;
+	}
+
+	/**
+	 * Adds as many bytes to the buffer as fit.
+	 * @param arr the array to take the bytes from
+	 * @param offset the offset of the first byte in the array
+	 * @param len the number of bytes to add
+	 * @return the number of bytes added, possibly 0
+	 */
+	public synchronized int buffer(byte[] arr, int offset, int len){
+		len = Math.min(len, max_len - length - lent);
+		int nwritten = 0;
+		while (nwritten < len){
+			Chunk last = list.peekLast();
+			if (last == null || last.space() == 0){
+				if (!pool.acquire(1, list)){
+					break;
+				}
+				last = list.getLast();
+			}
+			int n = Math.min(last.space(), len - nwritten);
+			last.put(arr, offset + nwritten, n);
+			nwritten += n;
+		}
+		length += nwritten;
+		return nwritten;
+	}
+
+	/**
+	 * Adds as many of the remaining bytes of src to the buffer as fit, and advances its position past them. A direct
+	 * src is copied into the chunks without passing through the heap.
+	 * @param src the buffer to take the bytes from
+	 * @return the number of bytes added, possibly 0
+	 */
+	public synchronized int buffer(ByteBuffer src){
+		int len = Math.min(src.remaining(), max_len - length - lent);
+		int nwritten = 0;
+		while (nwritten < len){
+			Chunk last = list.peekLast();
+			if (last == null || last.space() == 0){
+				if (!pool.acquire(1, list)){
+					break;
+				}
+				last = list.getLast();
+			}
+			int n = Math.min(last.space(), len - nwritten);
+			last.put(src, n);
+			nwritten += n;
+		}
+		length += nwritten;
+		return nwritten;
+	}
+
+	/**
+	 * removes the last bytes which were added.
+	 * @param n the number of bytes to remove
+	 */
+	private void truncate(int n){
+		while (n > 0){
+			Chunk last = list.getLast();
+			int m = Math.min(n, last.length());
+			last.end -= m;
+			length -= m;
+			n -= m;
+			if (last.length() == 0){
+				pool.release(list.removeLast());
+			}
+		}
+	}
+
+	/**
+	 * tries to read n bytes from the socket buffer. If it contains less than n bytes, all bytes are returned
+	 * and the number of bytes actually read.
+	 * @param array
+	 * @param offset the offset on which to start writing to the array
+	 * @param nBytes
+	 * @return the number of bytes read from the buffer
+	 */
+	public synchronized int deBuffer(byte[] array, int offset, int nBytes) {
+		//check if the array is too small. If so, fill the buffer instead of putting in nBytes bytes.
+		nBytes = Math.min(nBytes, array.length - offset);
+
+		int nread = 0;
+		while (nread < nBytes && length > 0){
+			Chunk in = list.getFirst();
+			int n = Math.min(in.length(), nBytes - nread);
+			in.get(in.start, array, offset + nread, n);
+			in.start += n;
+			nread += n;
+			length -= n;
+			if (in.start == in.end){
+				//give the memory back as soon as possible
+				pool.release(list.removeFirst());
+			}
+		}
+		return nread;
+	}
+
+	/**
+	 * reads as many bytes from the buffer as fit in dst, and advances its position past them. A direct dst is filled
+	 * from the chunks without passing through the heap.
+	 * @param dst the buffer to read into
+	 * @return the number of bytes read from the buffer
+	 */
+	public synchronized int deBuffer(ByteBuffer dst) {
+		int nBytes = dst.remaining();
+		int nread = 0;
+		while (nread < nBytes && length > 0){
+			Chunk in = list.getFirst();
+			int n = Math.min(in.length(), nBytes - nread);
+			in.get(in.start, dst, n);
+			in.start += n;
+			nread += n;
+			length -= n;
+			if (in.start == in.end){
+				pool.release(list.removeFirst());
+			}
+		}
+		return nread;
+	}
+
+	/**
+	 * copies the first bytes of the buffer without removing them, like the data of a segment which may have to be
+	 * sent again.
+	 * @param array the array to copy to
+	 * @param offset the offset on which to start writing to the array
+	 * @param nBytes the number of bytes to copy, at most length()
+	 */
+	public synchronized void peek(byte[] array, int offset, int nBytes){
+		peek(0, array, offset, nBytes);
+	}
+
+	/**
+	 * copies bytes of the buffer without removing them, starting some bytes after the first one.
+	 * @param skip the number of bytes before the first byte to copy
+	 * @param array the array to copy to
+	 * @param offset the offset on which to start writing to the array
+	 * @param nBytes the number of bytes to copy, at most length() - skip
+	 */
+	public synchronized void peek(int skip, byte[] array, int offset, int nBytes){
+		if (skip + nBytes > length){
+			throw new IllegalArgumentException("peek of " + nBytes + " bytes after " + skip + ", buffer holds " + length);
+		}
+		int ncopied = 0;
+		for (Chunk in : list){
+			if (ncopied == nBytes){
+				break;
+			}
+			if (skip >= in.length()){
+				skip -= in.length();
+				continue;
+			}
+			int n = Math.min(in.length() - skip, nBytes - ncopied);
+			in.get(in.start + skip, array, offset + ncopied, n);
+			skip = 0;
+			ncopied += n;
+		}
+	}
+
+	/**
+	 * removes the first bytes of the buffer, without copying them.
+	 * @param nBytes the number of bytes to remove, at most length()
+	 */
+	public synchronized void skip(int nBytes){
+		if (nBytes > length){
+			throw new IllegalArgumentException("skip of " + nBytes + " bytes, buffer holds " + length);
+		}
+		length -= nBytes;
+		while (nBytes > 0){
+			Chunk in = list.getFirst();
+			int n = Math.min(in.length(), nBytes);
+			in.start += n;
+			nBytes -= n;
+			if (in.start == in.end){
+				pool.release(list.removeFirst());
+			}
+		}
+	}
+
+	/**
+	 * removes the first chunk from the buffer and lends it out, without copying its bytes. They still count towards
+	 * the quota until the chunk is given back.
+	 * @return the chunk, or null if the buffer is empty
+	 */
+	synchronized Chunk lend(){
+		Chunk c = list.pollFirst();
+		if (c == null){
+			return null;
+		}
+		length -= c.length();
+		lent += c.length();
+		return c;
+	}
+
+	/**
+	 * gives a lent chunk back.
+	 * @param c the chunk
+	 * @param n the number of bytes it held when it was lent
+	 */
+	synchronized void giveBack(Chunk c, int n){
+		lent -= n;
+		pool.release(c);
+	}
+
+	/**
+	 * @return the number of bytes in chunks which are lent out
+	 */
+	public synchronized int lent(){
+		return lent;
+	}
+
+	public synchronized int length(){
+		return length;
+	}
+
+	/**
+	 * @return the number of bytes that can still be added to the buffer: the rest of the quota, as far as the pool
+	 * has memory for it
+	 */
+	public synchronized int remainingCapacity(){
+		long space = list.isEmpty() ? 0 : list.getLast().space();
+		return (int) Math.max(0, Math.min(max_len - length - lent, space + pool.available()));
+	}
+
+	public synchronized boolean isEmpty(){
+		return (length == 0);
+	}
+}
@@ -0,0 +1,326 @@
+package nl.vu.cs.cn;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator of the memory of the send and receive buffers of a stack. It hands out chunks of CHUNK_SIZE bytes, which
+ * are cut from slabs of SLAB_CHUNKS chunks. A buffer takes chunks when data is added to it and returns them as soon
+ * as the data is taken out, so the memory in use follows the data which is buffered, not the number of connections.
+ * <br/>
+ * The pool never holds more than a maximum number of bytes. Slabs are allocated when the free chunks run out, and
+ * kept afterwards. When the maximum is reached, buffers cannot grow: writes are shortened, and received data is not
+ * accepted until the window opens again.
+ * <br/>
+ * The slabs are either arrays on the heap, or direct memory outside of it (see setDirect()), so that megabytes of
+ * buffered data are not traced and copied by the garbage collector. The default is set with the system property
+ * cnp.buffers.direct.
+ * <br/>
+ * Buffers on the heap may also hold arrays which were not taken from the pool, like the data of a received segment,
+ * so that it is not copied again (see wrap()). They count towards the maximum as well.
+ * <br/>
+ * Taking and giving back chunks does not lock: the bytes in use are reserved on an atomic counter, and the free chunks
+ * are kept in lock-free queues, striped like the counters of TCPMetrics, so that the receiving thread and the
+ * application threads of a stack do not contend on one list. Only allocating a slab takes the lock of the pool.
+ */
+public class BufferPool {
+
+	/**the size of a chunk: one maximum sized segment*/
+	public static final int CHUNK_SIZE = TCP.MAX_TCPIP_SEGMENT_SIZE;
+
+	/**the number of chunks in a slab*/
+	public static final int SLAB_CHUNKS = 64;
+
+	/**default maximum number of bytes of all buffers of a stack*/
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/**system property which makes the pools use direct memory by default*/
+	public static final String DIRECT_PROPERTY = "cnp.buffers.direct";
+
+	/**
+	 * A part of a slab, or a wrapped array, which holds the bytes from start until end.
+	 */
+	static final class Chunk {
+		/**the CHUNK_SIZE bytes of the slab, or the wrapped array. Its position and limit are only used to copy.*/
+		final ByteBuffer memory;
+		/**false if the memory is a wrapped array, which is not given back to the pool*/
+		final boolean pooled;
+		/**the first byte in use*/
+		int start;
+		/**the end of the bytes in use*/
+		int end;
+
+		Chunk(ByteBuffer memory, boolean pooled){
+			this.memory = memory;
+			this.pooled = pooled;
+		}
+
+		/**
+		 * adds bytes at the end.
+		 */
+		void put(byte[] src, int offset, int n){
+			memory.clear();
+			memory.position(end);
+			memory.put(src, offset, n);
+			end += n;
+		}
+
+		/**
+		 * adds the next n bytes of src at the end, and advances its position.
+		 */
+		void put(ByteBuffer src, int n){
+			ByteBuffer part = src.duplicate();
+			part.limit(part.position() + n);
+			memory.clear();
+			memory.position(end);
+			memory.put(part);
+			src.position(src.position() + n);
+			end += n;
+		}
+
+		/**
+		 * copies bytes out of the chunk, without removing them.
+		 * @param from the first byte to copy
+		 */
+		void get(int from, byte[] dst, int offset, int n){
+			memory.clear();
+			memory.position(from);
+			memory.get(dst, offset, n);
+		}
+
+		/**
+		 * copies n bytes out of the chunk into dst, without removing them, and advances the position of dst.
+		 * @param from the first byte to copy
+		 */
+		void get(int from, ByteBuffer dst, int n){
+			memory.clear();
+			memory.position(from);
+			memory.limit(from + n);
+			dst.put(memory);
+		}
+
+		int length(){
+			return end - start;
+		}
+
+		/**
+		 * @return a read-only view of the bytes in use, independent of the position and limit of the chunk
+		 */
+		ByteBuffer view(){
+			ByteBuffer v = memory.asReadOnlyBuffer();
+			v.limit(end);
+			v.position(start);
+			return v;
+		}
+
+		/**
+		 * @return the number of bytes which can still be added at the end
+		 */
+		int space(){
+			//a wrapped array is full
+			return pooled ? CHUNK_SIZE - end : 0;
+		}
+	}
+
+	private volatile long maxBytes;
+	/**if set, new slabs are allocated in direct memory*/
+	private volatile boolean direct;
+	private int directSlabs;
+
+	/**the bytes of the chunks and wrapped arrays in use, or reserved to be taken*/
+	private final AtomicLong usedBytes = new AtomicLong();
+
+	/**the chunks which are not in use. A chunk is given back to the stripe of the thread which releases it.*/
+	private final ConcurrentLinkedQueue<Chunk>[] free;
+	private final int mask;
+	private volatile int slabs;
+
+	/**
+	 * @param maxBytes the maximum number of bytes of all chunks together
+	 */
+	public BufferPool(long maxBytes){
+		this(maxBytes, Boolean.getBoolean(DIRECT_PROPERTY));
+	}
+
+	/**
+	 * @param maxBytes the maximum number of bytes of all chunks together
+	 * @param direct true to allocate the slabs in direct memory
+	 */
+	public BufferPool(long maxBytes, boolean direct){
+		setMaxBytes(maxBytes);
+		this.direct = direct;
+		int stripes = TCPMetrics.defaultStripes();
+		mask = stripes - 1;
+		@SuppressWarnings("unchecked")
+		ConcurrentLinkedQueue<Chunk>[] queues = new ConcurrentLinkedQueue[stripes];
+		for (int i = 0; i < stripes; i++){
+			queues[i] = new ConcurrentLinkedQueue<Chunk>();
+		}
+		free = queues;
+	}
+
+	/**
+	 * chooses where the slabs allocated from now on are kept. The slabs allocated already stay where they are.
+	 * @param direct true for direct memory, outside of the heap, false for arrays on the heap
+	 */
+	public void setDirect(boolean direct){
+		this.direct = direct;
+	}
+
+	public boolean isDirect(){
+		return direct;
+	}
+
+	/**
+	 * changes the maximum. Memory which is allocated already is not given back when it is lowered.
+	 * @param maxBytes the maximum number of bytes of all chunks together, at least one slab. It is rounded down to
+	 * whole slabs.
+	 */
+	public void setMaxBytes(long maxBytes){
+		long slabBytes = (long) CHUNK_SIZE * SLAB_CHUNKS;
+		if (maxBytes < slabBytes){
+			throw new IllegalArgumentException("the maximum is smaller than a slab: " + maxBytes);
+		}
+		this.maxBytes = maxBytes / slabBytes * slabBytes;
+	}
+
+	public long getMaxBytes(){
+		return maxBytes;
+	}
+
+	/**
+	 * takes chunks out of the pool, either all or none of them.
+	 * @param n the number of chunks
+	 * @param into the collection to add the chunks to, which are empty
+	 * @return false if the maximum would be exceeded
+	 */
+	boolean acquire(int n, Collection<Chunk> into){
+		if (!reserve((long) n * CHUNK_SIZE)){
+			return false;
+		}
+		for (int i = 0; i < n; i++){
+			Chunk c = takeFree();
+			c.start = c.end = 0;
+			into.add(c);
+		}
+		return true;
+	}
+
+	/**
+	 * counts bytes as in use, if the maximum allows it.
+	 * @return false if the maximum would be exceeded
+	 */
+	private boolean reserve(long n){
+		while (true){
+			long used = usedBytes.get();
+			if (used + n > maxBytes){
+				return false;
+			}
+			if (usedBytes.compareAndSet(used, used + n)){
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * takes a free chunk, from the stripe of the current thread if it has one. A chunk was reserved already, so there
+	 * is one: either free, or on its way back, or in a slab which can still be allocated.
+	 */
+	private Chunk takeFree(){
+		int stripe = (int) (Thread.currentThread().getId() & mask);
+		while (true){
+			for (int i = 0; i <= mask; i++){
+				Chunk c = free[(stripe + i) & mask].poll();
+				if (c != null){
+					return c;
+				}
+			}
+			if (!allocateSlab(stripe)){
+				//a chunk is being given back
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * adds the chunks of a new slab to a stripe of the free chunks.
+	 * @return false if the maximum does not allow another slab
+	 */
+	private synchronized boolean allocateSlab(int stripe){
+		if ((long) (slabs + 1) * SLAB_CHUNKS * CHUNK_SIZE > maxBytes){
+			return false;
+		}
+		ByteBuffer slab;
+		if (direct){
+			slab = ByteBuffer.allocateDirect(SLAB_CHUNKS * CHUNK_SIZE);
+			directSlabs++;
+		} else {
+			slab = ByteBuffer.allocate(SLAB_CHUNKS * CHUNK_SIZE);
+		}
+		for (int i = 0; i < SLAB_CHUNKS; i++){
+			slab.limit((i + 1) * CHUNK_SIZE);
+			slab.position(i * CHUNK_SIZE);
+			free[stripe].add(new Chunk(slab.slice(), true));
+		}
+		slabs++;
+		return true;
+	}
+
+	/**
+	 * gives a chunk back. The caller must not use it anymore.
+	 */
+	void release(Chunk c){
+		if (c.pooled){
+			//free before it is no longer counted, so that a reserved chunk can always be found
+			free[(int) (Thread.currentThread().getId() & mask)].add(c);
+			usedBytes.addAndGet(-CHUNK_SIZE);
+		} else {
+			usedBytes.addAndGet(-c.memory.capacity());
+		}
+	}
+
+	/**
+	 * makes a chunk of an array, holding all its bytes, without copying them. Only for pools on the heap: in direct
+	 * memory the data belongs in the slabs.
+	 * @param array the array, which must not be changed anymore
+	 * @return the chunk, or null if the pool is in direct memory or the array does not fit under the maximum
+	 */
+	Chunk wrap(byte[] array){
+		if (direct || !reserve(array.length)){
+			return null;
+		}
+		Chunk c = new Chunk(ByteBuffer.wrap(array), false);
+		c.end = array.length;
+		return c;
+	}
+
+	/**
+	 * @return the number of bytes which can still be taken out of the pool
+	 */
+	long available(){
+		return maxBytes - usedBytes.get();
+	}
+
+	/**
+	 * @return the number of bytes of the chunks and wrapped arrays which are in use by buffers
+	 */
+	public long getUsedBytes(){
+		return usedBytes.get();
+	}
+
+	/**
+	 * @return the number of bytes of the slabs allocated so far
+	 */
+	public long getAllocatedBytes(){
+		return (long) slabs * SLAB_CHUNKS * CHUNK_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes of the slabs allocated so far in direct memory
+	 */
+	public synchronized long getDirectBytes(){
+		return (long) directSlabs * SLAB_CHUNKS * CHUNK_SIZE;
+	}
+}
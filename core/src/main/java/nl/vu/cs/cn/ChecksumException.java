@@ -0,0 +1,13 @@
+package nl.vu.cs.cn;
+
+/**
+ * thrown for a received packet whose checksum is not correct.
+ */
+public class ChecksumException extends InvalidPacketException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ChecksumException(String s){
+		super(s);
+	}
+}
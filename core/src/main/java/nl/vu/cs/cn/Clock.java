@@ -0,0 +1,29 @@
+package nl.vu.cs.cn;
+
+/**
+ * The time source of a TCP stack: the system clock, or the virtual clock of a Simulator.
+ */
+public interface Clock {
+
+	/**the clock of the system*/
+	Clock SYSTEM = new Clock() {
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	};
+
+	/**
+	 * @return the current time in milliseconds, see System.currentTimeMillis()
+	 */
+	long currentTimeMillis();
+
+	/**
+	 * @return the current value of a timer in nanoseconds, only meaningful to measure elapsed time, see
+	 * System.nanoTime()
+	 */
+	long nanoTime();
+}
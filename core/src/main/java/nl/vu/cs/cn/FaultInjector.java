@@ -0,0 +1,273 @@
+package nl.vu.cs.cn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.vu.cs.cn.TCPSegment.TCPSegmentType;
+
+/**
+ * Drops segments on the send and receive paths of a TCP stack according to a script, to test how the stack recovers
+ * from loss. Enable it with TCP.setFaultInjector().
+ * <br/>
+ * A script is a list of rules. A rule counts the segments of one kind in one direction, starting at 1, and drops the
+ * ones in a range of those numbers. Retransmissions are counted as well: with one segment in flight, the rule
+ * "send data 10-12" drops the tenth data segment and its first two retransmissions. Every rule counts every segment
+ * it matches, so the rules do not influence each other.
+ * <br/>
+ * Rules can be added with drop() and friends, or parsed from a script like "send data 5; send data 10-12; receive
+ * ack 20-39; receive synack 1": the direction (send or receive), the kind (any, data, ack, syn, synack or fin) and a
+ * number or an inclusive range.
+ * <br/>
+ * Sent segments are dropped before they are captured, received ones after, so a capture shows what was on the wire.
+ */
+public class FaultInjector {
+
+	/**
+	 * The path a rule applies to.
+	 */
+	public enum Direction {
+		SEND,
+		RECEIVE
+	}
+
+	/**
+	 * The segments a rule counts.
+	 */
+	public enum Kind {
+		ANY,
+		/**segments carrying data*/
+		DATA,
+		/**acknowledgements without data*/
+		ACK,
+		SYN,
+		SYNACK,
+		/**FIN and FINACK*/
+		FIN;
+
+		boolean matches(TCPSegmentType type){
+			switch (this){
+			case ANY:
+				return true;
+			case DATA:
+				return type == TCPSegmentType.DATA;
+			case ACK:
+				return type == TCPSegmentType.ACK;
+			case SYN:
+				return type == TCPSegmentType.SYN;
+			case SYNACK:
+				return type == TCPSegmentType.SYNACK;
+			default:
+				return type == TCPSegmentType.FIN || type == TCPSegmentType.FINACK;
+			}
+		}
+	}
+
+	/**
+	 * Drops the segments first until first + count - 1 of a kind.
+	 */
+	private static final class Rule {
+		final Direction direction;
+		final Kind kind;
+		final long first;
+		final long count;
+		/**the number of segments matched so far*/
+		long seen;
+
+		Rule(Direction direction, Kind kind, long first, long count){
+			this.direction = direction;
+			this.kind = kind;
+			this.first = first;
+			this.count = count;
+		}
+
+		public String toString(){
+			String range = count == 1 ? Long.toString(first) : first + "-" + (first + count - 1);
+			return direction.name().toLowerCase() + " " + kind.name().toLowerCase() + " " + range;
+		}
+	}
+
+	private final List<Rule> rules;
+
+	private long sent;
+	private long received;
+	private long droppedSent;
+	private long droppedReceived;
+
+	/**
+	 * creates an injector which drops nothing.
+	 */
+	public FaultInjector(){
+		rules = new ArrayList<Rule>();
+	}
+
+	/**
+	 * @param script rules separated by semicolons, see the class description
+	 * @throws IllegalArgumentException if the script is invalid
+	 */
+	public static FaultInjector parse(String script){
+		FaultInjector f = new FaultInjector();
+		for (String rule : script.split(";")){
+			if (rule.trim().length() == 0){
+				continue;
+			}
+			String[] words = rule.trim().split("\\s+");
+			if (words.length != 3){
+				throw new IllegalArgumentException("invalid rule: " + rule);
+			}
+			Direction direction;
+			if (words[0].equalsIgnoreCase("send")){
+				direction = Direction.SEND;
+			} else if (words[0].equalsIgnoreCase("receive")){
+				direction = Direction.RECEIVE;
+			} else {
+				throw new IllegalArgumentException("invalid direction: " + words[0]);
+			}
+			Kind kind;
+			try {
+				kind = Kind.valueOf(words[1].toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("invalid kind of segment: " + words[1]);
+			}
+			try {
+				int dash = words[2].indexOf('-');
+				if (dash < 0){
+					f.dropNth(direction, kind, Long.parseLong(words[2]));
+				} else {
+					long first = Long.parseLong(words[2].substring(0, dash));
+					long last = Long.parseLong(words[2].substring(dash + 1));
+					f.drop(direction, kind, first, last - first + 1);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("invalid range: " + words[2]);
+			}
+		}
+		return f;
+	}
+
+	/**
+	 * adds a rule.
+	 * @param first the number of the first segment to drop, counting from 1
+	 * @param count the number of consecutive segments to drop
+	 * @return this injector
+	 */
+	public synchronized FaultInjector drop(Direction direction, Kind kind, long first, long count){
+		if (first < 1 || count < 1){
+			throw new IllegalArgumentException("invalid range: " + first + ", " + count);
+		}
+		rules.add(new Rule(direction, kind, first, count));
+		return this;
+	}
+
+	/**
+	 * drops the nth segment of a kind.
+	 * @return this injector
+	 */
+	public FaultInjector dropNth(Direction direction, Kind kind, long n){
+		return drop(direction, kind, n, 1);
+	}
+
+	/**
+	 * drops a burst of consecutive data segments.
+	 * @param first the number of the first data segment to drop
+	 * @param length the number of data segments to drop
+	 * @return this injector
+	 */
+	public FaultInjector dropBurst(Direction direction, long first, long length){
+		return drop(direction, Kind.DATA, first, length);
+	}
+
+	/**
+	 * drops a window of consecutive acknowledgements.
+	 * @param first the number of the first ack to drop
+	 * @param count the number of acks to drop
+	 * @return this injector
+	 */
+	public FaultInjector dropAcks(Direction direction, long first, long count){
+		return drop(direction, Kind.ACK, first, count);
+	}
+
+	/**
+	 * drops the first SYNACKs, so that the connection is only made after retransmissions.
+	 * @param count the number of SYNACKs to drop
+	 * @return this injector
+	 */
+	public FaultInjector dropSynAck(Direction direction, long count){
+		return drop(direction, Kind.SYNACK, 1, count);
+	}
+
+	/**
+	 * counts a segment against the rules.
+	 * @param seg the segment, sent or received
+	 * @param send true if the segment is being sent
+	 * @return true if the segment must be dropped
+	 */
+	synchronized boolean drop(TCPSegment seg, boolean send){
+		Direction direction = send ? Direction.SEND : Direction.RECEIVE;
+		TCPSegmentType type = seg.getSegmentType();
+		boolean drop = false;
+		for (Rule r : rules){
+			if (r.direction == direction && r.kind.matches(type)){
+				r.seen++;
+				if (r.seen >= r.first && r.seen < r.first + r.count){
+					drop = true;
+				}
+			}
+		}
+		if (send){
+			sent++;
+		} else {
+			received++;
+		}
+		if (drop){
+			if (send){
+				droppedSent++;
+			} else {
+				droppedReceived++;
+			}
+			Log.d("FaultInjector", "dropped " + direction.name().toLowerCase() + " " + seg.toString());
+		}
+		return drop;
+	}
+
+	/**
+	 * @return the number of segments sent past this injector, including the ones dropped
+	 */
+	public synchronized long getSent(){
+		return sent;
+	}
+
+	/**
+	 * @return the number of segments received past this injector, including the ones dropped
+	 */
+	public synchronized long getReceived(){
+		return received;
+	}
+
+	/**
+	 * @return the number of sent segments dropped
+	 */
+	public synchronized long getDroppedSent(){
+		return droppedSent;
+	}
+
+	/**
+	 * @return the number of received segments dropped
+	 */
+	public synchronized long getDroppedReceived(){
+		return droppedReceived;
+	}
+
+	/**
+	 * @return the rules as a script, which parse() accepts
+	 */
+	public synchronized String toString(){
+		StringBuilder s = new StringBuilder();
+		for (Rule r : rules){
+			if (s.length() > 0){
+				s.append("; ");
+			}
+			s.append(r);
+		}
+		return s.toString();
+	}
+}
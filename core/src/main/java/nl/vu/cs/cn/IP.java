@@ -23,7 +23,7 @@ import java.io.IOException;
  *
  * @author nick &lt;palmer@cs.vu.nl&gt;
  */
-public class IP {
+public class IP implements IPTransport {
 
     /** The protocol number for UDP. */
     public static final int UDP_PROTOCOL = 17;
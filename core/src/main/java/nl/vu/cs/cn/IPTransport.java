@@ -0,0 +1,39 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.IP.Packet;
+
+/**
+ * The part of the IP layer a TCP stack uses. Implemented by IP, and by the layers which replay or simulate traffic,
+ * so that the stack can run without the native IP library.
+ */
+public interface IPTransport {
+
+	/**
+	 * @return the virtual IP address of this layer
+	 */
+	IpAddress getLocalAddress();
+
+	/**
+	 * Sends a packet, see IP.ip_send().
+	 * @return the number of bytes of the data actually sent
+	 * @throws IOException if sending fails
+	 */
+	int ip_send(Packet p) throws IOException;
+
+	/**
+	 * Receives a packet, see IP.ip_receive().
+	 * @throws IOException if receiving fails
+	 */
+	void ip_receive(Packet p) throws IOException;
+
+	/**
+	 * Receives a packet within a timeout, see IP.ip_receive_timeout().
+	 * @param timeout the timeout in seconds
+	 * @throws IOException if receiving fails
+	 * @throws InterruptedException if a timeout occurred
+	 */
+	void ip_receive_timeout(Packet p, int timeout) throws IOException, InterruptedException;
+}
@@ -0,0 +1,405 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.vu.cs.cn.IP.IpAddress;
+
+/**
+ * Command line load generator, like iperf, for the TCP stack.
+ * <br/>
+ * It creates N pairs of stacks, a server stack and a client stack each, and drives one of these workloads through
+ * TCP.Socket between the two stacks of every pair:
+ * <ul>
+ * <li>stream: the client writes as fast as it can for the duration of the test, the server reads</li>
+ * <li>pingpong: the client sends a message, the server echoes it, over one connection</li>
+ * <li>connect: every exchange of pingpong uses a new connection, which is closed afterwards</li>
+ * </ul>
+ * Reports the goodput (bytes received by the applications per second), the retransmissions of all stacks and, for
+ * pingpong and connect, the latency percentiles of an exchange.
+ * <br/>
+ * With -e, every stack sends over an emulated link (see NetworkEmulator and NetworkLink) with the given
+ * specification, to measure under the conditions of a wide area network.
+ * <br/>
+ * Usage: LoadGenerator stream|pingpong|connect [-n pairs] [-t seconds] [-s message size] [-a first address]
+ * [-p port] [-e link specification]
+ */
+public class LoadGenerator {
+
+	static final String USAGE =
+			"usage: LoadGenerator stream|pingpong|connect [-n pairs] [-t seconds] [-s message size] [-a first address] [-p port] [-e link specification]";
+
+	/**time (nanoseconds) after the end of the test in which a server still waits for a connection, so that a client
+	 * which connected just before the end can finish, even if its SYN has to be resent*/
+	static final long GRACE = 2 * TCP.DEFAULT_TIMEOUT * 1000000000L;
+
+	enum Workload {
+		STREAM, PINGPONG, CONNECT
+	}
+
+	private final Workload workload;
+	private final int pairs;
+	private final int seconds;
+	private final int messageSize;
+	private final int firstAddress;
+	private final int port;
+	/**specification of the emulated links, or null*/
+	private final String link;
+
+	private final AtomicLong bytesReceived;
+	private final AtomicLong errors;
+
+	/**latencies (nanoseconds) of the exchanges, per pair*/
+	private final LatencyLog[] latencies;
+
+	private long deadline;
+
+	LoadGenerator(Workload workload, int pairs, int seconds, int messageSize, int firstAddress, int port, String link){
+		this.workload = workload;
+		this.pairs = pairs;
+		this.seconds = seconds;
+		this.messageSize = messageSize;
+		this.firstAddress = firstAddress;
+		this.port = port;
+		this.link = link;
+		bytesReceived = new AtomicLong();
+		errors = new AtomicLong();
+		latencies = new LatencyLog[pairs];
+		for (int i = 0; i < pairs; i++){
+			latencies[i] = new LatencyLog();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1){
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		Workload workload;
+		try {
+			workload = Workload.valueOf(args[0].toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+		int pairs = 1, seconds = 10, size = 1024, address = 1, port = 5001;
+		String link = null;
+		for (int i = 1; i < args.length; i++){
+			if (i + 1 >= args.length){
+				System.err.println(USAGE);
+				System.exit(2);
+			}
+			if (args[i].equals("-e")){
+				link = args[++i];
+				//fail early on a wrong specification
+				NetworkLink.parse(link, 0);
+				continue;
+			}
+			int value = Integer.parseInt(args[i + 1]);
+			if (args[i].equals("-n")){
+				pairs = value;
+			} else if (args[i].equals("-t")){
+				seconds = value;
+			} else if (args[i].equals("-s")){
+				size = value;
+			} else if (args[i].equals("-a")){
+				address = value;
+			} else if (args[i].equals("-p")){
+				port = value;
+			} else {
+				System.err.println(USAGE);
+				System.exit(2);
+			}
+			i++;
+		}
+		if (pairs < 1 || size < 1 || address < 1 || address + 2 * pairs - 1 > 254){
+			System.err.println("need 1 or more pairs and messages of 1 or more bytes; the addresses must be within 1-254");
+			System.exit(2);
+		}
+		LoadGenerator gen = new LoadGenerator(workload, pairs, seconds, size, address, port, link);
+		gen.run(System.out);
+		System.exit(gen.errors.get() == 0 ? 0 : 1);
+	}
+
+	/**
+	 * runs the workload and prints the results.
+	 */
+	void run(PrintStream out) throws IOException, InterruptedException {
+		TCP[] stacks = new TCP[2 * pairs];
+		for (int i = 0; i < stacks.length; i++){
+			if (link == null){
+				stacks[i] = new TCP(firstAddress + i);
+			} else {
+				stacks[i] = new TCP(new NetworkEmulator(new IP(firstAddress + i), NetworkLink.parse(link, i)));
+			}
+		}
+
+		List<Thread> threads = new ArrayList<Thread>();
+		long start = System.nanoTime();
+		deadline = start + seconds * 1000000000L;
+		for (int i = 0; i < pairs; i++){
+			final TCP server = stacks[2 * i];
+			final TCP client = stacks[2 * i + 1];
+			final IpAddress serverAddress = IpAddress.getAddress(server.getIPAddress());
+			final LatencyLog latency = latencies[i];
+
+			//the server listens before the client starts
+			final TCP.Socket serverSocket = server.socket(port);
+			final TCPFuture<Boolean> accepted = serverSocket.acceptAsync();
+
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					serve(server, serverSocket, accepted);
+				}
+			}, "server " + i));
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					drive(client, serverAddress, latency);
+				}
+			}, "client " + i));
+		}
+		for (Thread t : threads){
+			t.start();
+		}
+		for (Thread t : threads){
+			t.join();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		long retransmissions = 0;
+		for (TCP stack : stacks){
+			retransmissions += stack.getMetrics().getRetransmissions();
+		}
+		report(out, elapsed, retransmissions);
+	}
+
+	private boolean running(){
+		return System.nanoTime() - deadline < 0;
+	}
+
+	/**
+	 * the server side of a pair
+	 */
+	private void serve(TCP stack, TCP.Socket sock, TCPFuture<Boolean> accepted){
+		byte[] buf = new byte[Math.max(messageSize, TCP.MAX_DATA_LENGTH)];
+		boolean first = true;
+		while (true){
+			Boolean ok = awaitAccept(accepted);
+			if (ok == null){
+				//no (more) connections came before the end of the test
+				if (first){
+					errors.incrementAndGet();
+				}
+				return;
+			}
+			if (!ok){
+				errors.incrementAndGet();
+				return;
+			}
+			TCP.Socket next = null;
+			TCPFuture<Boolean> nextAccepted = null;
+			if (workload == Workload.CONNECT){
+				//listen for the next connection already, so its SYN is not lost
+				next = stack.socket(port);
+				nextAccepted = next.acceptAsync();
+			}
+
+			int n;
+			while ((n = sock.read(buf, 0, buf.length)) > 0){
+				if (workload == Workload.STREAM){
+					bytesReceived.addAndGet(n);
+				} else if (!writeFully(sock, buf, n)){
+					errors.incrementAndGet();
+					break;
+				}
+			}
+			if (n < 0){
+				errors.incrementAndGet();
+			}
+			sock.close();
+
+			if (next == null){
+				return;
+			}
+			sock = next;
+			accepted = nextAccepted;
+			first = false;
+		}
+	}
+
+	/**
+	 * waits for a connection until a while after the end of the test.
+	 * @return whether the accept succeeded, or null if no connection came in time
+	 */
+	private Boolean awaitAccept(TCPFuture<Boolean> accepted){
+		while (true){
+			try {
+				return accepted.get(100, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				if (System.nanoTime() - deadline - GRACE > 0){
+					accepted.cancel(false);
+					return null;
+				}
+			} catch (ExecutionException e) {
+				return false;
+			} catch (CancellationException e) {
+				return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * the client side of a pair
+	 */
+	private void drive(TCP stack, IpAddress server, LatencyLog latency){
+		byte[] message = new byte[messageSize];
+		byte[] reply = new byte[messageSize];
+		Arrays.fill(message, (byte) 'x');
+
+		TCP.Socket sock = null;
+		if (workload != Workload.CONNECT){
+			sock = stack.socket();
+			if (!sock.connect(server, port)){
+				errors.incrementAndGet();
+				return;
+			}
+		}
+		while (running()){
+			long t = System.nanoTime();
+			if (workload == Workload.STREAM){
+				if (!writeFully(sock, message, messageSize)){
+					errors.incrementAndGet();
+					break;
+				}
+				continue;
+			}
+			if (workload == Workload.CONNECT){
+				sock = stack.socket();
+				if (!sock.connect(server, port)){
+					errors.incrementAndGet();
+					break;
+				}
+			}
+			if (!writeFully(sock, message, messageSize) || !readFully(sock, reply)){
+				errors.incrementAndGet();
+				break;
+			}
+			bytesReceived.addAndGet(messageSize);
+			if (workload == Workload.CONNECT){
+				sock.close();
+			}
+			latency.add(System.nanoTime() - t);
+		}
+		if (workload != Workload.CONNECT && sock.isConnected()){
+			sock.close();
+		}
+	}
+
+	/**
+	 * writes all bytes, waiting for space in the send buffer.
+	 * @return false if the connection failed
+	 */
+	private static boolean writeFully(TCP.Socket sock, byte[] buf, int len){
+		try {
+			return sock.writeAsync(ByteBuffer.wrap(buf, 0, len)).get() == len;
+		} catch (ExecutionException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * reads until the buffer is full.
+	 * @return false if the connection was closed or failed before that
+	 */
+	private static boolean readFully(TCP.Socket sock, byte[] buf){
+		int got = 0;
+		while (got < buf.length){
+			int n = sock.read(buf, got, buf.length - got);
+			if (n <= 0){
+				return false;
+			}
+			got += n;
+		}
+		return true;
+	}
+
+	private void report(PrintStream out, long elapsed, long retransmissions){
+		double secs = elapsed / 1e9;
+		out.println("workload:        " + workload.name().toLowerCase() + ", " + pairs + " pair(s), " + messageSize +
+				" byte messages");
+		if (link != null){
+			out.println("link:            " + link);
+		}
+		out.println("duration (s):    " + String.format("%.2f", secs));
+		out.println("received (B):    " + bytesReceived.get());
+		out.println("goodput (kB/s):  " + String.format("%.1f", bytesReceived.get() / secs / 1000));
+		out.println("retransmissions: " + retransmissions);
+		out.println("errors:          " + errors.get());
+		if (workload == Workload.STREAM){
+			return;
+		}
+
+		LatencyLog all = new LatencyLog();
+		for (LatencyLog l : latencies){
+			all.addAll(l);
+		}
+		long[] sorted = all.sorted();
+		out.println("exchanges:       " + sorted.length + " (" + String.format("%.1f", sorted.length / secs) + "/s)");
+		if (sorted.length > 0){
+			out.println("latency (ms):    p50 " + millis(percentile(sorted, 50)) + ", p90 " +
+					millis(percentile(sorted, 90)) + ", p99 " + millis(percentile(sorted, 99)) + ", max " +
+					millis(sorted[sorted.length - 1]));
+		}
+	}
+
+	private static long percentile(long[] sorted, int p){
+		return sorted[Math.min(sorted.length - 1, (int) ((long) sorted.length * p / 100))];
+	}
+
+	private static String millis(long nanos){
+		return String.format("%.3f", nanos / 1e6);
+	}
+
+	/**
+	 * Growable list of latencies, written by one thread.
+	 */
+	private static class LatencyLog {
+		private long[] values = new long[1024];
+		private int size;
+
+		void add(long v){
+			if (size == values.length){
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = v;
+		}
+
+		void addAll(LatencyLog l){
+			for (int i = 0; i < l.size; i++){
+				add(l.values[i]);
+			}
+		}
+
+		long[] sorted(){
+			long[] s = Arrays.copyOf(values, size);
+			Arrays.sort(s);
+			return s;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package nl.vu.cs.cn;
+
+/**
+ * Logger of the stack, with the calls of the Android logger, so that the stack does not depend on Android.
+ * <br/>
+ * The messages go to a Sink. By default, they are written to standard error if their level is at least the one set
+ * with the system property cnp.log.level (VERBOSE, DEBUG, INFO, WARN or ERROR). The default level is WARN, since
+ * logging every segment would slow down the stack a lot. An Android app sets a sink which passes the messages on to
+ * android.util.Log.
+ */
+public final class Log {
+
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	public static final int ASSERT = 7;
+
+	/**
+	 * Destination of the log messages.
+	 */
+	public interface Sink {
+
+		/**
+		 * @return false if messages of this level are not written, so they need not be made
+		 */
+		boolean isLoggable(String tag, int level);
+
+		/**
+		 * writes a message.
+		 * @param tr the exception to log with it, or null
+		 */
+		void println(int level, String tag, String msg, Throwable tr);
+	}
+
+	/**
+	 * Writes the messages to standard error.
+	 */
+	public static final class StandardErrorSink implements Sink {
+
+		private static final String[] NAMES = {"", "", "V", "D", "I", "W", "E", "A"};
+
+		private final int level;
+
+		/**
+		 * @param level the lowest level written
+		 */
+		public StandardErrorSink(int level){
+			this.level = level;
+		}
+
+		public boolean isLoggable(String tag, int level){
+			return level >= this.level;
+		}
+
+		public void println(int level, String tag, String msg, Throwable tr){
+			System.err.println(NAMES[level] + "/" + tag + ": " + msg);
+			if (tr != null){
+				tr.printStackTrace();
+			}
+		}
+	}
+
+	private static volatile Sink sink = new StandardErrorSink(parseLevel(System.getProperty("cnp.log.level", "WARN")));
+
+	private Log(){
+	}
+
+	private static int parseLevel(String name){
+		if (name.equalsIgnoreCase("VERBOSE")){
+			return VERBOSE;
+		} else if (name.equalsIgnoreCase("DEBUG")){
+			return DEBUG;
+		} else if (name.equalsIgnoreCase("INFO")){
+			return INFO;
+		} else if (name.equalsIgnoreCase("ERROR")){
+			return ERROR;
+		}
+		return WARN;
+	}
+
+	/**
+	 * @param s the destination of the messages from now on
+	 */
+	public static void setSink(Sink s){
+		if (s == null){
+			throw new NullPointerException("sink");
+		}
+		sink = s;
+	}
+
+	public static Sink getSink(){
+		return sink;
+	}
+
+	public static boolean isLoggable(String tag, int level){
+		return sink.isLoggable(tag, level);
+	}
+
+	public static int v(String tag, String msg){
+		return print(VERBOSE, tag, msg, null);
+	}
+
+	public static int d(String tag, String msg){
+		return print(DEBUG, tag, msg, null);
+	}
+
+	public static int i(String tag, String msg){
+		return print(INFO, tag, msg, null);
+	}
+
+	public static int w(String tag, String msg){
+		return print(WARN, tag, msg, null);
+	}
+
+	public static int w(String tag, String msg, Throwable tr){
+		return print(WARN, tag, msg, tr);
+	}
+
+	public static int e(String tag, String msg){
+		return print(ERROR, tag, msg, null);
+	}
+
+	public static int e(String tag, String msg, Throwable tr){
+		return print(ERROR, tag, msg, tr);
+	}
+
+	private static int print(int level, String tag, String msg, Throwable tr){
+		Sink s = sink;
+		if (s.isLoggable(tag, level)){
+			s.println(level, tag, msg, tr);
+		}
+		return 0;
+	}
+}
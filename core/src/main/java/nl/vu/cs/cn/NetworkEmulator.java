@@ -0,0 +1,143 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.IP.Packet;
+
+/**
+ * An IP layer in front of another one, which sends the packets over emulated links (see NetworkLink): delayed,
+ * lost, duplicated, reordered and limited in bandwidth. Use it to run a stack under the conditions of a wide area
+ * network, e.g. new TCP(new NetworkEmulator(new IP(1), NetworkLink.parse("delay=50,jitter=5,loss=1", 1))).
+ * <br/>
+ * Every destination can have a link of its own; the other packets go over the default link. The links only affect
+ * the packets sent; receiving goes straight to the IP layer below. Packets which are not delayed are sent at once, the
+ * others by a background thread when their time comes.
+ */
+public class NetworkEmulator implements IPTransport {
+
+	/**
+	 * A packet waiting for its time to be sent.
+	 */
+	private static final class Delivery implements Delayed {
+		final Packet packet;
+		final long time;
+		/**deliveries at the same time are sent in the order they were made*/
+		final long order;
+
+		Delivery(Packet packet, long time, long order){
+			this.packet = packet;
+			this.time = time;
+			this.order = order;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			Delivery d = (Delivery) o;
+			if (time != d.time){
+				return time - d.time < 0 ? -1 : 1;
+			}
+			return order < d.order ? -1 : (order == d.order ? 0 : 1);
+		}
+	}
+
+	private final IPTransport ip;
+	private final NetworkLink defaultLink;
+	private final Map<Integer, NetworkLink> links;
+	private final DelayQueue<Delivery> queue;
+	private long order;
+	private Thread sender;
+
+	/**
+	 * @param ip the IP layer to send and receive the packets with
+	 * @param defaultLink the link for the destinations without a link of their own
+	 */
+	public NetworkEmulator(IPTransport ip, NetworkLink defaultLink){
+		this.ip = ip;
+		this.defaultLink = defaultLink;
+		links = new HashMap<Integer, NetworkLink>();
+		queue = new DelayQueue<Delivery>();
+	}
+
+	/**
+	 * sets the link to a destination.
+	 */
+	public synchronized void setLink(IpAddress destination, NetworkLink link){
+		links.put(destination.getAddress(), link);
+	}
+
+	/**
+	 * @return the link to a destination
+	 */
+	public synchronized NetworkLink getLink(IpAddress destination){
+		NetworkLink link = links.get(destination.getAddress());
+		return link != null ? link : defaultLink;
+	}
+
+	public IpAddress getLocalAddress() {
+		return ip.getLocalAddress();
+	}
+
+	public int ip_send(Packet p) throws IOException {
+		long now = System.nanoTime();
+		long[] arrivals = new long[2];
+		int copies;
+		synchronized(this){
+			NetworkLink link = links.get(p.destination);
+			copies = (link != null ? link : defaultLink).transmit(p.length, now, arrivals);
+			for (int i = 0; i < copies; i++){
+				if (arrivals[i] > now){
+					//the sender may reuse its packet
+					Packet copy = new Packet(p.destination, p.protocol, p.id, new byte[p.length], p.length);
+					copy.source = p.source;
+					System.arraycopy(p.data, 0, copy.data, 0, p.length);
+					queue.add(new Delivery(copy, arrivals[i], order++));
+					startSender();
+				}
+			}
+		}
+		for (int i = 0; i < copies; i++){
+			if (arrivals[i] <= now){
+				ip.ip_send(p);
+			}
+		}
+		return p.length;
+	}
+
+	private void startSender(){
+		if (sender != null){
+			return;
+		}
+		sender = new Thread(new Runnable() {
+			public void run() {
+				while (true){
+					try {
+						ip.ip_send(queue.take().packet);
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						Log.e("NetworkEmulator", "Failed sending delayed packet", e);
+					}
+				}
+			}
+		}, "network emulator " + ip.getLocalAddress());
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	public void ip_receive(Packet p) throws IOException {
+		ip.ip_receive(p);
+	}
+
+	public void ip_receive_timeout(Packet p, int timeout) throws IOException, InterruptedException {
+		ip.ip_receive_timeout(p, timeout);
+	}
+}
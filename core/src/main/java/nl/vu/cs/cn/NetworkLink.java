@@ -0,0 +1,298 @@
+package nl.vu.cs.cn;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * Model of one direction of a network link, like the netem queueing discipline of Linux: delay with jitter, loss,
+ * duplication, reordering, a bandwidth limit and a queue limit. It decides what happens to each packet sent over the
+ * link, and when the packet arrives; NetworkEmulator and Simulator carry out the decisions.
+ * <br/>
+ * A packet first waits in a FIFO queue for the token bucket, which lets through rate bytes per second on average and
+ * bursts of at most burst bytes. If limit packets are waiting already, the packet is dropped. Then it is delayed by
+ * the delay plus a random jitter, drawn from the distribution. With the reorder probability, a packet skips the delay
+ * instead, so it overtakes the packets before it. The random decisions come from a generator with the given seed.
+ * <br/>
+ * A link can be configured from a specification like "delay=50,jitter=10,distribution=normal,loss=1,duplicate=0.5,
+ * reorder=5,rate=125000,burst=16384,limit=100,seed=1", see parse(). Times are in milliseconds, probabilities in
+ * percent, rate and burst in bytes (per second). Everything is off by default.
+ * <br/>
+ * Not thread safe: a link is used by one sender at a time.
+ */
+public class NetworkLink {
+
+	/**
+	 * The distribution of the jitter.
+	 */
+	public enum Distribution {
+		/**uniform between -jitter and +jitter*/
+		UNIFORM,
+		/**normal with jitter as its standard deviation*/
+		NORMAL,
+		/**Pareto (shape 3) with jitter as its mean, so mostly small with a heavy tail of long delays*/
+		PARETO
+	}
+
+	static final double PARETO_SHAPE = 3;
+
+	private final Random random;
+
+	private long delayNanos;
+	private long jitterNanos;
+	private Distribution distribution;
+	private double loss;
+	private double duplicate;
+	private double reorder;
+	private long rate;
+	private long burst;
+	private int limit;
+
+	/**bytes the token bucket can let through at once*/
+	private double tokens;
+	private long refilledAt;
+	/**the times at which the packets in the queue leave it, in order*/
+	private final LinkedList<Long> queue;
+	private long lastDeparture;
+
+	private long packets;
+	private long lost;
+	private long queueDrops;
+	private long duplicated;
+	private long reordered;
+
+	/**
+	 * creates a link which delivers every packet at once.
+	 * @param seed the seed of the random decisions
+	 */
+	public NetworkLink(long seed){
+		random = new Random(seed);
+		distribution = Distribution.UNIFORM;
+		queue = new LinkedList<Long>();
+		refilledAt = lastDeparture = Long.MIN_VALUE;
+	}
+
+	/**
+	 * @param spec a specification, see the class description
+	 * @param seed the seed, unless the specification gives one
+	 * @throws IllegalArgumentException if the specification is invalid
+	 */
+	public static NetworkLink parse(String spec, long seed){
+		String[] options = spec.trim().length() == 0 ? new String[0] : spec.split(",");
+		//the seed first, since it cannot be changed afterwards
+		for (String option : options){
+			if (option.trim().startsWith("seed=")){
+				seed = Long.parseLong(option.trim().substring(5));
+			}
+		}
+		NetworkLink link = new NetworkLink(seed);
+		for (String option : options){
+			int eq = option.indexOf('=');
+			if (eq < 0){
+				throw new IllegalArgumentException("invalid link option: " + option);
+			}
+			String key = option.substring(0, eq).trim();
+			String value = option.substring(eq + 1).trim();
+			try {
+				if (key.equals("delay")){
+					link.setDelay(Double.parseDouble(value));
+				} else if (key.equals("jitter")){
+					link.setJitter(Double.parseDouble(value));
+				} else if (key.equals("distribution")){
+					link.setDistribution(Distribution.valueOf(value.toUpperCase()));
+				} else if (key.equals("loss")){
+					link.setLoss(Double.parseDouble(value) / 100);
+				} else if (key.equals("duplicate")){
+					link.setDuplicate(Double.parseDouble(value) / 100);
+				} else if (key.equals("reorder")){
+					link.setReorder(Double.parseDouble(value) / 100);
+				} else if (key.equals("rate")){
+					link.setRate(Long.parseLong(value), link.burst);
+				} else if (key.equals("burst")){
+					link.setRate(link.rate, Long.parseLong(value));
+				} else if (key.equals("limit")){
+					link.setLimit(Integer.parseInt(value));
+				} else if (!key.equals("seed")){
+					throw new IllegalArgumentException("unknown link option: " + key);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("invalid link option: " + option);
+			}
+		}
+		return link;
+	}
+
+	/**
+	 * @param millis the mean one-way delay
+	 */
+	public void setDelay(double millis){
+		delayNanos = (long) (millis * 1000000);
+	}
+
+	/**
+	 * @param millis the variation of the delay, see Distribution
+	 */
+	public void setJitter(double millis){
+		jitterNanos = (long) (millis * 1000000);
+	}
+
+	public void setDistribution(Distribution distribution){
+		this.distribution = distribution;
+	}
+
+	/**
+	 * @param probability the probability (0-1) that a packet is lost
+	 */
+	public void setLoss(double probability){
+		loss = probability;
+	}
+
+	/**
+	 * @param probability the probability (0-1) that a packet arrives twice
+	 */
+	public void setDuplicate(double probability){
+		duplicate = probability;
+	}
+
+	/**
+	 * @param probability the probability (0-1) that a packet is not delayed, and so overtakes the packets before it
+	 */
+	public void setReorder(double probability){
+		reorder = probability;
+	}
+
+	/**
+	 * @param bytesPerSecond the bandwidth, or 0 for no limit
+	 * @param burst the number of bytes which may be sent at once after the link was idle, at least one packet. If 0,
+	 * one maximum sized segment.
+	 */
+	public void setRate(long bytesPerSecond, long burst){
+		rate = bytesPerSecond;
+		this.burst = burst;
+	}
+
+	/**
+	 * @param packets the maximum number of packets waiting for the bandwidth limit, or 0 for no limit
+	 */
+	public void setLimit(int packets){
+		limit = packets;
+	}
+
+	/**
+	 * decides what happens to a packet sent over the link.
+	 * @param length the size of the packet in bytes
+	 * @param now the time of sending, in nanoseconds
+	 * @param arrivals filled in with the times (nanoseconds) at which the copies of the packet arrive; at least 2 long
+	 * @return the number of copies which arrive: 0 if the packet is lost, 2 if it is duplicated
+	 */
+	int transmit(int length, long now, long[] arrivals){
+		packets++;
+
+		long departure = now;
+		if (rate > 0){
+			//leave the queue
+			while (!queue.isEmpty() && queue.getFirst() <= now){
+				queue.removeFirst();
+			}
+			if (limit > 0 && queue.size() >= limit){
+				queueDrops++;
+				return 0;
+			}
+			//the packet is sent after the ones in the queue, once the bucket holds enough tokens for it
+			long maxTokens = Math.max(length, burst > 0 ? burst : TCP.MAX_TCPIP_SEGMENT_SIZE);
+			departure = Math.max(now, lastDeparture);
+			if (refilledAt == Long.MIN_VALUE){
+				tokens = maxTokens;
+			} else {
+				tokens = Math.min(maxTokens, tokens + (departure - refilledAt) * (double) rate / 1e9);
+			}
+			if (tokens < length){
+				departure += (long) Math.ceil((length - tokens) * 1e9 / rate);
+				tokens = 0;
+			} else {
+				tokens -= length;
+			}
+			refilledAt = departure;
+			lastDeparture = departure;
+			queue.addLast(departure);
+		}
+
+		if (random.nextDouble() < loss){
+			lost++;
+			return 0;
+		}
+		long delay;
+		if (reorder > 0 && random.nextDouble() < reorder){
+			reordered++;
+			delay = 0;
+		} else {
+			delay = Math.max(0, delayNanos + jitter());
+		}
+		arrivals[0] = departure + delay;
+		if (duplicate > 0 && random.nextDouble() < duplicate){
+			duplicated++;
+			arrivals[1] = arrivals[0];
+			return 2;
+		}
+		return 1;
+	}
+
+	/**
+	 * @return a random variation of the delay, in nanoseconds
+	 */
+	private long jitter(){
+		if (jitterNanos == 0){
+			return 0;
+		}
+		switch (distribution){
+		case NORMAL:
+			return (long) (random.nextGaussian() * jitterNanos);
+		case PARETO:
+			//Pareto with minimum m has mean m * shape / (shape - 1)
+			double m = jitterNanos * (PARETO_SHAPE - 1) / PARETO_SHAPE;
+			return (long) (m / Math.pow(1 - random.nextDouble(), 1 / PARETO_SHAPE));
+		default:
+			return (long) ((random.nextDouble() * 2 - 1) * jitterNanos);
+		}
+	}
+
+	/**
+	 * @return the number of packets sent over the link
+	 */
+	public long getPackets(){
+		return packets;
+	}
+
+	/**
+	 * @return the number of packets lost at random
+	 */
+	public long getLost(){
+		return lost;
+	}
+
+	/**
+	 * @return the number of packets dropped because the queue was full
+	 */
+	public long getQueueDrops(){
+		return queueDrops;
+	}
+
+	/**
+	 * @return the number of packets which arrived twice
+	 */
+	public long getDuplicated(){
+		return duplicated;
+	}
+
+	/**
+	 * @return the number of packets which skipped the delay
+	 */
+	public long getReordered(){
+		return reordered;
+	}
+
+	public String toString(){
+		return "delay=" + delayNanos / 1e6 + ",jitter=" + jitterNanos / 1e6 + ",distribution=" +
+				distribution.name().toLowerCase() + ",loss=" + loss * 100 + ",duplicate=" + duplicate * 100 +
+				",reorder=" + reorder * 100 + ",rate=" + rate + ",burst=" + burst + ",limit=" + limit;
+	}
+}
@@ -0,0 +1,271 @@
+package nl.vu.cs.cn;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.vu.cs.cn.IP.Packet;
+
+/**
+ * Writes the packets sent and received by a TCP stack to pcap files, which can be opened with Wireshark or tcpdump.
+ * Enable it with TCP.setCapture().
+ * <br/>
+ * The IP layer only gives the addresses, protocol and id of a packet, so an IPv4 header is made up from those (without
+ * options, TTL 64) and written before the TCP segment. The files use the raw IP link type.
+ * <br/>
+ * The stack threads only copy the packet into a queue; a background thread writes the files through a buffer. If
+ * the queue is full, the packet is dropped from the capture rather than slowing down the stack. To reduce the
+ * overhead further, only one out of every n packets can be captured, and packets can be cut at a snapshot length.
+ * <br/>
+ * With rotation, a new file is started when the current one reaches the maximum size, named like tcpdump does: the
+ * given file name, then the name followed by 1, 2, ... Only the last maxFiles files are kept.
+ */
+public class PacketCapture {
+
+	/**default maximum number of bytes captured of a packet, IP header included: all of it*/
+	public static final int DEFAULT_SNAPLEN = 65535;
+
+	/**default number of packets that can wait for the writer thread*/
+	public static final int DEFAULT_QUEUE_SIZE = 4096;
+
+	static final int PCAP_MAGIC = 0xa1b2c3d4;
+	static final int PCAP_HEADER_LENGTH = 24;
+	static final int RECORD_HEADER_LENGTH = 16;
+	/**link type of raw IPv4/IPv6 packets without a link layer header*/
+	static final int LINKTYPE_RAW = 101;
+
+	/**
+	 * A captured packet, waiting to be written.
+	 */
+	private static final class Record {
+		final long micros;
+		final int origLen;
+		final byte[] bytes;
+
+		Record(long micros, int origLen, byte[] bytes){
+			this.micros = micros;
+			this.origLen = origLen;
+			this.bytes = bytes;
+		}
+	}
+
+	/**put in the queue by close() to stop the writer*/
+	private static final Record END = new Record(0, 0, new byte[0]);
+
+	private final File file;
+	private final int snaplen;
+	private final int sampleEvery;
+	private final long maxFileBytes;
+	private final int maxFiles;
+
+	private final ArrayBlockingQueue<Record> queue;
+	private final Thread writer;
+	private volatile boolean closed;
+
+	/**counts the packets offered, for the sampling*/
+	private final AtomicLong offered;
+	private final AtomicLong captured;
+	private final AtomicLong dropped;
+
+	/**wall clock time (microseconds) at startNanos, so that the timestamps have microsecond resolution*/
+	private final long startMicros;
+	private final long startNanos;
+
+	/**
+	 * captures all of every packet to one file.
+	 * @param file the pcap file to write. An existing file is overwritten.
+	 * @throws IOException if the file cannot be created
+	 */
+	public PacketCapture(File file) throws IOException {
+		this(file, DEFAULT_SNAPLEN, 1, 0, 1);
+	}
+
+	/**
+	 * @param file the (first) pcap file to write. Existing files are overwritten.
+	 * @param snaplen the maximum number of bytes captured of a packet, IP header included
+	 * @param sampleEvery capture only one out of this many packets; 1 captures all packets
+	 * @param maxFileBytes start a new file when a file would grow beyond this many bytes; 0 to write one file
+	 * @param maxFiles the number of files to keep when rotating; older files are deleted
+	 * @throws IOException if the file cannot be created
+	 */
+	public PacketCapture(File file, int snaplen, int sampleEvery, long maxFileBytes, int maxFiles) throws IOException {
+		if (snaplen < 1 || sampleEvery < 1 || maxFileBytes < 0 || maxFiles < 1){
+			throw new IllegalArgumentException("invalid capture options");
+		}
+		this.file = file;
+		this.snaplen = snaplen;
+		this.sampleEvery = sampleEvery;
+		this.maxFileBytes = maxFileBytes;
+		this.maxFiles = maxFiles;
+		queue = new ArrayBlockingQueue<Record>(DEFAULT_QUEUE_SIZE);
+		offered = new AtomicLong();
+		captured = new AtomicLong();
+		dropped = new AtomicLong();
+		startMicros = System.currentTimeMillis() * 1000;
+		startNanos = System.nanoTime();
+
+		//fail here rather than in the writer thread if the file cannot be written
+		final DataOutputStream out = open(file);
+		writer = new Thread(new Runnable() {
+			public void run() {
+				write(out);
+			}
+		}, "pcap writer " + file.getName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * captures a packet sent or received by the stack. Does not block.
+	 * @param p the packet, with its source, destination, protocol, id and data filled in
+	 */
+	void capture(Packet p){
+		if (closed || (sampleEvery > 1 && offered.getAndIncrement() % sampleEvery != 0)){
+			return;
+		}
+		int origLen = IPV4_HEADER_LENGTH + p.length;
+		byte[] bytes = new byte[Math.min(origLen, snaplen)];
+		writeIpHeader(bytes, p);
+		if (bytes.length > IPV4_HEADER_LENGTH){
+			System.arraycopy(p.data, 0, bytes, IPV4_HEADER_LENGTH, bytes.length - IPV4_HEADER_LENGTH);
+		}
+		long micros = startMicros + (System.nanoTime() - startNanos) / 1000;
+		if (queue.offer(new Record(micros, origLen, bytes))){
+			captured.incrementAndGet();
+		} else {
+			dropped.incrementAndGet();
+		}
+	}
+
+	static final int IPV4_HEADER_LENGTH = 20;
+
+	/**
+	 * fills in the IPv4 header of a packet, as far as it fits in the array.
+	 */
+	private static void writeIpHeader(byte[] bytes, Packet p){
+		byte[] h = new byte[IPV4_HEADER_LENGTH];
+		int total = IPV4_HEADER_LENGTH + p.length;
+		h[0] = 0x45; //version 4, 5 words
+		h[2] = (byte) (total >> 8);
+		h[3] = (byte) total;
+		h[4] = (byte) (p.id >> 8);
+		h[5] = (byte) p.id;
+		h[6] = 0x40; //don't fragment
+		h[8] = 64; //ttl
+		h[9] = (byte) p.protocol;
+		//the addresses are stored with the first octet in the lowest byte
+		for (int i = 0; i < 4; i++){
+			h[12 + i] = (byte) (p.source >> (8 * i));
+			h[16 + i] = (byte) (p.destination >> (8 * i));
+		}
+		int sum = 0;
+		for (int i = 0; i < IPV4_HEADER_LENGTH; i += 2){
+			sum += ((h[i] & 0xff) << 8) | (h[i + 1] & 0xff);
+		}
+		while ((sum >> 16) != 0){
+			sum = (sum & 0xffff) + (sum >> 16);
+		}
+		h[10] = (byte) (~sum >> 8);
+		h[11] = (byte) ~sum;
+		System.arraycopy(h, 0, bytes, 0, Math.min(bytes.length, IPV4_HEADER_LENGTH));
+	}
+
+	/**
+	 * the writer thread: writes the queued packets, flushing whenever the queue runs empty.
+	 */
+	private void write(DataOutputStream out){
+		long written = PCAP_HEADER_LENGTH;
+		int fileIndex = 0;
+		try {
+			while (true){
+				Record r = queue.poll();
+				if (r == null){
+					out.flush();
+					r = queue.take();
+				}
+				if (r == END){
+					break;
+				}
+				long size = RECORD_HEADER_LENGTH + r.bytes.length;
+				if (maxFileBytes > 0 && written + size > maxFileBytes && written > PCAP_HEADER_LENGTH){
+					out.close();
+					fileIndex++;
+					out = open(fileName(fileIndex));
+					written = PCAP_HEADER_LENGTH;
+					if (fileIndex >= maxFiles){
+						fileName(fileIndex - maxFiles).delete();
+					}
+				}
+				out.writeInt((int) (r.micros / 1000000));
+				out.writeInt((int) (r.micros % 1000000));
+				out.writeInt(r.bytes.length);
+				out.writeInt(r.origLen);
+				out.write(r.bytes);
+				written += size;
+			}
+		} catch (IOException e) {
+			Log.e("PacketCapture", "writing the capture failed", e);
+			closed = true;
+		} catch (InterruptedException e) {
+			//stop
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				Log.e("PacketCapture", "closing the capture failed", e);
+			}
+		}
+	}
+
+	/**
+	 * @return the name of the file with the given index, see the class description
+	 */
+	private File fileName(int index){
+		return index == 0 ? file : new File(file.getPath() + index);
+	}
+
+	/**
+	 * creates a file and writes the pcap header.
+	 */
+	private DataOutputStream open(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 65536));
+		out.writeInt(PCAP_MAGIC);
+		out.writeShort(2); //version 2.4
+		out.writeShort(4);
+		out.writeInt(0); //time zone
+		out.writeInt(0); //accuracy of the timestamps
+		out.writeInt(snaplen);
+		out.writeInt(LINKTYPE_RAW);
+		return out;
+	}
+
+	/**
+	 * stops capturing, and waits until the packets captured so far are written and the file is closed.
+	 */
+	public void close() throws InterruptedException {
+		if (closed){
+			return;
+		}
+		closed = true;
+		queue.put(END);
+		writer.join();
+	}
+
+	/**
+	 * @return the number of packets captured (written, or waiting to be written)
+	 */
+	public long getCaptured(){
+		return captured.get();
+	}
+
+	/**
+	 * @return the number of packets not captured because the writer thread could not keep up
+	 */
+	public long getDropped(){
+		return dropped.get();
+	}
+}
@@ -0,0 +1,59 @@
+package nl.vu.cs.cn;
+
+import nl.vu.cs.cn.IP.Packet;
+
+/**
+ * Pool of IP packets with data arrays of MAX_TCPIP_SEGMENT_SIZE bytes, so that a stack does not allocate a packet and
+ * its data for every segment it sends or receives. A packet is released as soon as the IP layer sent it, or its
+ * segment is decoded: the transports and the capture copy what they keep.
+ * <br/>
+ * The pool keeps at most capacity packets; more are allocated when needed, and dropped on release.
+ */
+class PacketPool {
+
+	/**default number of packets kept*/
+	static final int DEFAULT_CAPACITY = 64;
+
+	private final Packet[] free;
+	private int size;
+
+	/**packets created, because the pool was empty*/
+	private long allocated;
+
+	PacketPool(int capacity){
+		free = new Packet[capacity];
+	}
+
+	/**
+	 * @return a packet with a data array of MAX_TCPIP_SEGMENT_SIZE bytes. Its other fields are undefined.
+	 */
+	synchronized Packet acquire(){
+		if (size > 0){
+			Packet p = free[--size];
+			free[size] = null;
+			return p;
+		}
+		allocated++;
+		Packet p = new Packet();
+		p.data = new byte[TCP.MAX_TCPIP_SEGMENT_SIZE];
+		return p;
+	}
+
+	/**
+	 * returns a packet to the pool. The caller must not use it anymore.
+	 */
+	synchronized void release(Packet p){
+		//the JNI layer may have replaced the data array
+		if (size == free.length || p.data == null || p.data.length != TCP.MAX_TCPIP_SEGMENT_SIZE){
+			return;
+		}
+		free[size++] = p;
+	}
+
+	/**
+	 * @return the number of packets created so far. Does not grow once the pool is warm.
+	 */
+	synchronized long getAllocated(){
+		return allocated;
+	}
+}
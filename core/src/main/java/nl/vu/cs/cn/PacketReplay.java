@@ -0,0 +1,413 @@
+package nl.vu.cs.cn;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.IP.Packet;
+import nl.vu.cs.cn.TCPSegment.TCPSegmentType;
+
+/**
+ * Replays the TCP packets of a pcap file into the receive path of a TCP stack (decoding, checksum, demultiplexing,
+ * state machine), as fast as possible and without a network or timers. Useful to benchmark the receive path with real
+ * traffic, and as a regression test: a replay always gives the same counters.
+ * <br/>
+ * The stack takes the place of one address of the capture, the local address. The packets sent to it are delivered;
+ * the packets it sent are not, but they tell what the application did: the connections it opened or accepted, the
+ * data it wrote and when it closed. The replay does the same on the stack, and uses the initial sequence numbers of the
+ * capture, so that the stack sends the same segments and the replayed acks fit. The applications read the data as
+ * soon as it arrives. What the stack sends is dropped.
+ * <br/>
+ * Captures of PacketCapture can be replayed, and captures of tcpdump with raw IP, Ethernet or Linux cooked link
+ * types. Packets which are not TCP over IPv4, fragmented or truncated are skipped.
+ * <br/>
+ * Usage: PacketReplay file.pcap [-a local address] [-r repetitions]
+ */
+public class PacketReplay {
+
+	static final String USAGE = "usage: PacketReplay file.pcap [-a local address] [-r repetitions]";
+
+	static final int LINKTYPE_ETHERNET = 1;
+	static final int LINKTYPE_RAW = 101;
+	static final int LINKTYPE_LINUX_SLL = 113;
+	static final int LINKTYPE_IPV4 = 228;
+
+	/**
+	 * An IP layer which drops the packets sent by the replayed stack. Nothing is received from it: the replay delivers
+	 * the packets.
+	 */
+	private static class ReplayTransport implements IPTransport {
+		private final IpAddress address;
+
+		ReplayTransport(IpAddress address){
+			this.address = address;
+		}
+
+		public IpAddress getLocalAddress() {
+			return address;
+		}
+
+		public int ip_send(Packet p) {
+			return p.length;
+		}
+
+		public void ip_receive(Packet p) throws IOException {
+			throw new IOException("nothing to receive during a replay");
+		}
+
+		public void ip_receive_timeout(Packet p, int timeout) throws IOException {
+			throw new IOException("nothing to receive during a replay");
+		}
+	}
+
+	/**
+	 * What to do for a packet of the capture.
+	 */
+	private enum Action {
+		/**deliver the packet to the stack*/
+		DELIVER,
+		/**open a connection from the local port*/
+		CONNECT,
+		/**a listening socket on the local port accepted the connection*/
+		ACCEPTED,
+		/**write the data of the segment*/
+		WRITE,
+		/**close the connection*/
+		CLOSE
+	}
+
+	private static final class Step {
+		final Action action;
+		final long key;
+		final Packet packet;
+		final TCPSegment seg;
+
+		Step(Action action, long key, Packet packet, TCPSegment seg){
+			this.action = action;
+			this.key = key;
+			this.packet = packet;
+			this.seg = seg;
+		}
+	}
+
+	private final IpAddress local;
+	private final List<Step> steps;
+
+	/**initial sequence numbers of the capture, by connection key, in the order of the connections*/
+	private final Map<Long, List<Long>> isns;
+
+	/**the number of connections accepted, by local port*/
+	private final Map<Integer, Integer> accepts;
+
+	private int delivered;
+
+	/**
+	 * @param trace the packets of a capture, in order, as read by read()
+	 * @param local the address of the capture the stack takes the place of
+	 */
+	public PacketReplay(List<Packet> trace, IpAddress local){
+		this.local = local;
+		steps = new ArrayList<Step>();
+		isns = new HashMap<Long, List<Long>>();
+		accepts = new HashMap<Integer, Integer>();
+
+		//the initial and the next sequence number the local side used, by connection
+		Map<Long, Long> isn = new HashMap<Long, Long>();
+		Map<Long, Long> nextSeqnr = new HashMap<Long, Long>();
+		for (Packet p : trace){
+			TCPSegment seg = TCPSegment.decode(p.data, p.length);
+			if (p.destination == local.getAddress()){
+				steps.add(new Step(Action.DELIVER, TCP.connectionKey(seg.dest_port, p.source, seg.src_port), p, null));
+				delivered++;
+				continue;
+			} else if (p.source != local.getAddress()){
+				continue;
+			}
+
+			long key = TCP.connectionKey(seg.src_port, p.destination, seg.dest_port);
+			TCPSegmentType type = seg.getSegmentType();
+			Long first = isn.get(key);
+			if (type == TCPSegmentType.SYN || type == TCPSegmentType.SYNACK){
+				if (first != null && first.longValue() == seg.seq_nr){
+					//retransmission
+					continue;
+				}
+				isn.put(key, seg.seq_nr);
+				nextSeqnr.put(key, (seg.seq_nr + 1) % (TCPControlBlock.UINT_32_MAX + 1));
+				List<Long> l = isns.get(key);
+				if (l == null){
+					isns.put(key, l = new ArrayList<Long>());
+				}
+				l.add(seg.seq_nr);
+				if (type == TCPSegmentType.SYN){
+					steps.add(new Step(Action.CONNECT, key, p, seg));
+				} else {
+					Integer n = accepts.get(seg.src_port);
+					accepts.put(seg.src_port, n == null ? 1 : n + 1);
+					steps.add(new Step(Action.ACCEPTED, key, p, seg));
+				}
+			} else if (first == null){
+				//the start of the connection is not in the capture
+				continue;
+			} else if (seg.data.length > 0 && nextSeqnr.get(key).longValue() == seg.seq_nr){
+				nextSeqnr.put(key, (seg.seq_nr + seg.data.length) % (TCPControlBlock.UINT_32_MAX + 1));
+				steps.add(new Step(Action.WRITE, key, p, seg));
+			} else if ((type == TCPSegmentType.FIN || type == TCPSegmentType.FINACK) &&
+					nextSeqnr.get(key).longValue() == seg.seq_nr){
+				nextSeqnr.put(key, (seg.seq_nr + 1) % (TCPControlBlock.UINT_32_MAX + 1));
+				steps.add(new Step(Action.CLOSE, key, p, seg));
+			}
+		}
+	}
+
+	/**
+	 * @return the number of packets delivered to the stack by a replay
+	 */
+	public int getDelivered(){
+		return delivered;
+	}
+
+	/**
+	 * replays the capture into a new stack.
+	 * @return the counters of the stack afterwards
+	 */
+	public TCPMetrics run(){
+		TCP stack = new TCP(new ReplayTransport(local), Clock.SYSTEM, false);
+
+		final Map<Long, LinkedList<Long>> unused = new HashMap<Long, LinkedList<Long>>();
+		for (Map.Entry<Long, List<Long>> e : isns.entrySet()){
+			unused.put(e.getKey(), new LinkedList<Long>(e.getValue()));
+		}
+		stack.setSequenceNumberSource(new TCP.SequenceNumberSource() {
+			public long initialSeqnr(SocketAddress local, SocketAddress remote) {
+				LinkedList<Long> l = unused.get(TCP.connectionKey(local.getPort(), remote.getIp().getAddress(),
+						remote.getPort()));
+				return l == null || l.isEmpty() ? -1 : l.removeFirst();
+			}
+		});
+
+		//all listening sockets are there from the start; the stack hands the SYNs to them in this order
+		Map<Integer, LinkedList<TCP.Socket>> listening = new HashMap<Integer, LinkedList<TCP.Socket>>();
+		for (Map.Entry<Integer, Integer> e : accepts.entrySet()){
+			LinkedList<TCP.Socket> l = new LinkedList<TCP.Socket>();
+			for (int i = 0; i < e.getValue(); i++){
+				TCP.Socket sock = stack.socket(e.getKey());
+				sock.setNonBlocking(true);
+				sock.acceptAsync();
+				l.add(sock);
+			}
+			listening.put(e.getKey(), l);
+		}
+
+		Map<Long, TCP.Socket> sockets = new HashMap<Long, TCP.Socket>();
+		byte[] buf = new byte[TCP.MAX_DATA_LENGTH];
+		for (Step step : steps){
+			TCP.Socket sock = sockets.get(step.key);
+			switch (step.action){
+			case DELIVER:
+				stack.deliver(step.packet);
+				//the application reads the data at once
+				while (sock != null && sock.getReceiveBufferUsed() > 0 && sock.read(buf, 0, buf.length) > 0);
+				break;
+			case CONNECT:
+				sock = stack.clientSocket(step.seg.src_port);
+				sock.setNonBlocking(true);
+				sock.connectAsync(IpAddress.getAddress(step.packet.destination), step.seg.dest_port);
+				sockets.put(step.key, sock);
+				break;
+			case ACCEPTED:
+				LinkedList<TCP.Socket> l = listening.get(step.seg.src_port);
+				if (!l.isEmpty()){
+					sockets.put(step.key, l.removeFirst());
+				}
+				break;
+			case WRITE:
+				if (sock != null){
+					sock.write(step.seg.data, 0, step.seg.data.length);
+				}
+				break;
+			case CLOSE:
+				if (sock != null){
+					sock.close();
+				}
+				break;
+			}
+		}
+		return stack.getMetrics();
+	}
+
+	/**
+	 * reads the TCP packets of a pcap file.
+	 * @return the TCP over IPv4 packets, in order, with the addresses, protocol, id and the TCP segment filled in
+	 * @throws IOException if the file cannot be read, or is no pcap file of a supported link type
+	 */
+	public static List<Packet> read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int magic = in.readInt();
+			boolean swap;
+			if (magic == 0xa1b2c3d4 || magic == 0xa1b23c4d){
+				swap = false;
+			} else if (magic == 0xd4c3b2a1 || magic == 0x4d3cb2a1){
+				swap = true;
+			} else {
+				throw new IOException("not a pcap file: " + file);
+			}
+			//version, time zone, timestamp accuracy, snaplen
+			in.skipBytes(16);
+			int linkType = readInt(in, swap);
+			int linkHeader;
+			switch (linkType){
+			case LINKTYPE_RAW:
+			case LINKTYPE_IPV4:
+				linkHeader = 0;
+				break;
+			case LINKTYPE_ETHERNET:
+				linkHeader = 14;
+				break;
+			case LINKTYPE_LINUX_SLL:
+				linkHeader = 16;
+				break;
+			default:
+				throw new IOException("unsupported link type " + linkType + " in " + file);
+			}
+
+			List<Packet> packets = new ArrayList<Packet>();
+			while (true){
+				try {
+					//timestamp
+					in.readInt();
+				} catch (EOFException e) {
+					return packets;
+				}
+				in.readInt();
+				int captured = readInt(in, swap);
+				in.readInt();
+				byte[] record = new byte[captured];
+				in.readFully(record);
+				Packet p = parse(record, linkType, linkHeader);
+				if (p != null){
+					packets.add(p);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int readInt(DataInputStream in, boolean swap) throws IOException {
+		int i = in.readInt();
+		return swap ? Integer.reverseBytes(i) : i;
+	}
+
+	/**
+	 * @return the TCP packet in a record, or null if it holds no complete, unfragmented TCP over IPv4 packet
+	 */
+	private static Packet parse(byte[] record, int linkType, int linkHeader){
+		int ethertype = -1;
+		if (linkType == LINKTYPE_ETHERNET && record.length >= linkHeader){
+			ethertype = ((record[12] & 0xff) << 8) | (record[13] & 0xff);
+		} else if (linkType == LINKTYPE_LINUX_SLL && record.length >= linkHeader){
+			ethertype = ((record[14] & 0xff) << 8) | (record[15] & 0xff);
+		}
+		if (linkHeader > 0 && ethertype != 0x0800){
+			return null;
+		}
+
+		int o = linkHeader;
+		if (record.length < o + TCP.IP_HEADER_LENGTH || (record[o] & 0xf0) != 0x40){
+			return null;
+		}
+		int headerLength = (record[o] & 0x0f) * 4;
+		int total = ((record[o + 2] & 0xff) << 8) | (record[o + 3] & 0xff);
+		boolean fragment = (record[o + 6] & 0x3f) != 0 || record[o + 7] != 0;
+		if (record[o + 9] != IP.TCP_PROTOCOL || fragment || total > record.length - o ||
+				total < headerLength + TCPSegment.HEADER_LENGTH){
+			return null;
+		}
+
+		byte[] data = new byte[total - headerLength];
+		System.arraycopy(record, o + headerLength, data, 0, data.length);
+		Packet p = new Packet(address(record, o + 16), IP.TCP_PROTOCOL,
+				((record[o + 4] & 0xff) << 8) | (record[o + 5] & 0xff), data, data.length);
+		p.source = address(record, o + 12);
+		return p;
+	}
+
+	/**
+	 * @return the address at the given offset, in "host" order (the first octet in the lowest byte)
+	 */
+	private static int address(byte[] b, int offset){
+		return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8 | (b[offset + 2] & 0xff) << 16 | (b[offset + 3] & 0xff) << 24;
+	}
+
+	/**
+	 * @return the address which sent the first SYNACK of the capture (the first server), or else the destination
+	 * of the first packet
+	 */
+	static IpAddress guessLocal(List<Packet> trace){
+		for (Packet p : trace){
+			if (TCPSegment.decode(p.data, p.length).getSegmentType() == TCPSegmentType.SYNACK){
+				return IpAddress.getAddress(p.source);
+			}
+		}
+		return trace.isEmpty() ? null : IpAddress.getAddress(trace.get(0).destination);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1){
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		String address = null;
+		int repetitions = 10;
+		for (int i = 1; i < args.length; i += 2){
+			if (i + 1 >= args.length){
+				System.err.println(USAGE);
+				System.exit(2);
+			} else if (args[i].equals("-a")){
+				address = args[i + 1];
+			} else if (args[i].equals("-r")){
+				repetitions = Integer.parseInt(args[i + 1]);
+			} else {
+				System.err.println(USAGE);
+				System.exit(2);
+			}
+		}
+
+		List<Packet> trace = read(new File(args[0]));
+		IpAddress local = address != null ? IpAddress.getAddress(address) : guessLocal(trace);
+		if (local == null){
+			System.err.println("no TCP packets in " + args[0]);
+			System.exit(1);
+		}
+		PacketReplay replay = new PacketReplay(trace, local);
+		System.out.println("replaying " + replay.getDelivered() + " of " + trace.size() + " TCP packets into " + local);
+
+		TCPMetrics m = null;
+		for (int i = 0; i < repetitions; i++){
+			long t = System.nanoTime();
+			m = replay.run();
+			long elapsed = System.nanoTime() - t;
+			System.out.println("run " + (i + 1) + ": " + String.format("%.3f", elapsed / 1e6) + " ms, " +
+					String.format("%.0f", replay.getDelivered() / (elapsed / 1e9)) + " packets/s");
+		}
+		if (m != null){
+			System.out.println("segments received: " + m.getSegmentsReceived() + ", sent: " + m.getSegmentsSent());
+			System.out.println("bytes received:    " + m.getBytesReceived() + ", sent: " + m.getBytesSent());
+			System.out.println("out of order:      " + m.getOutOfOrderDrops() + ", checksum failures: " +
+					m.getChecksumFailures() + ", invalid: " + m.getInvalidSegments() + ", unmatched: " +
+					m.getUnmatchedSegments());
+			System.out.println("states entered:    " + m.getStateTransitions());
+		}
+	}
+}
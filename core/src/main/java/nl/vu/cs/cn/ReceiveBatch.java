@@ -0,0 +1,104 @@
+package nl.vu.cs.cn;
+
+/**
+ * Coalesces the segments of a batch of received packets, like generic receive offload: consecutive in-order data
+ * segments of a connection are merged into one segment, so that the socket acknowledges and wakes up the application
+ * once for all of them. The data is not copied: the receive buffer appends the array of every merged segment.
+ * Segments of different connections may be handled in another order than they arrived; those of one connection keep
+ * their order.
+ * <br/>
+ * Used by one thread at a time: collect a batch with add(), then take the merged segments with poll().
+ */
+class ReceiveBatch {
+
+	/**the most data in a merged segment, the largest window which can be advertised*/
+	static final int MAX_COALESCED_LENGTH = TCP.MAX_WINDOW;
+
+	/**per connection of the batch, its first and last segment and the data length of all of them*/
+	private final TCPSegment[] first;
+	private final TCPSegment[] last;
+	private final long[] keys;
+	private final int[] lengths;
+	private int flows;
+	/**the next flow poll() returns*/
+	private int polled;
+
+	/**
+	 * @param capacity the most segments of a batch
+	 */
+	ReceiveBatch(int capacity){
+		first = new TCPSegment[capacity];
+		last = new TCPSegment[capacity];
+		keys = new long[capacity];
+		lengths = new int[capacity];
+	}
+
+	/**
+	 * adds a received segment to the batch.
+	 * @param seg the segment, with its source_ip set
+	 * @return the earlier segments of the same connection, merged, if seg cannot be merged with them. They must be
+	 * handled before the batch is. Otherwise null.
+	 */
+	TCPSegment add(TCPSegment seg){
+		long key = TCP.connectionKey(seg.dest_port, seg.source_ip.getAddress(), seg.src_port);
+		for (int i = 0; i < flows; i++){
+			if (keys[i] != key){
+				continue;
+			}
+			if (follows(last[i], seg) && lengths[i] + seg.data.length <= MAX_COALESCED_LENGTH){
+				last[i].next = seg;
+				last[i] = seg;
+				lengths[i] += seg.data.length;
+				return null;
+			}
+			TCPSegment before = merge(i);
+			start(i, key, seg);
+			return before;
+		}
+		start(flows++, key, seg);
+		return null;
+	}
+
+	/**
+	 * @return the next merged segment of the batch, or null if all were taken. The batch is empty again then.
+	 */
+	TCPSegment poll(){
+		if (polled == flows){
+			flows = polled = 0;
+			return null;
+		}
+		TCPSegment seg = merge(polled);
+		first[polled] = last[polled] = null;
+		polled++;
+		return seg;
+	}
+
+	private void start(int i, long key, TCPSegment seg){
+		keys[i] = key;
+		first[i] = last[i] = seg;
+		lengths[i] = seg.data.length;
+	}
+
+	/**
+	 * @return true if seg carries the data which comes right after that of prev, with the same acknowledgement
+	 */
+	private static boolean follows(TCPSegment prev, TCPSegment seg){
+		return (prev.syn | prev.fin | seg.syn | seg.fin) == 0 && prev.ack == seg.ack && prev.ack_nr == seg.ack_nr &&
+				prev.data.length > 0 && seg.data.length > 0 &&
+				seg.seq_nr == (prev.seq_nr + prev.data.length) % (TCPControlBlock.UINT_32_MAX + 1);
+	}
+
+	/**
+	 * merges the segments of flow i into the first one: the data of the others stays in their arrays, chained to it
+	 * by next, and it gets the window of the last one.
+	 */
+	private TCPSegment merge(int i){
+		TCPSegment head = first[i];
+		for (TCPSegment seg = head.next; seg != null; seg = seg.next){
+			head.coalesced++;
+			head.coalescedLength += seg.data.length;
+			head.windowSize = seg.windowSize;
+		}
+		return head;
+	}
+}
@@ -0,0 +1,500 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.IP.Packet;
+
+/**
+ * Discrete-event simulation of TCP stacks on a simulated network, on a virtual clock and in one thread.
+ * <br/>
+ * The stacks are created with addStack(). They have no threads of their own: the simulator delivers their packets
+ * over the links of the network and advances their timers, jumping from one event to the next. A retransmission
+ * timeout or a TIME_WAIT of several seconds thus passes in next to no time. The applications are driven from the
+ * simulation thread as well, with the asynchronous socket calls and the listeners of their futures, or with tasks
+ * scheduled with at(). They must not block.
+ * <br/>
+ * The packets which arrive at a stack at the same virtual time are delivered to it as one batch, as a network driver
+ * hands over the packets it has at an interrupt, so that the stack coalesces their segments as it does when it runs on
+ * its own threads.
+ * <br/>
+ * Every direction between two stacks is a NetworkLink, which delays, loses, duplicates, reorders and limits the
+ * packets. Unless set with setLink(), it is made from the default link specification when it is first used.
+ * <br/>
+ * The links and the initial sequence numbers of the stacks get their random numbers from a generator with the given
+ * seed, so that a run with the same seed and the same scenario gives the same result every time.
+ * <br/>
+ * Usage: Simulator [-s seed] [-e link specification] [-b bytes]; simulates a transfer between two stacks and prints
+ * the virtual time it took.
+ */
+public class Simulator {
+
+	static final String USAGE = "usage: Simulator [-s seed] [-e link specification] [-b bytes]";
+
+	/**default specification of the links: 10 ms one-way latency, see NetworkLink*/
+	public static final String DEFAULT_LINK = "delay=10";
+
+	/**the duration (nanoseconds) of a tick of the timers of the stacks*/
+	static final long TICK = TimingWheel.DEFAULT_TICK_MILLIS * 1000000L;
+
+	/**
+	 * Something happening at a point in virtual time.
+	 */
+	private static final class Event implements Comparable<Event> {
+		final long time;
+		/**events at the same time happen in the order they were scheduled*/
+		final long order;
+		final Runnable task;
+
+		Event(long time, long order, Runnable task){
+			this.time = time;
+			this.order = order;
+			this.task = task;
+		}
+
+		public int compareTo(Event e) {
+			if (time != e.time){
+				return time < e.time ? -1 : 1;
+			}
+			return order < e.order ? -1 : (order == e.order ? 0 : 1);
+		}
+	}
+
+	/**
+	 * The IP layer of a simulated stack: sends packets over the simulated network.
+	 */
+	private class SimulatedIP implements IPTransport {
+		private final IpAddress address;
+
+		SimulatedIP(IpAddress address){
+			this.address = address;
+		}
+
+		public IpAddress getLocalAddress() {
+			return address;
+		}
+
+		public int ip_send(Packet p) {
+			send(p);
+			return p.length;
+		}
+
+		public void ip_receive(Packet p) throws IOException {
+			throw new IOException("simulated stacks do not receive themselves");
+		}
+
+		public void ip_receive_timeout(Packet p, int timeout) throws IOException {
+			throw new IOException("simulated stacks do not receive themselves");
+		}
+	}
+
+	/**
+	 * The packets which arrived at a stack and are not delivered yet.
+	 */
+	private final class Inbox implements Runnable {
+		final TCP stack;
+		private final Packet[] packets = new Packet[TCP.RECEIVE_BATCH];
+		private final ReceiveBatch batch = new ReceiveBatch(TCP.RECEIVE_BATCH);
+		private int count;
+
+		Inbox(TCP stack){
+			this.stack = stack;
+		}
+
+		/**
+		 * keeps an arrived packet. The first one schedules the delivery after the other events of this time.
+		 */
+		void arrive(Packet p){
+			if (count == packets.length){
+				run();
+			}
+			if (count == 0){
+				schedule(now, this);
+			}
+			packets[count++] = p;
+		}
+
+		/**
+		 * delivers the kept packets.
+		 */
+		public void run() {
+			int n = count;
+			count = 0;
+			if (n > 0){
+				stack.deliver(packets, n, batch);
+				for (int i = 0; i < n; i++){
+					packets[i] = null;
+				}
+			}
+		}
+	}
+
+	private final Random random;
+	private final PriorityQueue<Event> events;
+	private long order;
+
+	/**the virtual time, in nanoseconds since the start of the simulation*/
+	private long now;
+
+	/**the virtual time of the next tick of the timers of the stacks, if any timers are pending*/
+	private long nextTick;
+	private boolean ticking;
+
+	private final Map<Integer, Inbox> stacks;
+	private final List<TCP> stackList;
+
+	/**the links between the stacks, by linkKey()*/
+	private final Map<Long, NetworkLink> links;
+	private String defaultLink;
+
+	private long packetsSent;
+	private long packetsLost;
+
+	private final Clock clock = new Clock() {
+		public long currentTimeMillis() {
+			return now / 1000000;
+		}
+
+		public long nanoTime() {
+			return now;
+		}
+	};
+
+	/**
+	 * creates a simulation without stacks, with links of DEFAULT_LINK.
+	 * @param seed the seed of the random generator
+	 */
+	public Simulator(long seed){
+		random = new Random(seed);
+		events = new PriorityQueue<Event>();
+		stacks = new HashMap<Integer, Inbox>();
+		stackList = new ArrayList<TCP>();
+		links = new HashMap<Long, NetworkLink>();
+		defaultLink = DEFAULT_LINK;
+	}
+
+	/**
+	 * sets the specification of the links which are not set with setLink() and not used yet.
+	 * @param spec the specification, see NetworkLink.parse()
+	 * @throws IllegalArgumentException if the specification is invalid
+	 */
+	public void setDefaultLink(String spec){
+		NetworkLink.parse(spec, 0);
+		defaultLink = spec;
+	}
+
+	/**
+	 * sets the link from one stack to another.
+	 * @param from the last octet of the address of the sending stack
+	 * @param to the last octet of the address of the receiving stack
+	 */
+	public void setLink(int from, int to, NetworkLink link){
+		links.put(linkKey(address(from), address(to)), link);
+	}
+
+	/**
+	 * @param from the last octet of the address of the sending stack
+	 * @param to the last octet of the address of the receiving stack
+	 * @return the link from one stack to another, for its counters
+	 */
+	public NetworkLink getLink(int from, int to){
+		return link(address(from), address(to));
+	}
+
+	private static int address(int octet){
+		return IpAddress.getAddress("192.168.0." + octet).getAddress();
+	}
+
+	/**
+	 * @return the link from one address to another, made from the default specification if it was not used before
+	 */
+	private NetworkLink link(int from, int to){
+		long key = linkKey(from, to);
+		NetworkLink link = links.get(key);
+		if (link == null){
+			link = NetworkLink.parse(defaultLink, random.nextLong());
+			links.put(key, link);
+		}
+		return link;
+	}
+
+	private static long linkKey(int from, int to){
+		return ((long) from << 32) | (to & 0xffffffffL);
+	}
+
+	/**
+	 * creates a stack on the simulated network.
+	 * @param address the last octet of the virtual IP address 1-254, as for TCP(int)
+	 */
+	public TCP addStack(int address){
+		if (address < 1 || address > 254) {
+			throw new IllegalArgumentException("Invalid address. 1-254 only.");
+		}
+		IpAddress ip = IpAddress.getAddress("192.168.0." + address);
+		TCP stack = new TCP(new SimulatedIP(ip), clock, false);
+		stack.setSequenceNumberSource(new TCP.SequenceNumberSource() {
+			public long initialSeqnr(SocketAddress local, SocketAddress remote) {
+				return random.nextLong() & TCPControlBlock.UINT_32_MAX;
+			}
+		});
+		stacks.put(ip.getAddress(), new Inbox(stack));
+		stackList.add(stack);
+		return stack;
+	}
+
+	/**
+	 * @return the virtual clock of this simulation
+	 */
+	public Clock getClock(){
+		return clock;
+	}
+
+	/**
+	 * @return the virtual time, in milliseconds since the start of the simulation
+	 */
+	public long now(){
+		return now / 1000000;
+	}
+
+	/**
+	 * schedules a task in the simulation thread.
+	 * @param delayMillis the virtual time from now at which the task runs
+	 */
+	public void at(long delayMillis, Runnable task){
+		schedule(now + delayMillis * 1000000, task);
+	}
+
+	private void schedule(long time, Runnable task){
+		events.add(new Event(time, order++, task));
+	}
+
+	/**
+	 * puts a packet on the link to its destination, which delivers it unless it is lost.
+	 */
+	private void send(Packet p){
+		packetsSent++;
+		final Inbox destination = stacks.get(p.destination);
+		long[] arrivals = new long[2];
+		int copies = destination == null ? 0 : link(p.source, p.destination).transmit(p.length, now, arrivals);
+		if (copies == 0){
+			packetsLost++;
+			return;
+		}
+		for (int i = 0; i < copies; i++){
+			//the sender may reuse its packet
+			final Packet copy = new Packet(p.destination, p.protocol, p.id, new byte[p.length], p.length);
+			copy.source = p.source;
+			System.arraycopy(p.data, 0, copy.data, 0, p.length);
+			schedule(arrivals[i], new Runnable() {
+				public void run() {
+					destination.arrive(copy);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return true if a stack has a pending timer
+	 */
+	private boolean timersPending(){
+		for (TCP stack : stackList){
+			if (stack.getTimers().size() > 0){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * runs the next event or timer tick, unless it comes after the given time.
+	 * @return false if there was nothing to do until then
+	 */
+	private boolean step(long until){
+		if (!ticking && timersPending()){
+			//the timers were idle, so their next tick is a tick from now, as with a clock thread
+			ticking = true;
+			nextTick = now + TICK;
+		}
+		Event next = events.peek();
+		if (ticking && (next == null || nextTick <= next.time)){
+			if (nextTick > until){
+				return false;
+			}
+			now = nextTick;
+			for (TCP stack : stackList){
+				stack.getTimers().advance();
+			}
+			nextTick += TICK;
+			ticking = timersPending();
+			return true;
+		}
+		if (next == null || next.time > until){
+			return false;
+		}
+		events.poll();
+		now = next.time;
+		next.task.run();
+		return true;
+	}
+
+	/**
+	 * runs the simulation for a while.
+	 * @param millis the virtual time to run
+	 */
+	public void run(long millis){
+		long until = now + millis * 1000000;
+		while (step(until));
+		now = until;
+	}
+
+	/**
+	 * runs the simulation until there are no events and timers anymore: all packets are delivered or lost, all
+	 * retransmissions gave up and all TIME_WAITs expired.
+	 */
+	public void runUntilIdle(){
+		while (step(Long.MAX_VALUE));
+	}
+
+	/**
+	 * runs the simulation until a future completes, or at most a while.
+	 * @param maxMillis the maximum virtual time to run
+	 * @return true if the future completed
+	 */
+	public boolean runUntil(TCPFuture<?> future, long maxMillis){
+		long until = now + maxMillis * 1000000;
+		while (!future.isDone() && step(until));
+		return future.isDone();
+	}
+
+	/**
+	 * @return the number of packets sent over the network, including those lost
+	 */
+	public long getPacketsSent(){
+		return packetsSent;
+	}
+
+	/**
+	 * @return the number of packets the links lost or dropped, or which had no destination
+	 */
+	public long getPacketsLost(){
+		return packetsLost;
+	}
+
+	public static void main(String[] args){
+		long seed = 1;
+		String link = DEFAULT_LINK;
+		int bytes = 1000000;
+		for (int i = 0; i < args.length; i += 2){
+			if (i + 1 >= args.length){
+				System.err.println(USAGE);
+				System.exit(2);
+			} else if (args[i].equals("-s")){
+				seed = Long.parseLong(args[i + 1]);
+			} else if (args[i].equals("-e")){
+				link = args[i + 1];
+			} else if (args[i].equals("-b")){
+				bytes = Integer.parseInt(args[i + 1]);
+			} else {
+				System.err.println(USAGE);
+				System.exit(2);
+			}
+		}
+
+		Simulator sim = new Simulator(seed);
+		sim.setDefaultLink(link);
+		TCP server = sim.addStack(1);
+		TCP client = sim.addStack(2);
+		long wall = System.nanoTime();
+		Transfer t = new Transfer(sim, server, client, bytes);
+		sim.runUntilIdle();
+		wall = System.nanoTime() - wall;
+
+		System.out.println("seed " + seed + ", link " + link + ", " + bytes + " bytes");
+		System.out.println("received (B):      " + t.getReceived());
+		System.out.println("completed at (ms): " + (t.getCompletedAt() < 0 ? "-" : Long.toString(t.getCompletedAt())));
+		System.out.println("packets:           " + sim.getPacketsSent() + " sent, " + sim.getPacketsLost() + " lost");
+		System.out.println("retransmissions:   " + (server.getMetrics().getRetransmissions() +
+				client.getMetrics().getRetransmissions()));
+		System.out.println("idle at (ms):      " + sim.now());
+		System.out.println("wall time (ms):    " + String.format("%.1f", wall / 1e6));
+	}
+
+	/**
+	 * A transfer of a number of bytes from a client to a server, driven by the listeners of the futures. Starts at
+	 * once.
+	 */
+	static class Transfer {
+		private final Simulator sim;
+		private final int bytes;
+		private final ByteBuffer buf;
+		private TCP.Socket serverSocket;
+		private long received;
+		private long completedAt = -1;
+
+		Transfer(final Simulator sim, TCP server, TCP client, int bytes){
+			this.sim = sim;
+			this.bytes = bytes;
+			buf = ByteBuffer.allocate(TCP.MAX_DATA_LENGTH);
+			serverSocket = server.socket(80);
+			serverSocket.acceptAsync().addListener(new TCPFuture.Listener<Boolean>() {
+				public void done(TCPFuture<Boolean> future) {
+					if (future.await()){
+						read();
+					}
+				}
+			});
+
+			final TCP.Socket clientSocket = client.socket();
+			final IpAddress serverAddress = IpAddress.getAddress(server.getIPAddress());
+			clientSocket.connectAsync(serverAddress, 80).addListener(new TCPFuture.Listener<Boolean>() {
+				public void done(TCPFuture<Boolean> future) {
+					if (!future.await()){
+						return;
+					}
+					clientSocket.writeAsync(ByteBuffer.allocate(Transfer.this.bytes)).addListener(
+							new TCPFuture.Listener<Integer>() {
+						public void done(TCPFuture<Integer> future) {
+							clientSocket.close();
+						}
+					});
+				}
+			});
+		}
+
+		private void read(){
+			buf.clear();
+			serverSocket.readAsync(buf).addListener(new TCPFuture.Listener<Integer>() {
+				public void done(TCPFuture<Integer> future) {
+					int n = future.await();
+					if (n > 0){
+						received += n;
+						if (received == bytes){
+							completedAt = sim.now();
+						}
+						read();
+					} else {
+						serverSocket.close();
+					}
+				}
+			});
+		}
+
+		long getReceived(){
+			return received;
+		}
+
+		/**
+		 * @return the virtual time at which the server received the last byte, or -1
+		 */
+		long getCompletedAt(){
+			return completedAt;
+		}
+	}
+}
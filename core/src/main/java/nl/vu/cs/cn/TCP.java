@@ -0,0 +1,2686 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nl.vu.cs.cn.BufferPool.Chunk;
+import nl.vu.cs.cn.IP.*;
+import nl.vu.cs.cn.TCPControlBlock.ConnectionState;
+import nl.vu.cs.cn.TCPSegment.TCPSegmentType;
+
+/**
+ * This class represents a TCP stack. It should be built on top of the IP stack
+ * which is bound to a given IP address.
+ */
+public class TCP {
+
+	/** The first port a client socket will bind to automatically. Every client socket of a stack gets its own port,
+	 * counting up from this one, so that many connections to the same server can be open at a time. */
+	public static final int DEFAULT_CLIENT_PORT = 12345;
+
+	/**MSL (maximum segment lifetime) (seconds) used in the connection termination timer*/
+	public static final int MSL = 2;
+
+	/**maximum number of tries waiting for an ack*/
+	public static final int MAX_TRIES = 10;
+
+	/**time (milliseconds) to wait for an ack before a segment is retransmitted*/
+	public static final int RETRANSMIT_TIMEOUT = 1000;
+
+	/**the length of IP headers used by our implementation. Options are not supported.*/
+	public static final int IP_HEADER_LENGTH = 20;
+
+	/**the maximum size (bytes) of any packet sent through the ip layer*/
+	public static final int MAX_TCPIP_SEGMENT_SIZE = 8192;
+	
+	/**maximum data length*/
+	public static final int MAX_DATA_LENGTH = MAX_TCPIP_SEGMENT_SIZE - IP_HEADER_LENGTH - TCPSegment.HEADER_LENGTH;
+
+	/** Default quota of the send and receive buffer of a socket */
+	public static final int BUFFER_SIZE = 1048576; // 1MB
+
+	/** the largest window which fits in the header, since window scaling is not supported */
+	public static final int MAX_WINDOW = 0xffff;
+
+	/**
+	 * the most data of a super-segment: a data segment which is split into packets of MAX_DATA_LENGTH only when it is
+	 * sent, like TCP segmentation offload. It is acknowledged as a whole, or from the start as its packets arrive.
+	 */
+	public static final int MAX_SUPER_SEGMENT_LENGTH = MAX_WINDOW;
+
+	/**the default for receiving packets*/
+	public static final int DEFAULT_TIMEOUT = 1;
+
+	/**the time in seconds to wait for the reply to a SYN or SYNACK before resending it. Initially set to DEFAULT_TIMEOUT. */
+	public int timeout;
+
+	/** The underlying IP stack for this TCP stack. */
+	private IPTransport ip;
+
+	/**if false, packets are handed to the stack with deliver() instead of received by the demultiplexer thread*/
+	private final boolean receiver;
+
+	/**the time source, for measuring round trip times*/
+	private final Clock clock;
+
+	/**chooses the initial sequence numbers of new connections, or null for random ones*/
+	private volatile SequenceNumberSource isnSource;
+
+	/**packet ID which is initially zero and is incremented each time a packet is sent through the IP layer*/
+	private AtomicInteger ip_packet_id;
+
+	/**counters of the whole stack*/
+	private TCPMetrics metrics;
+
+	/**capture of the packets sent and received, or null*/
+	private volatile PacketCapture capture;
+
+	/**the memory of the send and receive buffers of the sockets*/
+	private final BufferPool buffers = new BufferPool(BufferPool.DEFAULT_MAX_BYTES);
+
+	/**packets for sending and receiving, which are reused*/
+	private final PacketPool packets = new PacketPool(PacketPool.DEFAULT_CAPACITY);
+
+	/**drops segments to test loss recovery, or null*/
+	private volatile FaultInjector faults;
+
+	/**the port the next client socket binds to*/
+	private int nextClientPort;
+
+	/**timers (retransmission, TIME_WAIT) of all connections of this stack*/
+	private TimingWheel timers;
+
+	/**sockets with a (half) open connection, by connectionKey(). Read without locking; see register().*/
+	private ConcurrentHashMap<Long, Socket> connections;
+
+	/**sockets in the LISTEN state, by local port*/
+	private ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Socket>> listeners;
+
+	/**serializes the updates of connections and listeners*/
+	private final Object registryLock = new Object();
+
+	/**all stacks of this process which are not closed, for monitoring. The map does not keep a stack alive, but its
+	 * receiver, demultiplexer and timer threads do until it is closed, see close().*/
+	private static final Map<TCP, Boolean> stacks = new WeakHashMap<TCP, Boolean>();
+
+	/**connections of this stack in the TIME_WAIT state*/
+	private TimeWaitTable timeWaitTable;
+
+	/**
+	 * Chooses the initial sequence number of a connection.
+	 */
+	interface SequenceNumberSource {
+		/**
+		 * @return the sequence number, or a negative value for a random one
+		 */
+		long initialSeqnr(SocketAddress local, SocketAddress remote);
+	}
+
+	/**receives all incoming packets of this stack into the receive queue. Started with the first connection.
+	 * This is the only thread which calls into the IP layer to receive, so application threads never block in native code.*/
+	private Thread receiverThread;
+
+	/**takes the packets from the receive queue in batches, and hands them to the sockets*/
+	private Thread demultiplexer;
+
+	/**the most packets the demultiplexer handles as one batch, and the capacity of the receive queue*/
+	static final int RECEIVE_BATCH = 32;
+
+	/**the packets received by the receiver thread, waiting for the demultiplexer*/
+	private final ArrayBlockingQueue<Packet> receiveQueue = new ArrayBlockingQueue<Packet>(RECEIVE_BATCH);
+
+	/**the longest time (seconds) the receiver thread waits in the IP layer before it checks if the stack is closed*/
+	static final int RECEIVE_POLL_SECONDS = 1;
+
+	/**set by close(): the threads of the stack stop, and no new ones are started*/
+	private volatile boolean closed;
+
+	/**
+	 * This class represents a TCP socket.
+	 */
+	public class Socket {
+
+		private boolean isClientSocket;
+
+		/**
+		 * transmission control block, shared between the sender and receiver threads
+		 */
+		private volatile TCPControlBlock tcb;
+		private volatile BoundedByteBuffer recv_buf;
+		private volatile BoundedByteBuffer send_buf;
+
+		private volatile boolean closePending;
+
+		/**completed when the handshake started by connectAsync() or acceptAsync() finishes*/
+		private volatile TCPFuture<Boolean> connectFuture;
+
+		/**guards the pending reads, and the waiting for data in read()*/
+		private ReentrantLock recvLock;
+
+		/**signalled when enough data arrives for a blocked reader, or the state changes*/
+		private Condition dataAvailable;
+
+		/**the number of bytes read() waits for, see setReceiveLowWaterMark()*/
+		private volatile int recvLowWater = 1;
+
+		/**the fewest bytes a blocked reader waits for, or Integer.MAX_VALUE. Guarded by recvLock.*/
+		private int readWanted = Integer.MAX_VALUE;
+
+		/**the number of readers waiting in dataAvailable. Guarded by recvLock.*/
+		private int blockedReaders;
+
+		/**asynchronous reads waiting for data, guarded by recvLock*/
+		private LinkedList<PendingTransfer> pendingReads;
+
+		/**asynchronous writes waiting for space in the send buffer. Also used as their lock.*/
+		private LinkedList<PendingTransfer> pendingWrites;
+
+		/**if set, read() returns at once instead of waiting for data*/
+		private volatile boolean nonBlocking;
+
+		/**the selectors this socket is registered with, signalled when the readiness may have changed*/
+		private CopyOnWriteArrayList<TCPSelector.Key> selectionKeys;
+
+		/**the connectionKey() or local port this socket is registered with in the stack, or null*/
+		private Object registration;
+
+		/**
+		 * guards the segment in flight. Only one data or FIN segment is unacknowledged at a time.
+		 * A j.u.c lock rather than a monitor, since segments are sent while holding it.
+		 */
+		private ReentrantLock sendLock;
+
+		/**signalled when acks make room in the send buffer, or the state changes*/
+		private Condition spaceAvailable;
+
+		/**
+		 * serializes the writes of the application, so that the bytes of one write are not interleaved with those of
+		 * another. Unlike the sendLock, a blocking write holds it while it waits for room.
+		 */
+		private ReentrantLock writeLock;
+
+		/**set when the asynchronous writes may be able to go on, see completeWrites()*/
+		private volatile boolean writesWaiting;
+
+		/**if set, write() waits until all its bytes are in the send buffer, unless the socket is non-blocking*/
+		private volatile boolean blockingWrite;
+
+		/**the room in the send buffer a blocked writer waits for, see setSendLowWaterMark()*/
+		private volatile int sendLowWater = MAX_DATA_LENGTH;
+
+		/**the data or FIN segment that was sent but not acknowledged yet, or null if there is none*/
+		private TCPSegment unacked;
+
+		/**number of times the unacked segment has been sent*/
+		private int ntries;
+
+		/**retransmission timer of the unacked segment*/
+		private TimingWheel.Timer retransmitTimer;
+
+		/**when the unacked segment was first sent (clock.nanoTime()), to measure the RTT*/
+		private long sentAt;
+
+		/**the window the other side advertised last: the number of bytes it can still buffer*/
+		private volatile int peerWindow = MAX_WINDOW;
+
+		/**
+		 * true while the other side has no room for the unacked data segment. Its retransmissions then probe the
+		 * window, and do not count as tries.
+		 */
+		private boolean persisting;
+
+		/**
+		 * data segments which arrived before the segments in front of them, by sequence number: the packets of a
+		 * super-segment may be reordered on the way. At most MAX_SUPER_SEGMENT_LENGTH bytes. Only used by the thread
+		 * which handles the packets.
+		 */
+		private final LinkedList<TCPSegment> outOfOrder = new LinkedList<TCPSegment>();
+		private int outOfOrderBytes;
+
+		/**counters of this socket, which also update those of the stack*/
+		private TCPMetrics metrics;
+
+		/** Construct a client socket. */
+		private Socket() {
+			this(allocateClientPort());
+			isClientSocket = true;
+		}
+
+		/**
+		 * Construct a server socket bound to the given local port.
+		 * @param port the local port to use
+		 */
+		private Socket(int port) {
+			isClientSocket = false;
+			sendLock = new ReentrantLock();
+			writeLock = new ReentrantLock();
+			recvLock = new ReentrantLock();
+			dataAvailable = recvLock.newCondition();
+			spaceAvailable = sendLock.newCondition();
+			pendingReads = new LinkedList<PendingTransfer>();
+			pendingWrites = new LinkedList<PendingTransfer>();
+			selectionKeys = new CopyOnWriteArrayList<TCPSelector.Key>();
+			metrics = new TCPMetrics(TCP.this.metrics);
+			tcb = new TCPControlBlock();
+			tcb.setLocalSocketAddress(new SocketAddress(ip.getLocalAddress(), port));
+
+			recv_buf = new BoundedByteBuffer(buffers, BUFFER_SIZE);
+			send_buf = new BoundedByteBuffer(buffers, BUFFER_SIZE);
+		}
+		
+		/**
+		 * picks the initial sequence number of a new connection, once the addresses of both sides are known.
+		 */
+		private void generateSeqnr(){
+			SequenceNumberSource source = isnSource;
+			long isn = source == null ? -1 : source.initialSeqnr(tcb.getLocalSocketAddress(), tcb.getRemoteSocketAddress());
+			if (isn < 0){
+				tcb.generateSeqnr();
+			} else {
+				tcb.generateSeqnr(isn);
+			}
+		}
+
+		/**
+		 * initialize the socket. 
+		 * Mainly used in accept or connect to prevent reused sockets to interfere with the previous connection. 
+		 */
+		private void init(){
+			recv_buf.init();
+			outOfOrder.clear();
+			outOfOrderBytes = 0;
+			closePending = false;
+			sendLock.lock();
+			try {
+				timers.cancel(retransmitTimer);
+				unacked = null;
+				persisting = false;
+				//after unacked, since a data segment in flight is sent from the send buffer
+				send_buf.init();
+			} finally {
+				sendLock.unlock();
+			}
+			peerWindow = MAX_WINDOW;
+		}
+
+		/**
+		 * Updates the state of the connection and wakes up the application threads blocked in read(), since they
+		 * have to check again whether any more data can arrive.
+		 * Also updates how the stack finds this socket for incoming segments, and finishes the asynchronous reads and writes
+		 * which cannot continue in the new state.
+		 * @param s the new state
+		 */
+		private void setState(ConnectionState s){
+			tcb.setState(s);
+			metrics.stateEntered(s);
+			register(this);
+			signalReaders();
+			signalWriters();
+			completeReads();
+			completeWrites();
+			signalSelectors();
+		}
+
+		/**
+		 * wakes up the application threads blocked in write().
+		 */
+		private void signalWriters(){
+			sendLock.lock();
+			try {
+				spaceAvailable.signalAll();
+			} finally {
+				sendLock.unlock();
+			}
+		}
+
+		/**
+		 * wakes up the application threads blocked in read() if the receive buffer holds as many bytes as one of them
+		 * waits for. Other readers sleep on, so that they wake once for a batch of segments.
+		 */
+		private void signalData(){
+			recvLock.lock();
+			try {
+				if (blockedReaders > 0 && recv_buf.length() >= readWanted){
+					dataAvailable.signalAll();
+				}
+			} finally {
+				recvLock.unlock();
+			}
+		}
+
+		/**
+		 * wakes up the application threads blocked in read().
+		 */
+		private void signalReaders(){
+			recvLock.lock();
+			try {
+				dataAvailable.signalAll();
+			} finally {
+				recvLock.unlock();
+			}
+		}
+
+		/**
+		 * Sets the blocking mode of this socket. In non-blocking mode, read() returns 0 at once if there is no data in the
+		 * receive buffer; a TCPSelector tells when data (or the end of the stream) arrives. write() never blocks, unless
+		 * it is given a timeout.
+		 * @param nonBlocking true for non-blocking mode
+		 */
+		public void setNonBlocking(boolean nonBlocking) {
+			this.nonBlocking = nonBlocking;
+		}
+
+		public boolean isNonBlocking() {
+			return nonBlocking;
+		}
+
+		/**
+		 * @return true if the connection is established and not closed yet by both sides
+		 */
+		public boolean isConnected() {
+			switch(tcb.getState()){
+			case S_CLOSED:
+			case S_LISTEN:
+			case S_SYN_SENT:
+			case S_SYN_RCVD:
+			case S_TIME_WAIT:
+				return false;
+			default:
+				return true;
+			}
+		}
+
+		/**
+		 * @return the counters of this socket
+		 */
+		public TCPMetrics getMetrics() {
+			return metrics;
+		}
+
+		/**
+		 * @return the number of bytes in the receive buffer, which the application has not read yet
+		 */
+		public int getReceiveBufferUsed() {
+			return recv_buf.length();
+		}
+
+		/**
+		 * @return the number of bytes in the send buffer, which have not been sent or not been acknowledged yet
+		 */
+		public int getSendBufferUsed() {
+			return send_buf.length();
+		}
+
+		/**
+		 * sets the quota of the receive buffer: the most data it holds, and so the largest window advertised.
+		 * @param size the quota in bytes, at least MAX_DATA_LENGTH since segments are not split to fit the window
+		 */
+		public void setReceiveBufferSize(int size) {
+			if (size < MAX_DATA_LENGTH){
+				throw new IllegalArgumentException("receive buffer smaller than a segment: " + size);
+			}
+			recv_buf.setQuota(size);
+		}
+
+		public int getReceiveBufferSize() {
+			return recv_buf.getQuota();
+		}
+
+		/**
+		 * sets the low-water mark of the receive buffer, like SO_RCVLOWAT: a blocking read() waits until this many
+		 * bytes are buffered (or as many as it asks for, if fewer), the end of the stream, or its timeout. Readers which
+		 * want large batches then wake up once for many segments. Asynchronous reads complete, and a TCPSelector
+		 * reports OP_READ, by the same rule.
+		 * @param bytes the number of bytes, at least 1. It is capped at the quota of the receive buffer.
+		 */
+		public void setReceiveLowWaterMark(int bytes) {
+			if (bytes < 1){
+				throw new IllegalArgumentException("low-water mark below 1: " + bytes);
+			}
+			recvLowWater = bytes;
+		}
+
+		public int getReceiveLowWaterMark() {
+			return recvLowWater;
+		}
+
+		/**
+		 * @param max the most bytes the reader takes
+		 * @return the number of bytes a reader of at most max bytes waits for: the low-water mark, capped at max and at
+		 * what the other side can surely fill. It stops when the window is smaller than a segment, and borrowed bytes
+		 * take room as well.
+		 */
+		private int recvLowWater(long max){
+			long reachable = recv_buf.getQuota() - recv_buf.lent() - MAX_DATA_LENGTH + 1;
+			return (int) Math.max(1, Math.min(Math.min(recvLowWater, max), reachable));
+		}
+
+		/**
+		 * sets the quota of the send buffer: the most data written but not acknowledged yet.
+		 * @param size the quota in bytes
+		 */
+		public void setSendBufferSize(int size) {
+			send_buf.setQuota(size);
+		}
+
+		public int getSendBufferSize() {
+			return send_buf.getQuota();
+		}
+
+		/**
+		 * Sets the write mode of this socket. A blocking write() waits until all bytes are in the send buffer, as acks
+		 * make room, instead of returning a short count. Non-blocking sockets never block in write().
+		 * @param blockingWrite true to block in write()
+		 */
+		public void setBlockingWrite(boolean blockingWrite) {
+			this.blockingWrite = blockingWrite;
+		}
+
+		public boolean isBlockingWrite() {
+			return blockingWrite;
+		}
+
+		/**
+		 * sets the low-water mark of the send buffer: a blocked writer is woken up when this much room is free, and a
+		 * TCPSelector reports OP_WRITE from then on. Larger marks mean fewer wakeups, each writing more.
+		 * @param bytes the room in bytes, at least 1. It is capped at the quota of the send buffer.
+		 */
+		public void setSendLowWaterMark(int bytes) {
+			if (bytes < 1){
+				throw new IllegalArgumentException("low-water mark below 1: " + bytes);
+			}
+			sendLowWater = bytes;
+		}
+
+		public int getSendLowWaterMark() {
+			return sendLowWater;
+		}
+
+		/**
+		 * @return the low-water mark, capped at the quota of the send buffer
+		 */
+		private int sendLowWater(){
+			return Math.min(sendLowWater, send_buf.getQuota());
+		}
+
+		/**
+		 * @return the name of the state of the connection, such as S_ESTABLISHED
+		 */
+		public String getStateName() {
+			return tcb.getState().name();
+		}
+
+		/**
+		 * @return the port this socket is bound to
+		 */
+		public int getLocalPort() {
+			return tcb.getLocalSocketAddress().getPort();
+		}
+
+		/**
+		 * @return the address of the other side of the connection, or null if no connection was made or attempted yet
+		 */
+		public SocketAddress getRemoteSocketAddress() {
+			SocketAddress remote = tcb.getRemoteSocketAddress();
+			return remote.getIp() == null ? null : remote;
+		}
+
+		void addSelectionKey(TCPSelector.Key k){
+			selectionKeys.add(k);
+		}
+
+		void removeSelectionKey(TCPSelector.Key k){
+			selectionKeys.remove(k);
+		}
+
+		/**
+		 * lets the selectors check this socket again, since its buffers or state changed.
+		 */
+		private void signalSelectors(){
+			for (TCPSelector.Key k : selectionKeys){
+				k.signal();
+			}
+		}
+
+		/**
+		 * @return the TCPSelector operations which are currently possible on this socket
+		 */
+		int readyOps(){
+			int ops = 0;
+			ConnectionState state = tcb.getState();
+
+			//data to read, or the end of the stream (read() does not block anymore)
+			if (recv_buf.length() >= recvLowWater(Integer.MAX_VALUE) || (tcb.hasConnection && !canReceive() &&
+					state != ConnectionState.S_SYN_SENT && state != ConnectionState.S_SYN_RCVD)){
+				ops |= TCPSelector.OP_READ;
+			}
+			//space to write, or writing fails at once
+			if (canSend() ? send_buf.remainingCapacity() >= sendLowWater() : tcb.hasConnection){
+				ops |= TCPSelector.OP_WRITE;
+			}
+			if (connectFuture != null && state != ConnectionState.S_LISTEN && state != ConnectionState.S_SYN_SENT &&
+					state != ConnectionState.S_SYN_RCVD){
+				if (isClientSocket){
+					ops |= TCPSelector.OP_CONNECT;
+				} else if (state != ConnectionState.S_CLOSED){
+					ops |= TCPSelector.OP_ACCEPT;
+				}
+			}
+			return ops;
+		}
+
+		/**
+		 * Connect this socket to the specified destination and port.
+		 * This call blocks until the connection is made or the tries expired.
+		 *
+		 * @param IpAddress dst - the destination to connect to
+		 * @param int port - the TCP port to connect to
+		 * @return true if the connect succeeded.
+		 */
+		public boolean connect(IpAddress dst, int port) {
+			return connectAsync(dst, port).await();
+		}
+
+		/**
+		 * Starts connecting this socket to the specified destination and port. The handshake is performed by the
+		 * threads of the stack.
+		 *
+		 * @param IpAddress dst - the destination to connect to
+		 * @param int port - the TCP port to connect to
+		 * @return a future which completes with true if the connect succeeded, or false if it failed.
+		 */
+		public TCPFuture<Boolean> connectAsync(IpAddress dst, int port) {
+
+			//can't connect with a server socket or a socket with an already open connection
+			if (!isClientSocket || tcb.getState() != ConnectionState.S_CLOSED || port < 0 || port > 65535){
+				return TCPFuture.completed(false);
+			}
+
+			init();
+			TCPFuture<Boolean> future = connectFuture = new TCPFuture<Boolean>();
+
+			// Implement the connection side of the three-way handshake here.
+			tcb.setRemoteSocketAddress(new SocketAddress(dst, port));
+
+			//generate sequence number
+			generateSeqnr();
+
+			//construct a syn packet
+			TCPSegment syn_pck = tcb.createControlSegment(TCPSegmentType.SYN);
+
+			//send it. The synack is handled by handleSynSent().
+			setState(ConnectionState.S_SYN_SENT);
+			sendLock.lock();
+			try {
+				sendWithRetransmit(syn_pck, timeout * 1000);
+			} finally {
+				sendLock.unlock();
+			}
+			return future;
+		}
+
+		/**
+		 * Accept a connection on this socket.
+		 * This call blocks until a connection is made.
+		 */
+		public void accept() {
+			acceptAsync().await();
+		}
+
+		/**
+		 * Starts listening for a connection on this socket. The handshake is performed by the threads of the stack.
+		 * If it fails, the socket listens again.
+		 *
+		 * @return a future which completes with true when a connection is made, or at once with false if accept() cannot
+		 * be called on this socket.
+		 */
+		public TCPFuture<Boolean> acceptAsync() {
+
+			//client sockets and sockets with an already open connection cannot call accept
+			if(isClientSocket){
+				Log.e("accept() error","Called accept() on a client socket");
+				return TCPFuture.completed(false);
+			} else if (tcb.getState() != ConnectionState.S_CLOSED){
+				Log.e("accept() error","Called accept() on an opened socket");
+				return TCPFuture.completed(false);
+			}
+
+			init();
+			TCPFuture<Boolean> future = connectFuture = new TCPFuture<Boolean>();
+
+			//listen for incoming connections. The syn is handled by handleListen().
+			setState(ConnectionState.S_LISTEN);
+			return future;
+		}
+
+		/**
+		 * handles a segment in the LISTEN state: a SYN starts the handshake.
+		 */
+		private void handleListen(TCPSegment syn_pck){
+			if(syn_pck.getSegmentType() != TCPSegmentType.SYN){
+				//discard it and listen again.
+				Log.d("accept", "Received invalid packet type: " + syn_pck.getSegmentType().name() + 
+						" instead of SYN");
+				return;
+			}
+			//initialize the tcb with the right sequence numbers, ports and IP addresses
+			tcb.initServer(syn_pck);
+			generateSeqnr();
+			setState(ConnectionState.S_SYN_RCVD);
+
+			//compose a synack message and send it. The ack is handled by handleSynRcvd().
+			TCPSegment syn_ack = tcb.createControlSegment(TCPSegmentType.SYNACK);
+			sendLock.lock();
+			try {
+				sendWithRetransmit(syn_ack, timeout * 1000);
+			} finally {
+				sendLock.unlock();
+			}
+		}
+
+		/**
+		 * handles a segment in the S_SYN_RCVD state, which should be the ack to our synack.
+		 */
+		private void handleSynRcvd(TCPSegment seg){
+			/* received out of order packet instead of ack to synack
+			 */
+			if(!tcb.isInOrderPacket(seg)){
+				if (seg.getSegmentType() == TCPSegmentType.SYN){
+					//the synack was lost, send it again
+					sendLock.lock();
+					try {
+						if (unacked != null){
+							retransmit(unacked);
+						}
+					} finally {
+						sendLock.unlock();
+					}
+				} else {
+					metrics.outOfOrderDrop();
+				}
+				return;
+			}
+			if (stopRetransmit() == null){
+				//the tries expired in the meantime
+				return;
+			}
+
+			if(seg.getDataLength() > 0){
+				handleData(seg);
+			}
+
+			switch(seg.getSegmentType()){
+			case FIN:
+			case FINACK:
+				handleIncomingFin(seg);
+				break;
+			case DATA:
+				//now the ack was lost, but data was sent after that. Accept the in order data as an ACK.
+			case ACK:
+				setState(ConnectionState.S_ESTABLISHED);
+				break;
+			default:
+				//cannot happen for an in order packet
+			}
+			Log.d("accept()", "Server: Connection established.");
+			connectFuture.complete(true);
+		}
+
+		/**
+		 * handles a segment in the S_SYN_SENT state, which should be the synack.
+		 */
+		private void handleSynSent(TCPSegment seg){
+			//check if it has the right acknr and the right type
+			TCPSegmentType type = seg.getSegmentType();
+			if (type != TCPSegmentType.SYNACK || seg.ack_nr != tcb.getSeqnr()){ //no data expected, so 1 corresponds to a control packet
+				if (seg.ack_nr != tcb.getSeqnr()){
+					Log.e("waitForSynAck()", "received acknr " + seg.ack_nr + ". Expected: " + tcb.getSeqnr());
+				} 
+				if (type != TCPSegmentType.SYNACK) {
+					Log.e("waitForSynAck()", "received unexpected packet: " + type.name());
+				}
+				metrics.outOfOrderDrop();
+				return;
+			}
+			if (stopRetransmit() == null){
+				//the tries expired in the meantime
+				return;
+			}
+			//initialize acknr of client
+			tcb.initClient(seg);
+
+			//send ack
+			TCPSegment ack = tcb.createControlSegment(TCPSegmentType.ACK);
+			sockSend(ack);
+
+			setState(ConnectionState.S_ESTABLISHED);
+			Log.d("connect()", "Client: connection established");
+			connectFuture.complete(true);
+		}
+
+		/**
+		 * Sets the dest IP address right and calls send_tcp_segment().
+		 * @param pck
+		 */
+		private boolean sockSend(TCPSegment pck) {
+			SocketAddress remoteAddr = tcb.getRemoteSocketAddress();
+			pck.windowSize = receiveWindow();
+
+			try{
+				send_tcp_segment(remoteAddr.getIp(), pck);
+				//a super-segment is counted as the packets it was split into
+				int length = pck.getDataLength();
+				do {
+					int n = Math.min(length, MAX_DATA_LENGTH);
+					metrics.segmentSent(n);
+					length -= n;
+				} while (length > 0);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @return the window to advertise: the room in the receive buffer
+		 */
+		private int receiveWindow(){
+			return Math.min(MAX_WINDOW, recv_buf.remainingCapacity());
+		}
+
+		/**
+		 * @return the distance of a sequence number ahead of the one expected, modulo 2^32
+		 */
+		private long aheadOfExpected(long seq_nr){
+			return (seq_nr - tcb.getExpectedSeqnr() + TCPControlBlock.UINT_32_MAX + 1) % (TCPControlBlock.UINT_32_MAX + 1);
+		}
+
+		/**
+		 * @return true if seg only carries data in front of the one expected, from at most a super-segment back
+		 */
+		private boolean isDuplicate(TCPSegment seg){
+			if (!canReceive() || (seg.syn | seg.fin) != 0 || seg.getDataLength() == 0){
+				return false;
+			}
+			long behind = TCPControlBlock.UINT_32_MAX + 1 - aheadOfExpected(seg.seq_nr);
+			return behind >= seg.getDataLength() && behind <= MAX_SUPER_SEGMENT_LENGTH;
+		}
+
+		/**
+		 * keeps a data segment which arrived before the data in front of it, if it is at most a super-segment ahead.
+		 * @return false if the segment cannot be kept
+		 */
+		private boolean queueOutOfOrder(TCPSegment seg){
+			if (!canReceive() || (seg.syn | seg.fin) != 0 || seg.getDataLength() == 0 ||
+					outOfOrderBytes + seg.getDataLength() > MAX_SUPER_SEGMENT_LENGTH){
+				return false;
+			}
+			long ahead = aheadOfExpected(seg.seq_nr);
+			if (ahead == 0 || ahead >= MAX_SUPER_SEGMENT_LENGTH){
+				return false;
+			}
+			ListIterator<TCPSegment> it = outOfOrder.listIterator();
+			while (it.hasNext()){
+				long other = aheadOfExpected(it.next().seq_nr);
+				if (other == ahead){
+					//a duplicate
+					return true;
+				}
+				if (other > ahead){
+					it.previous();
+					break;
+				}
+			}
+			it.add(seg);
+			outOfOrderBytes += seg.getDataLength();
+			return true;
+		}
+
+		/**
+		 * handles the kept data segments which are in order now.
+		 */
+		private void drainOutOfOrder(){
+			while (!outOfOrder.isEmpty()){
+				TCPSegment next = outOfOrder.getFirst();
+				long ahead = aheadOfExpected(next.seq_nr);
+				if (ahead > 0 && ahead < MAX_SUPER_SEGMENT_LENGTH){
+					//still a gap in front of it
+					return;
+				}
+				outOfOrder.removeFirst();
+				outOfOrderBytes -= next.getDataLength();
+				if (ahead == 0 && canReceive()){
+					handleData(next);
+					signalData();
+					completeReads();
+					signalSelectors();
+				}
+			}
+		}
+
+		/**
+		 * handles the segments a ReceiveBatch merged into seg separately.
+		 */
+		private void handleParts(TCPSegment seg){
+			TCPSegment part = seg;
+			while (part != null){
+				TCPSegment next = part.next;
+				part.next = null;
+				part.coalesced = part.coalescedLength = 0;
+				handlePacket(part);
+				part = next;
+			}
+		}
+
+		/**
+		 * processes the (incoming) packet correctly based on the sequence numbers, flags and state
+		 * @param seg the packet to be processed
+		 */
+		private void handlePacket(TCPSegment seg){
+			if (seg.coalesced > 0 && !tcb.isInOrderPacket(seg)){
+				//a merged segment is only taken whole if it comes next, such as a retransmission overlapping data
+				//which was received already. Handle its parts one by one, as if they had not been merged.
+				handleParts(seg);
+				return;
+			}
+			metrics.segmentReceived(seg.getDataLength());
+			if (seg.coalesced > 0){
+				metrics.segmentsCoalesced(seg.coalesced);
+			}
+			int window = peerWindow;
+			peerWindow = seg.windowSize;
+
+			/*
+			 * header prediction: on an established connection, nearly every segment is the next data segment or the ack
+			 * of the segment in flight, with the same window as before. Handle those without the checks below.
+			 */
+			if ((seg.syn | seg.fin) == 0 && seg.windowSize == window && tcb.getState() == ConnectionState.S_ESTABLISHED &&
+					tcb.isInOrderPacket(seg)){
+				metrics.predictedSegment();
+				handleAck();
+				if (seg.getDataLength() > 0){
+					handleData(seg);
+					signalData();
+					completeReads();
+					signalSelectors();
+					drainOutOfOrder();
+				}
+				return;
+			}
+
+			//the packets of a super-segment in flight are acknowledged one by one, by pure acks as well as by the data
+			//the other side sends meanwhile, whatever their sequence numbers
+			if ((seg.syn | seg.fin) == 0 && seg.ack == 1 && handlePartialAck(seg) && seg.getDataLength() == 0){
+				return;
+			}
+
+			switch(tcb.getState()){
+			case S_CLOSED:
+				Log.d("handlePacket", "discarding packet for closed socket");
+				return;
+			case S_LISTEN:
+				handleListen(seg);
+				return;
+			case S_SYN_SENT:
+				handleSynSent(seg);
+				return;
+			case S_SYN_RCVD:
+				handleSynRcvd(seg);
+				return;
+			default:
+			}
+
+			/*
+			 * received a packet with the correct sequence number
+			 */
+			if(tcb.isInOrderPacket(seg)){
+				//increment acknr
+				
+				handleInOrderPacket(seg);
+				drainOutOfOrder();
+			}
+			
+			/*
+			 * received data packet just after having sent a data packet by yourself
+			 * therefore, the acknr is one too old, or only acknowledges part of our (super-)segment.
+			 */
+			else if (seg.seq_nr == tcb.getExpectedSeqnr() &&
+					(seg.ack_nr == tcb.getPreviousSeqnr() || tcb.isPartialAck(seg.ack_nr)))
+			{
+				Log.d("handlePacket","received packet with old acknr");
+				handlePreviousAcknr(seg);
+				drainOutOfOrder();
+			}
+
+			/* 
+			 * case of lost ack: we receive an old data packet with the previous sequence number
+			 */
+			else if (seg.seq_nr == tcb.getPreviousExpectedSeqnr() && 
+					(seg.ack_nr == tcb.getSeqnr() || seg.ack_nr == tcb.getPreviousSeqnr())){
+				Log.d("handlePacket","received packet with old seqnr");
+				handlePreviousSeqnr(seg);
+			}
+			
+			/*
+			 * data ahead of what we expect: keep it until the data in front of it arrives
+			 */
+			else if (queueOutOfOrder(seg)){
+				Log.d("handlePacket", "keeping out of order data with sequence number " + seg.seq_nr);
+			}
+
+			/*
+			 * data which was all received already, from further back than the previous segment: our ack was lost
+			 */
+			else if (isDuplicate(seg)){
+				Log.d("handlePacket", "received data again with sequence number " + seg.seq_nr + ", sending the ack again");
+				sockSend(tcb.createControlSegment(TCPSegmentType.ACK));
+			}
+
+			/*
+			 * packet completely out of order
+			 */
+			else {
+				//discard the packet and log it
+				metrics.outOfOrderDrop();
+				Log.d("handlePacket", "received incorrect (out of order) packet with sequence number " + seg.seq_nr + 
+						" and acknowledgement number " + seg.ack_nr + ". Expected seqnr: "+ tcb.getExpectedSeqnr() +
+						" or prev:" + tcb.getPreviousExpectedSeqnr()+ ", acknr" + tcb.getSeqnr());
+			}
+		}
+
+		/**
+		 * handle the case of an old sequence number. Probably caused by a lost ack.
+		 * @param seg
+		 */
+		private void handlePreviousSeqnr(TCPSegment seg) {
+
+			switch(seg.getSegmentType()){
+			
+			case SYN:
+				Log.d("sockRecv", "received SYN with old seqnr.");
+				//now the SYNACK was lost. Let the caller handle the lost ack now, or just discard it.
+				return;
+			case ACK:
+				Log.d("sockRecv", "received duplicate ACK.");
+			case DATA:
+				if(seg.getDataLength() <= 0){
+					//discard an empty ACK or DATA packet
+					return;
+				}
+				//fall through and send the ack to the data
+			default:
+				//resend lost ack
+				TCPSegment ack = tcb.generateAck(seg);
+				sockSend(ack);
+			}
+		}
+
+		/**
+		 * simultaneous data/fin sending
+		 * @param seg
+		 */
+		private void handlePreviousAcknr(TCPSegment seg) {
+			if (seg.getSegmentType() == TCPSegmentType.ACK){
+				//the other side did not take our data, or its window opened again
+				handleWindow();
+			}
+			if (seg.getDataLength() > 0){
+				handleData(seg);
+				//the data is in order, so wake up the readers as for any other in order data
+				signalData();
+				completeReads();
+				signalSelectors();
+			}
+
+			if(seg.getSegmentType() == TCPSegmentType.FIN){
+				handleIncomingFin(seg);
+			}
+		}
+
+		/**
+		 * Process a packet with the expected sequence/acknowledgement numbers
+		 * @param seg
+		 */
+		private void handleInOrderPacket(TCPSegment seg) {
+			switch(seg.getSegmentType()){
+			case FINACK:
+			case ACK:
+			case DATA:
+				//the segment in flight is acknowledged, even if in order data is received
+				handleAck();
+
+				//handle the data
+				if(seg.getDataLength() > 0 && tcb.getState() != ConnectionState.S_CLOSE_WAIT){
+					//put the data in the buffer and send an ack
+					handleData(seg);
+
+					//notify the application thread of having received data, if it is enough to be read
+					signalData();
+					completeReads();
+					signalSelectors();
+				}
+				if(seg.getSegmentType() != TCPSegmentType.FINACK){
+					//also process the fin flag
+					break;
+				}
+				//handle the fin flag
+			case FIN:
+				//an in order fin also acknowledges our fin in case of simultaneous closing
+				handleAck();
+				//go to appropriate state of the connection termination and ack the fin
+				handleIncomingFin(seg);
+				break;
+			default:
+				Log.d("receiverThread", "received unexpected packet type: " + seg.getSegmentType().name());
+			}
+
+		}
+
+		/**
+		 * sends a packet and schedules its retransmission. The packet is resent (max. MAX_TRIES times)
+		 * by the timer until stopRetransmit() is called.
+		 * Must be called with the sendLock held.
+		 * @param pck a SYN, SYNACK, FIN or data packet
+		 * @param delay the time (milliseconds) to wait for the ack before resending
+		 */
+		private void sendWithRetransmit(TCPSegment pck, int delay) {
+			unacked = pck;
+			ntries = 1;
+			sentAt = clock.nanoTime();
+			sockSend(pck);
+			retransmitTimer = timers.schedule(new RetransmitTask(pck, delay), delay);
+		}
+
+		/**
+		 * the segment in flight is acknowledged: stop its timer.
+		 * @return the acknowledged segment, or null if there was no segment in flight
+		 */
+		private TCPSegment stopRetransmit() {
+			sendLock.lock();
+			try {
+				if (unacked == null){
+					return null;
+				}
+				persisting = false;
+				timers.cancel(retransmitTimer);
+				if (ntries == 1){
+					//only measure segments which were not resent (Karn's algorithm)
+					metrics.rtt(clock.nanoTime() - sentAt);
+				}
+				TCPSegment acked = unacked;
+				unacked = null;
+				releaseData(acked);
+				return acked;
+			} finally {
+				sendLock.unlock();
+			}
+		}
+
+		/**
+		 * removes the data of a segment which is no longer in flight from the send buffer.
+		 * Must be called with the sendLock held.
+		 */
+		private void releaseData(TCPSegment pck){
+			if (pck.source != null){
+				pck.source.skip(pck.sourceLength);
+				if (send_buf.remainingCapacity() >= sendLowWater()){
+					spaceAvailable.signalAll();
+				}
+			}
+		}
+
+		/**
+		 * handles an ack of the first part of the super-segment in flight: that part is removed from the send buffer
+		 * and from the segment, so that a retransmission only carries the rest. The timer keeps running.
+		 * @return false if seg is no such ack
+		 */
+		private boolean handlePartialAck(TCPSegment seg){
+			sendLock.lock();
+			try {
+				if (unacked == null || unacked.source == null){
+					return false;
+				}
+				long acked = (seg.ack_nr - unacked.seq_nr + TCPControlBlock.UINT_32_MAX + 1) %
+						(TCPControlBlock.UINT_32_MAX + 1);
+				if (acked == 0 || acked >= unacked.sourceLength){
+					return false;
+				}
+				send_buf.skip((int) acked);
+				unacked.seq_nr = seg.ack_nr;
+				unacked.sourceLength -= acked;
+				if (send_buf.remainingCapacity() >= sendLowWater()){
+					spaceAvailable.signalAll();
+				}
+			} finally {
+				sendLock.unlock();
+			}
+			completeWrites();
+			signalSelectors();
+			return true;
+		}
+
+		/**
+		 * sends the segment in flight again. It acknowledges what was received since it was sent last, so that the
+		 * other side does not take the ack of an older segment for it.
+		 * Must be called with the sendLock held.
+		 */
+		private void retransmit(TCPSegment pck){
+			if (pck.ack == 1){
+				pck.ack_nr = tcb.getExpectedSeqnr();
+			}
+			metrics.retransmission();
+			sockSend(pck);
+		}
+
+		/**
+		 * the segment in flight is acknowledged. Stop its timer and continue with the next segment.
+		 */
+		private void handleAck() {
+			TCPSegment acked = stopRetransmit();
+			if (acked == null){
+				return;
+			}
+			Log.d("handleAck", "segment in flight was acknowledged");
+			if (acked.getSegmentType() == TCPSegmentType.FIN){
+				handleFinAcked();
+			}
+			transmitNext();
+			//the send buffer has space again
+			completeWrites();
+			signalSelectors();
+		}
+
+		/**
+		 * the other side did not acknowledge the data segment in flight. If its window is too small for the segment,
+		 * it had no room for it: keep probing until the window opens, without giving up. If the window opened again,
+		 * resend the segment at once rather than waiting for the timer.
+		 */
+		private void handleWindow() {
+			sendLock.lock();
+			try {
+				if (unacked == null || unacked.getSegmentType() != TCPSegmentType.DATA){
+					return;
+				}
+				if (peerWindow < unacked.getDataLength()){
+					persisting = true;
+				} else if (persisting){
+					persisting = false;
+					timers.cancel(retransmitTimer);
+					ntries = 1;
+					retransmit(unacked);
+					retransmitTimer = timers.schedule(new RetransmitTask(unacked, RETRANSMIT_TIMEOUT), RETRANSMIT_TIMEOUT);
+				}
+			} finally {
+				sendLock.unlock();
+			}
+		}
+
+		/**
+		 * Timer task which resends the segment in flight, or gives up if it was sent MAX_TRIES times.
+		 */
+		private class RetransmitTask implements Runnable {
+			private final TCPSegment pck;
+			private final int delay;
+
+			RetransmitTask(TCPSegment pck, int delay){
+				this.pck = pck;
+				this.delay = delay;
+			}
+
+			public void run() {
+				sendLock.lock();
+				try {
+					if (unacked != pck){
+						//acknowledged in the meantime
+						return;
+					}
+					metrics.timeout();
+					if (persisting || ntries < MAX_TRIES){
+						if (!persisting){
+							ntries++;
+						}
+						retransmit(pck);
+						retransmitTimer = timers.schedule(this, delay);
+						return;
+					}
+					metrics.retriesExpired();
+					unacked = null;
+					releaseData(pck);
+				} finally {
+					sendLock.unlock();
+				}
+				handleRetriesExpired(pck);
+			}
+		}
+
+		/**
+		 * no ack was received for a packet after MAX_TRIES tries.
+		 */
+		private void handleRetriesExpired(TCPSegment pck){
+			switch(pck.getSegmentType()){
+			case SYN:
+				Log.d("connect()", "failed to receive a SYN_ACK message from server");
+				setState(ConnectionState.S_CLOSED);
+				connectFuture.complete(false);
+				break;
+			case SYNACK:
+				//tries expired. Go back to listening state and try to listen again.
+				setState(ConnectionState.S_LISTEN);
+				break;
+			case FIN:
+				//if we fail to receive a fin ack, force close
+				closePending = false;
+				setState(ConnectionState.S_CLOSED);
+				break;
+			default:
+				Log.e("Connection broken", "number of retries expired for ack");
+				setState(ConnectionState.S_CLOSED);
+			}
+		}
+
+		/**
+		 * An asynchronous read or write which has not completed yet.
+		 */
+		private class PendingTransfer {
+			final ByteBuffer buf;
+			final TCPFuture<Integer> future;
+			/**number of bytes transferred so far*/
+			int count;
+
+			PendingTransfer(ByteBuffer buf, TCPFuture<Integer> future){
+				this.buf = buf;
+				this.future = future;
+			}
+		}
+
+		/**
+		 * @return true if data can still arrive from the other side
+		 */
+		private boolean canReceive(){
+			switch(tcb.getState()){
+			case S_ESTABLISHED:
+			case S_FIN_WAIT_1:
+			case S_FIN_WAIT_2:
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		/**
+		 * Reads bytes from the socket into the buffer without blocking. The future completes (in the thread of the stack
+		 * which receives the data) as soon as there are bytes in the receive buffer.
+		 * The bytes are put at the position of the buffer, which is advanced.
+		 *
+		 * @param dst the buffer to read into
+		 * @return a future completing with the number of bytes read, 0 if the other side closed the connection, or -1
+		 * if an error occurs, just like read().
+		 */
+		public TCPFuture<Integer> readAsync(ByteBuffer dst) {
+			if (!canRead("readAsync()")){
+				return TCPFuture.completed(-1);
+			}
+			TCPFuture<Integer> future = new TCPFuture<Integer>();
+			recvLock.lock();
+			try {
+				pendingReads.add(new PendingTransfer(dst, future));
+			} finally {
+				recvLock.unlock();
+			}
+			completeReads();
+			return future;
+		}
+
+		/**
+		 * completes the pending asynchronous reads with the data in the receive buffer, or with 0 if no more data will
+		 * arrive.
+		 */
+		private void completeReads(){
+			LinkedList<PendingTransfer> done = null;
+			int window;
+			recvLock.lock();
+			try {
+				window = receiveWindow();
+				while (!pendingReads.isEmpty()){
+					PendingTransfer r = pendingReads.getFirst();
+					if (!r.future.isCancelled()){
+						if (recv_buf.length() < recvLowWater(r.buf.remaining()) && canReceive()){
+							//wait for more data
+							break;
+						}
+						r.count = deBuffer(r.buf);
+						if (done == null){
+							done = new LinkedList<PendingTransfer>();
+						}
+						done.add(r);
+					}
+					pendingReads.removeFirst();
+				}
+			} finally {
+				recvLock.unlock();
+			}
+			if (done != null){
+				updateWindow(window);
+				//complete them outside the lock, since the listeners may read again
+				for (PendingTransfer r : done){
+					r.future.complete(r.count);
+				}
+			}
+		}
+
+		/**
+		 * takes as many bytes from the receive buffer as fit in dst.
+		 * @return the number of bytes read
+		 */
+		private int deBuffer(ByteBuffer dst){
+			return recv_buf.deBuffer(dst);
+		}
+
+		/**
+		 * Writes all remaining bytes of the buffer to the socket without blocking. The future completes when they are all
+		 * in the send buffer; if the send buffer is full, this happens in the thread of the stack once acks come in.
+		 * The position of the buffer is advanced as the bytes are taken.
+		 *
+		 * @param src the buffer to write from
+		 * @return a future completing with the number of bytes written, or -1 if an error occurs, just like write().
+		 */
+		public TCPFuture<Integer> writeAsync(ByteBuffer src) {
+			if(closePending || !canSend()){
+				Log.e("writeAsync()", "can't write: no connection established or socket closed");
+				return TCPFuture.completed(-1);
+			}
+			TCPFuture<Integer> future = new TCPFuture<Integer>();
+			synchronized(pendingWrites){
+				pendingWrites.add(new PendingTransfer(src, future));
+			}
+			completeWrites();
+			return future;
+		}
+
+		/**
+		 * @return true if the application may still send data
+		 */
+		private boolean canSend(){
+			return tcb.getState() == ConnectionState.S_ESTABLISHED || tcb.getState() == ConnectionState.S_CLOSE_WAIT;
+		}
+
+		/**
+		 * moves the data of the pending asynchronous writes into the send buffer as far as it fits, and completes the
+		 * writes that were buffered completely. If the connection cannot send anymore, the writes complete with -1.
+		 */
+		private void completeWrites(){
+			writesWaiting = true;
+			//a blocking write holds the writeLock while it waits for room, and buffers the pending writes after its own
+			//bytes once it is done. Whoever holds the lock goes over the writes again if they changed meanwhile.
+			while (writesWaiting && writeLock.tryLock()){
+				writesWaiting = false;
+				LinkedList<PendingTransfer> done = null;
+				boolean buffered = false;
+				try {
+					synchronized(pendingWrites){
+						while (!pendingWrites.isEmpty()){
+							PendingTransfer w = pendingWrites.getFirst();
+							if (!canSend()){
+								w.count = -1;
+							} else if (!w.future.isCancelled()){
+								//buffer as much as fits, as write() does
+								int n = buffer(w.buf);
+								if (n > 0){
+									w.count += n;
+									buffered = true;
+								}
+								if (w.buf.hasRemaining()){
+									//wait for the acks to make space
+									break;
+								}
+							}
+							pendingWrites.removeFirst();
+							if (done == null){
+								done = new LinkedList<PendingTransfer>();
+							}
+							done.add(w);
+						}
+					}
+				} finally {
+					writeLock.unlock();
+				}
+				if (buffered){
+					transmitNext();
+				}
+				if (done != null){
+					for (PendingTransfer w : done){
+						w.future.complete(w.count);
+					}
+				}
+			}
+		}
+
+		/**
+		 * moves as many bytes from src into the send buffer as fit.
+		 * @return the number of bytes moved
+		 */
+		private int buffer(ByteBuffer src){
+			return send_buf.buffer(src);
+		}
+
+		/**
+		 * Reads bytes from the socket into the buffer.
+		 * This call is not required to return maxlen bytes
+		 * every time it returns. It blocks until there is data, unless the socket is in non-blocking mode.
+		 *
+		 * @param buf the buffer to read into
+		 * @param offset the offset to begin reading data into
+		 * @param maxlen the maximum number of bytes to read
+		 * @return the number of bytes read, or -1 if an error occurs.
+		 */
+		public int read(byte[] buf, int offset, int maxlen) {
+			if (!canRead("read()")){
+				return -1;
+			}
+			
+			return read(buf, offset, maxlen, 0);
+		}
+
+		/**
+		 * Reads bytes from the socket into the buffer, like read(byte[], int, int), but waits at most a timeout for the
+		 * low-water mark to be reached. Then it returns what is there, possibly 0 bytes. Blocks even in non-blocking
+		 * mode.
+		 *
+		 * @param buf the buffer to read into
+		 * @param offset the offset to begin reading data into
+		 * @param maxlen the maximum number of bytes to read
+		 * @param timeout the longest time to wait in milliseconds. If set to a value <= 0, it waits indefinitely, unless
+		 * the socket is in non-blocking mode.
+		 * @return the number of bytes read, or -1 if an error occurs.
+		 */
+		public int read(byte[] buf, int offset, int maxlen, long timeout) {
+			if (!canRead("read()")){
+				return -1;
+			}
+
+			int n, window;
+			recvLock.lock();
+			try {
+				awaitData(recvLowWater(Math.min(maxlen, buf.length - offset)), timeout);
+				//they have already closed the connection, or we received enough data
+				window = receiveWindow();
+				n = recv_buf.deBuffer(buf, offset, maxlen);
+			} finally {
+				recvLock.unlock();
+			}
+			updateWindow(window);
+			return n;
+		}
+
+		/**
+		 * Reads bytes from the socket into the buffer, like read(byte[], int, int). The bytes are put at the position of
+		 * the buffer, which is advanced. They are copied straight from the receive buffer, also into a direct buffer.
+		 *
+		 * @param dst the buffer to read into
+		 * @return the number of bytes read, or -1 if an error occurs.
+		 */
+		public int read(ByteBuffer dst) {
+			return read(new ByteBuffer[] { dst });
+		}
+
+		/**
+		 * Reads bytes from the socket into a sequence of buffers, like read(ByteBuffer): each buffer is filled before
+		 * the next one is used. Blocks only until there is some data, unless the socket is in non-blocking mode.
+		 *
+		 * @param dsts the buffers to read into
+		 * @return the number of bytes read into all buffers together, or -1 if an error occurs.
+		 */
+		public int read(ByteBuffer[] dsts) {
+			if (!canRead("read()")){
+				return -1;
+			}
+
+			long max = 0;
+			for (ByteBuffer dst : dsts){
+				max += dst.remaining();
+			}
+			int n = 0, window;
+			recvLock.lock();
+			try {
+				awaitData(recvLowWater(max), 0);
+				window = receiveWindow();
+				for (ByteBuffer dst : dsts){
+					n += recv_buf.deBuffer(dst);
+					if (dst.hasRemaining()){
+						//the receive buffer is empty
+						break;
+					}
+				}
+			} finally {
+				recvLock.unlock();
+			}
+			updateWindow(window);
+			return n;
+		}
+
+		/**
+		 * Borrows the next received bytes, without copying them: the application reads them from a view of the
+		 * receive buffer, and gives them back with BorrowedBuffer.release(). The bytes of one received segment are
+		 * lent at most, or less if some of them were read already; with a buffer pool in direct memory, those of a
+		 * chunk of the pool. Blocks until there is data, unless the socket is in non-blocking mode.
+		 * <br/>
+		 * Borrowed bytes count towards the receive buffer until they are released.
+		 *
+		 * @return the borrowed bytes, or null if there is no data: the other side closed the connection, the socket is
+		 * in non-blocking mode, or an error occurs.
+		 */
+		public BorrowedBuffer borrow() {
+			if (!canRead("borrow()")){
+				return null;
+			}
+
+			Chunk c;
+			recvLock.lock();
+			try {
+				awaitData(recvLowWater(Integer.MAX_VALUE), 0);
+				c = recv_buf.lend();
+			} finally {
+				recvLock.unlock();
+			}
+			return c == null ? null : new BorrowedBuffer(this, c);
+		}
+
+		/**
+		 * takes back borrowed bytes, and opens the window if they made it close.
+		 * @param n the number of bytes borrowed
+		 */
+		void giveBack(Chunk c, int n){
+			int window;
+			recvLock.lock();
+			try {
+				window = receiveWindow();
+				recv_buf.giveBack(c, n);
+			} finally {
+				recvLock.unlock();
+			}
+			updateWindow(window);
+		}
+
+		/**
+		 * @param caller the method to log an error for
+		 * @return true if a connection was established to read from
+		 */
+		private boolean canRead(String caller){
+			if(!tcb.hasConnection ||
+					tcb.getState() == ConnectionState.S_SYN_RCVD ||
+					tcb.getState() == ConnectionState.S_SYN_SENT)
+			{
+				Log.e(caller, "can't read: no connection established");
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * blocks until there are enough bytes in the receive buffer, or no more data will arrive. Must be called with the
+		 * recvLock held.
+		 * @param wanted the number of bytes to wait for
+		 * @param timeout the longest time to wait in milliseconds. If <= 0, it waits indefinitely, or returns at once in
+		 * non-blocking mode.
+		 */
+		private void awaitData(int wanted, long timeout){
+			if (timeout <= 0 && nonBlocking){
+				return;
+			}
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+			/*
+			 * check if there are bytes in the buffer. If not, block until data comes in from the network.
+			 */
+			while(recv_buf.length() < wanted &&
+					//check if the connection wasn't closed by the other side in the meantime
+					canReceive())
+			{
+				blockedReaders++;
+				readWanted = Math.min(readWanted, wanted);
+				try {
+					//woken up when enough data arrives or the state changes. A virtual thread is unmounted meanwhile.
+					if (timeout <= 0){
+						dataAvailable.awaitUninterruptibly();
+					} else if (nanos <= 0){
+						return;
+					} else {
+						nanos = dataAvailable.awaitNanos(nanos);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} finally {
+					if (--blockedReaders == 0){
+						readWanted = Integer.MAX_VALUE;
+					}
+				}
+			}
+		}
+
+		/**
+		 * tells the other side that the window opened, if the application read enough data to make room for a full
+		 * segment again. The other side may have been refused data, or stopped sending.
+		 * @param before the window before the application read
+		 */
+		private void updateWindow(int before){
+			if (before < MAX_DATA_LENGTH && receiveWindow() >= MAX_DATA_LENGTH && canReceive()){
+				sockSend(tcb.createControlSegment(TCPSegmentType.ACK));
+			}
+		}
+
+		/**
+		 * Writes to the socket from the buffer.
+		 * Does not block, unless the socket is in blocking write mode: if the send buffer is full, fewer bytes
+		 * (possibly 0) are written.
+		 *
+		 * @param buf the buffer to
+		 * @param offset the offset to begin writing data from
+		 * @param len the number of bytes to write
+		 * @return the number of bytes written or -1 if an error occurs.
+		 */
+		public int write(byte[] buf, int offset, int len) {
+			if (!canWrite("write()")){
+				return -1;
+			}
+				
+			//maybe the buffer is not long enough
+			if((buf.length - offset) < len){
+				len = buf.length - offset;
+			}
+			if (blockingWrite && !nonBlocking){
+				return writeBlocking(new ByteBuffer[] { ByteBuffer.wrap(buf, offset, len) }, 0);
+			}
+			//copy as many bytes as fit into the send buffer
+			int nwr;
+			writeLock.lock();
+			try {
+				nwr = send_buf.buffer(buf, offset, len);
+			} finally {
+				unlockWrites();
+			}
+
+			//send the data now if no segment is in flight. Otherwise it is sent when the ack comes in.
+			transmitNext();
+			return nwr;
+		}
+
+		/**
+		 * Writes to the socket from the buffer, waiting for room in the send buffer as acks come in, until all bytes are
+		 * written or the timeout expires. Blocks even in non-blocking mode.
+		 *
+		 * @param buf the buffer to write from
+		 * @param offset the offset to begin writing data from
+		 * @param len the number of bytes to write
+		 * @param timeout the longest time to wait in milliseconds. If set to a value <= 0, it waits indefinitely.
+		 * @return the number of bytes written, len unless the timeout expired, the thread was interrupted or the
+		 * connection broke; or -1 if an error occurs before any byte was written.
+		 */
+		public int write(byte[] buf, int offset, int len, long timeout) {
+			if (!canWrite("write()")){
+				return -1;
+			}
+			if((buf.length - offset) < len){
+				len = buf.length - offset;
+			}
+			return writeBlocking(new ByteBuffer[] { ByteBuffer.wrap(buf, offset, len) }, timeout);
+		}
+
+		/**
+		 * Writes to the socket from the buffer, like write(byte[], int, int). The bytes are taken from the position of
+		 * the buffer, which is advanced past the bytes written. They are copied straight into the send buffer, also from
+		 * a direct buffer.
+		 *
+		 * @param src the buffer to write from
+		 * @return the number of bytes written or -1 if an error occurs.
+		 */
+		public int write(ByteBuffer src) {
+			return write(new ByteBuffer[] { src });
+		}
+
+		/**
+		 * Writes to the socket from a sequence of buffers, like write(ByteBuffer): the next buffer is only started when
+		 * the previous one is written completely, so that a header and a body can be written without joining them
+		 * first. No other write can come in between, not even while a blocking write waits for room: all writes take
+		 * the writeLock. Asynchronous writes wait for it as well, without blocking.
+		 *
+		 * @param srcs the buffers to write from
+		 * @return the number of bytes written from all buffers together, or -1 if an error occurs.
+		 */
+		public int write(ByteBuffer[] srcs) {
+			if (!canWrite("write()")){
+				return -1;
+			}
+			if (blockingWrite && !nonBlocking){
+				return writeBlocking(srcs, 0);
+			}
+
+			int nwr = 0;
+			writeLock.lock();
+			try {
+				for (ByteBuffer src : srcs){
+					nwr += send_buf.buffer(src);
+					if (src.hasRemaining()){
+						//the send buffer is full
+						break;
+					}
+				}
+			} finally {
+				unlockWrites();
+			}
+
+			transmitNext();
+			return nwr;
+		}
+
+		/**
+		 * moves the bytes of the buffers into the send buffer, waiting for room as the acks come in, until all are
+		 * written or the timeout expires.
+		 * @param timeout the longest time to wait in milliseconds, or <= 0 to wait indefinitely
+		 * @return the number of bytes written, or -1 if none could be written because the connection broke
+		 */
+		private int writeBlocking(ByteBuffer[] srcs, long timeout){
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+			int nwr = 0;
+			writeLock.lock();
+			sendLock.lock();
+			try {
+				for (ByteBuffer src : srcs){
+					while (src.hasRemaining()){
+						nwr += send_buf.buffer(src);
+						if (!src.hasRemaining()){
+							break;
+						}
+						//the send buffer is full. Send what is in it, so that the acks make room.
+						transmitNext();
+						int wanted = Math.min(sendLowWater(), src.remaining());
+						while (send_buf.remainingCapacity() < wanted && canSend() && !closePending){
+							if (send_buf.isEmpty()){
+								//no acks will come: the buffer pool of the stack is used up by other sockets
+								return nwr;
+							}
+							if (timeout <= 0){
+								//woken up by acks or state changes. A virtual thread is unmounted meanwhile.
+								spaceAvailable.awaitUninterruptibly();
+							} else if (nanos <= 0){
+								return nwr;
+							} else {
+								nanos = spaceAvailable.awaitNanos(nanos);
+							}
+						}
+						if (!canSend() || closePending){
+							Log.e("write()", "connection closed while writing");
+							return nwr > 0 ? nwr : -1;
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				sendLock.unlock();
+				transmitNext();
+				unlockWrites();
+			}
+			return nwr;
+		}
+
+		/**
+		 * releases the writeLock, and buffers the asynchronous writes which could not take it meanwhile.
+		 */
+		private void unlockWrites(){
+			writeLock.unlock();
+			completeWrites();
+		}
+
+		/**
+		 * @param caller the method to log an error for
+		 * @return true if the application may write to the connection
+		 */
+		private boolean canWrite(String caller){
+			if(closePending){
+				Log.e(caller, "can't write: socket closed");
+				return false;
+			}
+			if (!canSend()){
+				Log.e(caller, "can't write: no connection established");
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Closes the connection for this socket.
+		 * Does not block.
+		 *
+		 * @return true unless no connection was open.
+		 */
+		public boolean close() {
+			switch(tcb.getState()){
+			case S_ESTABLISHED:
+			case S_CLOSE_WAIT:
+				closePending = true;
+				//writers blocked in write() give up
+				signalWriters();
+				//the FIN is sent as soon as the send buffer is empty
+				transmitNext();
+				return true;
+			default:
+				Log.e("close() error", "can't close a non-open socket");
+				return false;
+			}
+		}
+
+		/**
+		 * wait for fin to ensure the last ack is received.
+		 * Does not block: the connection is moved to the stack's TIME_WAIT table, which acknowledges retransmitted fins
+		 * until it expires. The socket itself is closed at once.
+		 */
+		private void timeWait(){
+			tcb.setState(ConnectionState.S_TIME_WAIT);
+			metrics.stateEntered(ConnectionState.S_TIME_WAIT);
+			timeWaitTable.add(tcb);
+
+			//close the connection
+			setState(ConnectionState.S_CLOSED);
+		}
+
+		/**
+		 * buffer the received data and send an ack if the buffer is not full
+		 */
+		private void handleData(TCPSegment seg){
+			switch(tcb.getState()){
+			case S_CLOSE_WAIT:
+			case S_CLOSED:
+			case S_CLOSING:
+			case S_TIME_WAIT:
+			case S_LAST_ACK:
+				//in all these cases, the FIN has already been received
+				break;
+			default:
+				int buffered = 0;
+				try {
+					//put the data at the end of the buffer. The arrays of the segments are kept, not copied, if they can.
+					for (TCPSegment part = seg; part != null; part = part.next){
+						recv_buf.append(part.data);
+						buffered += part.data.length;
+					}
+				} catch (FullCollectionException e) {
+					//no room: do not acknowledge the rest, but tell the other side the window, so it retries later
+					Log.d("handleData", "receive buffer full, dropping " + (seg.getDataLength() - buffered) + " bytes");
+					metrics.windowDrop();
+					if (buffered > 0){
+						tcb.getAndIncrementAcknr(buffered);
+					}
+					sockSend(tcb.createControlSegment(TCPSegmentType.ACK));
+					return;
+				}
+				tcb.getAndIncrementAcknr(buffered);
+			}
+			//send ack
+			TCPSegment ack = tcb.generateAck(seg);
+			sockSend(ack);
+		}
+
+		/**
+		 * here, the receiving thread received a fin packet. Process it according to the current state,
+		 * possibly including terminating the connection.
+		 */
+		private void handleIncomingFin(TCPSegment seg){
+			TCPSegment ack = tcb.generateAck(seg);
+
+			/*
+			 * if we were in established state, go to close_wait state and send an ack.
+			 * if we were already in close_wait, and receive a fin again, resend the ack since it was apparently lost.
+			 */
+			switch(tcb.getState()){
+			case S_FIN_WAIT_1:
+				//simultaneous closing
+				tcb.getAndIncrementAcknr(1);
+				//send the ack before the state change, which may let the application send our fin
+				sockSend(ack);
+				setState(ConnectionState.S_CLOSING);
+				return;
+			case S_ESTABLISHED:
+			case S_SYN_RCVD:
+				//other side closed first
+				tcb.getAndIncrementAcknr(1);
+				sockSend(ack);
+				setState(ConnectionState.S_CLOSE_WAIT);
+				return;
+			case S_CLOSE_WAIT:
+			case S_LAST_ACK:
+			case S_CLOSING:
+				//ack to fin was lost
+				break;
+			case S_FIN_WAIT_2:
+				//our side closed first
+				tcb.getAndIncrementAcknr(1);
+				sockSend(ack);
+				timeWait();
+				return;
+			default:
+				Log.d("handleIncomingFin", "received FIN packet in state: " + tcb.getState().name());
+				return;
+			}
+			//send ack
+			sockSend(ack);
+		}
+
+		/**
+		 * sends the next data packet in the send buffer, or the FIN if the application closed the socket and all data
+		 * has been sent. Does nothing if a segment is still waiting for its ack.
+		 */
+		private void transmitNext(){
+			sendLock.lock();
+			try {
+				if (unacked != null){
+					return;
+				}
+				//only send packets if the connections hasn't been closed yet by the application
+				switch(tcb.getState()){
+				case S_ESTABLISHED:
+				case S_CLOSE_WAIT:
+					break;
+				default:
+					return;
+				}
+
+				/*
+				 * there are packets in the buffer to be sent
+				 */
+				if (!send_buf.isEmpty()){
+					sendNextDataSegment();
+				}
+				/*
+				 * There are no more packets to be sent and the connection is to be closed. Send a FIN packet.
+				 */
+				else if (closePending && !hasPendingWrites()) {
+					handleCloseRequest();
+				}
+			} finally {
+				sendLock.unlock();
+			}
+		}
+
+		/**
+		 * @return true if there are asynchronous writes which are not in the send buffer yet
+		 */
+		private boolean hasPendingWrites(){
+			synchronized(pendingWrites){
+				return !pendingWrites.isEmpty();
+			}
+		}
+
+		/**
+		 * sends the next data packet in the send buffer. The ack is handled by the receiver thread.
+		 */
+		private void sendNextDataSegment(){
+			//the data stays in the send buffer until it is acknowledged, and is copied from there into every packet
+			//which carries the segment, so that it does not pass through an array of its own.
+			//Send as much as the other side has room for in one super-segment, but at least a packet as before.
+			int length = Math.max(MAX_DATA_LENGTH, Math.min(peerWindow, MAX_SUPER_SEGMENT_LENGTH));
+			TCPSegment seg = tcb.createDataSegment(send_buf, Math.min(send_buf.length(), length));
+
+			sendWithRetransmit(seg, RETRANSMIT_TIMEOUT);
+		}
+
+		/**
+		 * handles an incoming close request
+		 */
+		private void handleCloseRequest(){
+			switch(tcb.getState()){
+			case S_ESTABLISHED:
+				setState(ConnectionState.S_FIN_WAIT_1);
+				break;
+			case S_CLOSE_WAIT:
+				setState(ConnectionState.S_LAST_ACK);
+				break;
+			default:
+				Log.d("closePending", "strange state: " + tcb.getState().name());
+				return;
+			}
+			//send fin
+			TCPSegment fin = tcb.createControlSegment(TCPSegmentType.FIN);
+			sendWithRetransmit(fin, RETRANSMIT_TIMEOUT);
+		}
+
+		/**
+		 * our FIN was acknowledged.
+		 */
+		private void handleFinAcked(){
+			switch(tcb.getState()){
+			case S_FIN_WAIT_1:
+				setState(ConnectionState.S_FIN_WAIT_2);
+				break;
+			case S_CLOSING:
+				timeWait();
+				break;
+			case S_LAST_ACK:
+				setState(ConnectionState.S_CLOSED);
+				break;
+			default:
+			}
+			closePending = false;
+		}
+
+	}
+
+	/**
+	 * packs the addresses of a connection of this stack into one number. The local IP address is the same for all
+	 * connections, so it is not included.
+	 */
+	static long connectionKey(int localPort, int remoteIp, int remotePort){
+		return ((long) remoteIp << 32) | ((long) (remotePort & 0xffff) << 16) | (localPort & 0xffff);
+	}
+
+	/**
+	 * @return the local port for a new client socket. The ports wrap around to DEFAULT_CLIENT_PORT after 65535.
+	 */
+	private synchronized int allocateClientPort(){
+		int port = nextClientPort;
+		nextClientPort = port == 65535 ? DEFAULT_CLIENT_PORT : port + 1;
+		return port;
+	}
+
+	/**
+	 * (re)registers a socket according to its state, so that the demultiplexer can find it:
+	 * listening sockets by their local port, sockets with a (half) open connection by their addresses.
+	 * Closed sockets are removed.
+	 */
+	private void register(Socket sock){
+		synchronized(registryLock){
+			//remove the old registration
+			if (sock.registration instanceof Long){
+				if (connections.get(sock.registration) == sock){
+					connections.remove(sock.registration);
+				}
+			} else if (sock.registration instanceof Integer){
+				ConcurrentLinkedQueue<Socket> l = listeners.get(sock.registration);
+				l.remove(sock);
+				if (l.isEmpty()){
+					listeners.remove(sock.registration);
+				}
+			}
+			sock.registration = null;
+
+			TCPControlBlock tcb = sock.tcb;
+			switch(tcb.getState()){
+			case S_CLOSED:
+				return;
+			case S_LISTEN:
+				Integer port = tcb.getLocalSocketAddress().getPort();
+				ConcurrentLinkedQueue<Socket> l = listeners.get(port);
+				if (l == null){
+					l = new ConcurrentLinkedQueue<Socket>();
+					listeners.put(port, l);
+				}
+				l.add(sock);
+				sock.registration = port;
+				break;
+			default:
+				SocketAddress remote = tcb.getRemoteSocketAddress();
+				Long key = connectionKey(tcb.getLocalSocketAddress().getPort(), remote.getIp().getAddress(), remote.getPort());
+				connections.put(key, sock);
+				sock.registration = key;
+				//a new connection replaces an old one in TIME_WAIT
+				timeWaitTable.remove(key);
+			}
+
+			if (demultiplexer == null && receiver && !closed){
+				receiverThread = new Thread(new Receiver(), "TCP receiver " + ip.getLocalAddress());
+				receiverThread.setDaemon(true);
+				receiverThread.start();
+				demultiplexer = new Thread(new Demultiplexer(), "TCP demultiplexer " + ip.getLocalAddress());
+				demultiplexer.setDaemon(true);
+				demultiplexer.start();
+			}
+		}
+	}
+
+	/**
+	 * hands an incoming segment to the socket it belongs to, or to the TIME_WAIT table.
+	 */
+	private void demultiplex(TCPSegment seg){
+		long key = connectionKey(seg.dest_port, seg.source_ip.getAddress(), seg.src_port);
+		Socket sock = connections.get(key);
+		if (sock == null){
+			ConcurrentLinkedQueue<Socket> l = listeners.get(seg.dest_port);
+			if (l != null){
+				//null if the last listener just went away
+				sock = l.peek();
+			}
+		}
+		if (sock != null){
+			sock.handlePacket(seg);
+		} else if (timeWaitTable.contains(key)){
+			metrics.segmentReceived(seg.getDataLength());
+			TCPSegment ack = timeWaitTable.handleSegment(key, seg);
+			if (ack != null){
+				try {
+					send_tcp_segment(seg.source_ip, ack);
+					metrics.segmentSent(0);
+				} catch (IOException e) {
+					Log.e("demultiplex", "Failed sending ack in TIME_WAIT", e);
+				}
+			}
+		} else {
+			metrics.unmatchedSegment();
+			Log.d("demultiplex", "no socket for packet to port " + seg.dest_port + " from " + seg.source_ip.toString() +
+					":" + seg.src_port);
+		}
+	}
+
+	/**
+	 * decodes a received packet and hands it to the socket it belongs to. Invalid packets are counted and dropped.
+	 * Called by the demultiplexer thread, or by the owner of a stack without one.
+	 */
+	void deliver(Packet ip_packet){
+		TCPSegment seg = decodeForDelivery(ip_packet);
+		if (seg != null){
+			demultiplex(seg);
+		}
+	}
+
+	/**
+	 * decodes a batch of received packets and hands them to the sockets they belong to, after merging the
+	 * consecutive in-order data segments of each connection. The sockets then buffer, acknowledge and wake up the
+	 * application once for them.
+	 * @param batch collects the segments; empty before and after
+	 */
+	void deliver(Packet[] ip_packets, int count, ReceiveBatch batch){
+		for (int i = 0; i < count; i++){
+			TCPSegment seg = decodeForDelivery(ip_packets[i]);
+			if (seg != null){
+				TCPSegment before = batch.add(seg);
+				if (before != null){
+					demultiplex(before);
+				}
+			}
+		}
+		TCPSegment seg;
+		while ((seg = batch.poll()) != null){
+			demultiplex(seg);
+		}
+	}
+
+	/**
+	 * decodes a received packet. Invalid packets are counted and dropped, as are those the fault injector drops.
+	 * @return the segment, or null if it is dropped
+	 */
+	private TCPSegment decodeForDelivery(Packet ip_packet){
+		try {
+			TCPSegment seg = decode_tcp_segment(ip_packet);
+			FaultInjector f = faults;
+			if (f != null && f.drop(seg, false)){
+				return null;
+			}
+			return seg;
+		} catch (ChecksumException e) {
+			metrics.checksumFailure();
+			Log.d("deliver", "Invalid packet: " + e.getMessage());
+		} catch (InvalidPacketException e) {
+			metrics.invalidSegment();
+			Log.d("deliver", "Invalid packet: " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Thread that receives all packets of this stack into the receive queue. Waits while the queue is full, so that
+	 * packets pile up in the IP layer instead.
+	 */
+	private class Receiver implements Runnable {
+
+		public void run() {
+			while (!closed){
+				//the segment is decoded into its own arrays, so the packet can be reused once it is delivered
+				Packet ip_packet = packets.acquire();
+				try {
+					recv_ip_packet(ip_packet, RECEIVE_POLL_SECONDS);
+					receiveQueue.put(ip_packet);
+					ip_packet = null;
+				} catch (InterruptedException e) {
+					//no packet in time, or the stack is closed
+				} catch (IOException e) {
+					Log.e("IP Receive Fail", "Failed receiving IP packet", e);
+				} finally {
+					if (ip_packet != null){
+						packets.release(ip_packet);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Thread that takes the received packets from the queue and hands them to the sockets: all packets which are
+	 * there at once as one batch, so that under load the work per packet shrinks.
+	 */
+	private class Demultiplexer implements Runnable {
+
+		public void run() {
+			Packet[] batch = new Packet[RECEIVE_BATCH];
+			ReceiveBatch segments = new ReceiveBatch(RECEIVE_BATCH);
+			while (!closed){
+				int count = 0;
+				try {
+					Packet first = receiveQueue.take();
+					batch[count++] = first;
+					while (count < batch.length){
+						Packet p = receiveQueue.poll();
+						if (p == null){
+							break;
+						}
+						batch[count++] = p;
+					}
+					deliver(batch, count, segments);
+				} catch (InterruptedException e) {
+					//the stack is closed
+				} finally {
+					for (int i = 0; i < count; i++){
+						packets.release(batch[i]);
+						batch[i] = null;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Constructs a TCP stack for the given virtual address.
+	 * The virtual address for this TCP stack is then
+	 * 192.168.1.address.
+	 *
+	 * @param address The last octet of the virtual IP address 1-254.
+	 * @throws IOException if the IP stack fails to initialize.
+	 */
+	public TCP(int address) throws IOException {
+		this(new IP(address), Clock.SYSTEM, true);
+	}
+
+	/**
+	 * Constructs a TCP stack on top of another IP layer than the native one.
+	 *
+	 * @param ip the IP layer to send and receive the packets with
+	 */
+	public TCP(IPTransport ip) {
+		this(ip, Clock.SYSTEM, true);
+	}
+
+	/**
+	 * @param ip the IP layer to send the packets with
+	 * @param clock the time source
+	 * @param receiver if true, the stack receives its packets from the IP layer with its own thread and runs its
+	 * timers on another thread. If false, the caller hands the packets to deliver(), and the timers only run when
+	 * the caller advances them, see getTimers().
+	 */
+	TCP(IPTransport ip, Clock clock, boolean receiver) {
+		this.ip = ip;
+		this.clock = clock;
+		this.receiver = receiver;
+		ip_packet_id = new AtomicInteger(0);
+		metrics = new TCPMetrics();
+		nextClientPort = DEFAULT_CLIENT_PORT;
+		timeout = DEFAULT_TIMEOUT;
+		timers = new TimingWheel("TCP timers " + ip.getLocalAddress(), !receiver);
+		connections = new ConcurrentHashMap<Long, Socket>();
+		listeners = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Socket>>();
+		timeWaitTable = new TimeWaitTable(timers);
+		synchronized(stacks){
+			stacks.put(this, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * shuts the stack down: stops its receiver, demultiplexer and timer threads, and removes it from getStacks().
+	 * Close the sockets first. Connections which are still open get no packets anymore, and their timers do not run.
+	 * The receiver thread may take up to RECEIVE_POLL_SECONDS to notice, since the IP layer cannot be interrupted.
+	 */
+	public void close(){
+		Thread r;
+		Thread d;
+		synchronized(registryLock){
+			closed = true;
+			r = receiverThread;
+			d = demultiplexer;
+		}
+		if (r != null){
+			r.interrupt();
+			d.interrupt();
+		}
+		timers.stop();
+		synchronized(stacks){
+			stacks.remove(this);
+		}
+	}
+
+	/**
+	 * @return all TCP stacks of this process which are still in use, that is which are not closed
+	 */
+	public static List<TCP> getStacks(){
+		synchronized(stacks){
+			return new ArrayList<TCP>(stacks.keySet());
+		}
+	}
+
+	/**
+	 * @return a new client socket for this stack.
+	 */
+	public Socket socket() {
+		return new Socket();
+	}
+
+	/**
+	 * @return the IP address of the TCP stack
+	 */
+	public String getIPAddress(){
+
+		return this.ip.getLocalAddress().toString();
+
+	}
+
+	/**
+	 * @return the counters of this stack, which include those of all its sockets
+	 */
+	public TCPMetrics getMetrics(){
+		return metrics;
+	}
+
+	/**
+	 * starts or stops capturing the packets this stack sends and receives. The capture is not closed when it is
+	 * replaced.
+	 * @param capture the capture to write to, or null to stop capturing
+	 */
+	public void setCapture(PacketCapture capture){
+		this.capture = capture;
+	}
+
+	/**
+	 * @return the capture the packets of this stack are written to, or null
+	 */
+	public PacketCapture getCapture(){
+		return capture;
+	}
+
+	/**
+	 * starts or stops dropping segments according to a script.
+	 * @param faults the injector, or null to stop dropping segments
+	 */
+	public void setFaultInjector(FaultInjector faults){
+		this.faults = faults;
+	}
+
+	/**
+	 * @return the injector which drops segments of this stack, or null
+	 */
+	public FaultInjector getFaultInjector(){
+		return faults;
+	}
+
+	/**
+	 * @return the allocator of the send and receive buffers of this stack, whose maximum can be changed
+	 */
+	public BufferPool getBufferPool(){
+		return buffers;
+	}
+
+	/**
+	 * @return the timers of this stack. Those of a stack without a receiver thread are advanced by its owner.
+	 */
+	TimingWheel getTimers(){
+		return timers;
+	}
+
+	/**
+	 * sets how the initial sequence numbers of new connections are chosen.
+	 * @param source the source, or null for random sequence numbers
+	 */
+	void setSequenceNumberSource(SequenceNumberSource source){
+		isnSource = source;
+	}
+
+	/**
+	 * @return the number of connections of this stack which are (half) open, or being opened
+	 */
+	public int getOpenConnections(){
+		return connections.size();
+	}
+
+	/**
+	 * @return the sockets of this stack which are listening or have a (half) open connection. Sockets which open or
+	 * close in the meantime may be missing or included.
+	 */
+	public List<Socket> getSockets(){
+		List<Socket> l = new ArrayList<Socket>(connections.values());
+		for (ConcurrentLinkedQueue<Socket> q : listeners.values()){
+			l.addAll(q);
+		}
+		return l;
+	}
+
+	/**
+	 * @return the number of connections of this stack in the TIME_WAIT state
+	 */
+	public int getTimeWaitConnections(){
+		return timeWaitTable.size();
+	}
+
+	/**
+	 * @return a new server socket for this stack bound to the given port.
+	 * @param port the port to bind the socket to.
+	 */
+	public Socket socket(int port) {
+		return new Socket(port);
+	}
+
+	/**
+	 * @return a new client socket bound to the given port instead of the next free client port.
+	 */
+	Socket clientSocket(int port) {
+		Socket sock = new Socket(port);
+		sock.isClientSocket = true;
+		return sock;
+	}
+
+
+	/**
+	 * encode data in a TCP packet, add header, calculate checksum and send the
+	 * packet through the IP layer
+	 * @return -
+	 * @param destination IP
+	 * @param the TCP packet to be sent
+	 * @throws IOException if the sending failed
+	 */
+	void send_tcp_segment(IpAddress destination, TCPSegment p) throws IOException{
+		if (p.getDataLength() > MAX_DATA_LENGTH){
+			send_super_segment(destination, p);
+			return;
+		}
+		FaultInjector f = faults;
+		if (f != null && f.drop(p, true)){
+			return;
+		}
+
+		//get integer value of IPAddress
+		int destIpInt = destination.getAddress();
+
+		//encode tcp packet into a packet of the pool
+		Packet ip_packet = packets.acquire();
+		try {
+			byte[] bytes = ip_packet.data;
+			int length = p.encode(bytes);
+
+			//calculate checksum
+			int source = ip.getLocalAddress().getAddress();
+			short checksum = p.checksum = TCPSegment.calculateChecksum(source, destIpInt, length, bytes);
+
+			//add checksum to packet bytes
+			bytes[TCPSegment.CHECKSUM_OFFSET] = (byte) ((checksum >>8) & 0x00ff);
+			bytes[TCPSegment.CHECKSUM_OFFSET + 1] = (byte) ((checksum) & 0x00ff);
+
+			//fill in the packet and increment ID counter
+			ip_packet.source = source;
+			ip_packet.destination = destIpInt;
+			ip_packet.protocol = IP.TCP_PROTOCOL;
+			ip_packet.id = ip_packet_id.getAndIncrement();
+			ip_packet.length = length;
+
+			PacketCapture c = capture;
+			if (c != null){
+				c.capture(ip_packet);
+			}
+
+			//log for debugging details
+			if (Log.isLoggable("send_tcp_segment()", Log.DEBUG)){
+				Log.d("send_tcp_segment()","Packet to be sent: " + p.toString());
+				Log.d("send_tcp_segment()","to IP : " + destination.toString() + " at port : " + p.dest_port +
+						" From IP: " + ip.getLocalAddress().toString() + " at port " + p.src_port);
+				Log.d("send_tcp_segment()","Other pseudo header fields - length: " + length + " protocol: " +
+						IP.TCP_PROTOCOL);
+			}
+
+			//send packet
+			ip.ip_send(ip_packet);
+		} finally {
+			packets.release(ip_packet);
+		}
+	}
+
+
+	/**
+	 * sends a data segment with more than MAX_DATA_LENGTH bytes of data in the send buffer as packets of at most
+	 * MAX_DATA_LENGTH bytes. The header is encoded, and its part of the checksum summed, once; each packet only gets
+	 * its sequence number, its data and the sum of its data. The fault injector sees every packet, as a segment with
+	 * the sequence number and the length of that packet.
+	 */
+	private void send_super_segment(IpAddress destination, TCPSegment p) throws IOException{
+		int destIpInt = destination.getAddress();
+		int source = ip.getLocalAddress().getAddress();
+
+		byte[] header = new byte[TCPSegment.HEADER_LENGTH];
+		p.encodeHeader(header);
+		int partial = TCPSegment.partialChecksum(source, destIpInt, header);
+
+		int total = p.getDataLength();
+		FaultInjector f = faults;
+		boolean debug = Log.isLoggable("send_tcp_segment()", Log.DEBUG);
+		for (int offset = 0; offset < total; offset += MAX_DATA_LENGTH){
+			int n = Math.min(MAX_DATA_LENGTH, total - offset);
+			long seq_nr = (p.seq_nr + offset) % (TCPControlBlock.UINT_32_MAX + 1);
+			int length = TCPSegment.HEADER_LENGTH + n;
+			TCPSegment view = f != null || debug ? p.packetView(seq_nr, n) : null;
+			if (f != null && f.drop(view, true)){
+				continue;
+			}
+
+			Packet ip_packet = packets.acquire();
+			try {
+				byte[] bytes = ip_packet.data;
+				System.arraycopy(header, 0, bytes, 0, TCPSegment.HEADER_LENGTH);
+				TCPSegment.stampSeqnr(bytes, seq_nr);
+				p.source.peek(offset, bytes, TCPSegment.HEADER_LENGTH, n);
+
+				short checksum = TCPSegment.finishChecksum(partial, seq_nr, length, bytes);
+				bytes[TCPSegment.CHECKSUM_OFFSET] = (byte) ((checksum >>8) & 0x00ff);
+				bytes[TCPSegment.CHECKSUM_OFFSET + 1] = (byte) ((checksum) & 0x00ff);
+
+				ip_packet.source = source;
+				ip_packet.destination = destIpInt;
+				ip_packet.protocol = IP.TCP_PROTOCOL;
+				ip_packet.id = ip_packet_id.getAndIncrement();
+				ip_packet.length = length;
+
+				PacketCapture c = capture;
+				if (c != null){
+					c.capture(ip_packet);
+				}
+
+				if (debug){
+					view.checksum = checksum;
+					Log.d("send_tcp_segment()", "Packet " + (offset / MAX_DATA_LENGTH) + " of super-segment: " +
+							view.toString());
+				}
+
+				ip.ip_send(ip_packet);
+			} finally {
+				packets.release(ip_packet);
+			}
+		}
+	}
+
+	/**
+	 * receive a packet within a given time
+	 * @param ip_packet the packet to receive into, see packets
+	 * @param timeout the timeout (seconds) to wait for a packet. If set to a value <= 0, it waits indefinitely.
+	 * @throws InterruptedException if the timeout expired
+	 * @throws IOException if the receiving fails
+	 */
+	void recv_ip_packet(Packet ip_packet, int timeout) throws InterruptedException, IOException{
+		if(timeout > 0){
+			ip.ip_receive_timeout(ip_packet, timeout);
+		} else {
+			ip.ip_receive(ip_packet);			
+		}
+
+		//capture before validating, so that invalid packets can be inspected as well
+		PacketCapture c = capture;
+		if (c != null){
+			c.capture(ip_packet);
+		}
+	}
+
+	/**
+	 * validate a received packet and decode the TCP segment in it
+	 * @throws InvalidPacketException if the packet is corrupted or has incorrect content
+	 */
+	TCPSegment decode_tcp_segment(Packet ip_packet) throws InvalidPacketException{
+		//wrong protocol
+		if(ip_packet.protocol != IP.TCP_PROTOCOL){
+			//not for me
+			throw new InvalidPacketException("Wrong protocol. Ecpected TCP");
+		}
+		//packet is too short to parse
+		if(ip_packet.length < TCPSegment.HEADER_LENGTH || ip_packet.data.length < TCPSegment.HEADER_LENGTH 
+				|| ip_packet.data.length < ip_packet.length){
+			throw new InvalidPacketException("Packet too short");
+		}
+
+		//parse packet
+		TCPSegment tcp_packet = TCPSegment.decode(ip_packet.data, ip_packet.length);
+
+		//validate checksum
+		int sourceip = ip_packet.source;
+		int destip = ip_packet.destination;
+		int checksum = TCPSegment.calculateChecksum(sourceip, destip, ip_packet.length, ip_packet.data);
+
+		if (checksum != tcp_packet.checksum){
+			//packet was corrupted because checksum is not correct
+			throw new ChecksumException("Invalid checksum. Expected: " + checksum + ". Received: " + tcp_packet.checksum);
+		} else if (tcp_packet.getSegmentType() == TCPSegmentType.INVALID){
+			throw new InvalidPacketException("Invalid flags");
+		}
+
+		//get source IP address which is used by the higher layers
+		tcp_packet.source_ip = IpAddress.getAddress(ip_packet.source);
+
+		if (Log.isLoggable("decode_tcp_segment()", Log.DEBUG)){
+			Log.d("decode_tcp_segment()", "received packet: " + tcp_packet.toString());
+		}
+
+		return tcp_packet;
+	}
+}
\ No newline at end of file
@@ -2,7 +2,6 @@ package nl.vu.cs.cn;
 
 import java.util.Random;
 
-import android.util.Log;
 import nl.vu.cs.cn.IP.IpAddress;
 import nl.vu.cs.cn.TCPSegment.TCPSegmentType;
 
@@ -187,6 +186,15 @@ class TCPControlBlock{
 		return previous_acknr;
 	}
 	
+	/**
+	 * @return true if ack_nr acknowledges part of the last segment sent, or none of it: the other side sent it before
+	 * it received all of that segment
+	 */
+	boolean isPartialAck(long ack_nr){
+		long sent = (current_seqnr - previous_seqnr + UINT_32_MAX + 1) % (UINT_32_MAX + 1);
+		return (ack_nr - previous_seqnr + UINT_32_MAX + 1) % (UINT_32_MAX + 1) < sent;
+	}
+
 	/**
 	 * @param pck
 	 * @return true if the packet belongs to the current connection (and it contains the addresses corresponding to our socket)
@@ -217,7 +225,7 @@ class TCPControlBlock{
 				st == TCPSegmentType.SYN || st == TCPSegmentType.SYNACK || st == TCPSegmentType.FIN || st == TCPSegmentType.FINACK
 						? getAndIncrementSeqnr(1) : getSeqnr(),
 				current_acknr,
-				st, new byte[0]);
+				st, TCPSegment.NO_DATA);
 	}
 	
 	/**
@@ -231,6 +239,18 @@ class TCPControlBlock{
 				TCPSegmentType.DATA, data);
 	}
 	
+	/**
+	 * creates a new packet with the DATA type whose data are the first bytes of a buffer, which keeps them until
+	 * the packet is acknowledged.
+	 * Also increments the sequence number by the length of the data.
+	 * @param buf the buffer which starts with the data
+	 * @param length the number of bytes of data
+	 * @return
+	 */
+	TCPSegment createDataSegment(BoundedByteBuffer buf, int length){
+		return new TCPSegment(local_port, remote_port, getAndIncrementSeqnr(length), current_acknr, buf, length);
+	}
+	
 	/**
 	 * generates an ACK packet which acknowledges the packet specified by pck.
 	 * This method does not increase the sequence/ack number of the TCB.
@@ -238,6 +258,6 @@ class TCPControlBlock{
 	 * @return the new ACK packet
 	 */
 	TCPSegment generateAck(TCPSegment pck){
-		return new TCPSegment(local_port, remote_port, current_seqnr, pck.seq_nr + (pck.data.length > 0 ? pck.data.length : 1), TCPSegmentType.ACK, new byte[0]);
+		return new TCPSegment(local_port, remote_port, current_seqnr, pck.seq_nr + (pck.getDataLength() > 0 ? pck.getDataLength() : 1), TCPSegmentType.ACK, TCPSegment.NO_DATA);
 	}
 }
@@ -0,0 +1,224 @@
+package nl.vu.cs.cn;
+
+import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The result of an asynchronous socket operation, such as TCP.Socket.connectAsync().
+ * <br/>
+ * The future is completed by the threads of the TCP stack (the thread receiving packets, the timer thread) or directly
+ * by the calling thread if the result is known at once. Listeners are run by the completing thread unless an executor
+ * is given, so they should not block: blocking a stack thread stalls all connections of the stack.
+ * <br/>
+ * Completable futures of the Java library are not available on all Android versions, hence this class. Waiting is
+ * done on a j.u.c condition instead of a monitor, so virtual threads blocked in get() do not pin their carrier thread.
+ *
+ * @param <V> the type of the result
+ */
+public class TCPFuture<V> implements Future<V> {
+
+	/**
+	 * Callback for the completion of a future.
+	 */
+	public interface Listener<V> {
+		/**
+		 * called once when the future is done (completed, failed or cancelled)
+		 * @param future the future, on which get() does not block anymore
+		 */
+		void done(TCPFuture<V> future);
+	}
+
+	private final ReentrantLock lock;
+	private final Condition doneCondition;
+
+	private V value;
+	private Throwable failure;
+	private boolean done;
+	private boolean cancelled;
+
+	/**listeners to run on completion, null once the future is done*/
+	private LinkedList<Listener<V>> listeners;
+
+	public TCPFuture(){
+		listeners = new LinkedList<Listener<V>>();
+		lock = new ReentrantLock();
+		doneCondition = lock.newCondition();
+	}
+
+	/**
+	 * @return a future which is already completed with the given value
+	 */
+	static <V> TCPFuture<V> completed(V value){
+		TCPFuture<V> f = new TCPFuture<V>();
+		f.complete(value);
+		return f;
+	}
+
+	/**
+	 * completes the future with a value and runs the listeners.
+	 * @return false if the future was already done
+	 */
+	boolean complete(V value){
+		return finish(value, null, false);
+	}
+
+	/**
+	 * completes the future with an exception, which get() throws wrapped in an ExecutionException.
+	 * @return false if the future was already done
+	 */
+	boolean fail(Throwable t){
+		return finish(null, t, false);
+	}
+
+	/**
+	 * Cancels the operation. The socket skips cancelled operations, but data already transferred for them is not
+	 * given back.
+	 * @param mayInterruptIfRunning ignored, no thread runs on behalf of the future
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return finish(null, null, true);
+	}
+
+	private boolean finish(V value, Throwable failure, boolean cancelled){
+		LinkedList<Listener<V>> l;
+		lock.lock();
+		try {
+			if (done){
+				return false;
+			}
+			this.value = value;
+			this.failure = failure;
+			this.cancelled = cancelled;
+			done = true;
+			l = listeners;
+			listeners = null;
+			doneCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (Listener<V> listener : l){
+			runListener(listener);
+		}
+		return true;
+	}
+
+	private void runListener(Listener<V> listener){
+		try {
+			listener.done(this);
+		} catch (RuntimeException e) {
+			Log.e("TCPFuture", "listener failed", e);
+		}
+	}
+
+	/**
+	 * Adds a listener which is run when the future is done. If it is done already, the listener runs at once in the
+	 * calling thread.
+	 */
+	public void addListener(Listener<V> listener){
+		lock.lock();
+		try {
+			if (!done){
+				listeners.add(listener);
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		runListener(listener);
+	}
+
+	/**
+	 * Adds a listener which is run on the given executor when the future is done, so that it may block.
+	 */
+	public void addListener(final Listener<V> listener, final Executor executor){
+		addListener(new Listener<V>() {
+			public void done(final TCPFuture<V> future) {
+				executor.execute(new Runnable() {
+					public void run() {
+						runListener(listener);
+					}
+				});
+			}
+		});
+	}
+
+	public boolean isCancelled() {
+		lock.lock();
+		try {
+			return cancelled;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isDone() {
+		lock.lock();
+		try {
+			return done;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public V get() throws InterruptedException, ExecutionException {
+		lock.lock();
+		try {
+			while (!done){
+				doneCondition.await();
+			}
+			return result();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		long left = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (!done){
+				if (left <= 0){
+					throw new TimeoutException();
+				}
+				left = doneCondition.awaitNanos(left);
+			}
+			return result();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * waits for the result without being interruptible, as the blocking socket calls do.
+	 * @return the value, or null if the future failed or was cancelled
+	 */
+	V await(){
+		lock.lock();
+		try {
+			while (!done){
+				doneCondition.awaitUninterruptibly();
+			}
+			return value;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private V result() throws ExecutionException {
+		if (cancelled){
+			throw new CancellationException();
+		}
+		if (failure != null){
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+}
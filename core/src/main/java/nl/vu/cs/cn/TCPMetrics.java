@@ -0,0 +1,429 @@
+package nl.vu.cs.cn;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import nl.vu.cs.cn.TCPControlBlock.ConnectionState;
+
+/**
+ * Counters and the RTT histogram of a TCP stack or of one of its sockets, see TCP.getMetrics() and
+ * TCP.Socket.getMetrics(). All values count from the creation of the stack or socket.
+ * <br/>
+ * The counters of a stack are striped over several cells, picked by the updating thread, so that the receiving
+ * thread, the timer thread and the application threads do not contend on one cache line. The counters of a socket have
+ * a single cell, since a socket is updated by few threads; the updates of a socket are added to its stack as well.
+ * Reading a counter sums its cells, so the values are cheap to update and somewhat more expensive to read.
+ */
+public class TCPMetrics {
+
+	/**
+	 * A counter which can only go up.
+	 */
+	public static final class Counter {
+		/**cells are this many longs apart, so that two cells do not share a cache line*/
+		private static final int PADDING = 8;
+
+		private final AtomicLongArray cells;
+		private final int mask;
+		private final int stride;
+
+		Counter(int stripes){
+			mask = stripes - 1;
+			stride = stripes > 1 ? PADDING : 1;
+			cells = new AtomicLongArray(stripes * stride);
+		}
+
+		void increment(){
+			add(1);
+		}
+
+		void add(long n){
+			cells.addAndGet((int) (Thread.currentThread().getId() & mask) * stride, n);
+		}
+
+		public long get(){
+			long sum = 0;
+			for (int i = 0; i < cells.length(); i += stride){
+				sum += cells.get(i);
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Histogram with exponential buckets: bucket 0 counts the values below 1 microsecond, and bucket i > 0 the values
+	 * from 2^(i-1) up to 2^i microseconds. The last bucket also counts all larger values.
+	 * <br/>
+	 * Like the counters, the buckets are striped: each stripe has a row of all buckets, padded so that rows do not
+	 * share a cache line.
+	 */
+	public static final class Histogram {
+		public static final int BUCKETS = 32;
+
+		private final AtomicLongArray buckets;
+		private final int mask;
+		private final int stride;
+		private final Counter sum;
+
+		Histogram(int stripes){
+			mask = stripes - 1;
+			stride = stripes > 1 ? BUCKETS + Counter.PADDING : BUCKETS;
+			buckets = new AtomicLongArray(stripes * stride);
+			sum = new Counter(stripes);
+		}
+
+		void record(long nanos){
+			long micros = nanos / 1000;
+			int i = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets.incrementAndGet((int) (Thread.currentThread().getId() & mask) * stride + i);
+			sum.add(nanos);
+		}
+
+		/**
+		 * @return the exclusive upper bound (microseconds) of the values in a bucket. Infinite for the last bucket.
+		 */
+		public double getUpperBoundMicros(int bucket){
+			return bucket == BUCKETS - 1 ? Double.POSITIVE_INFINITY : (double) (1L << bucket);
+		}
+
+		/**
+		 * @return the number of values in a bucket
+		 */
+		public long getBucket(int bucket){
+			long n = 0;
+			for (int i = bucket; i < buckets.length(); i += stride){
+				n += buckets.get(i);
+			}
+			return n;
+		}
+
+		/**
+		 * @return the number of values recorded
+		 */
+		public long getCount(){
+			long n = 0;
+			for (int i = 0; i < BUCKETS; i++){
+				n += getBucket(i);
+			}
+			return n;
+		}
+
+		/**
+		 * @return the sum of the values recorded, in nanoseconds
+		 */
+		public long getSumNanos(){
+			return sum.get();
+		}
+
+		/**
+		 * @param p the percentile, 0-100
+		 * @return the upper bound (microseconds) of the bucket which contains the given percentile, or 0 if the
+		 * histogram is empty
+		 */
+		public double getPercentileMicros(double p){
+			long[] counts = new long[BUCKETS];
+			long n = 0;
+			for (int i = 0; i < BUCKETS; i++){
+				counts[i] = getBucket(i);
+				n += counts[i];
+			}
+			if (n == 0){
+				return 0;
+			}
+			long rank = (long) Math.ceil(n * p / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++){
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0){
+					return getUpperBoundMicros(i);
+				}
+			}
+			return getUpperBoundMicros(BUCKETS - 1);
+		}
+	}
+
+	/**the metrics of the stack, if these are the metrics of a socket*/
+	private final TCPMetrics parent;
+
+	private final Counter segmentsSent;
+	private final Counter segmentsReceived;
+	private final Counter bytesSent;
+	private final Counter bytesReceived;
+	private final Counter retransmissions;
+	private final Counter timeouts;
+	private final Counter retriesExpired;
+	private final Counter checksumFailures;
+	private final Counter invalidSegments;
+	private final Counter outOfOrderDrops;
+	private final Counter windowDrops;
+	private final Counter predictedSegments;
+	private final Counter coalescedSegments;
+	private final Counter unmatchedSegments;
+	private final Counter[] stateTransitions;
+	private final Histogram rtt;
+
+	/**
+	 * creates the metrics of a stack.
+	 */
+	TCPMetrics(){
+		this(defaultStripes(), null);
+	}
+
+	/**
+	 * creates the metrics of a socket, whose updates also go to the metrics of its stack.
+	 */
+	TCPMetrics(TCPMetrics stack){
+		this(1, stack);
+	}
+
+	private TCPMetrics(int stripes, TCPMetrics parent){
+		this.parent = parent;
+		segmentsSent = new Counter(stripes);
+		segmentsReceived = new Counter(stripes);
+		bytesSent = new Counter(stripes);
+		bytesReceived = new Counter(stripes);
+		retransmissions = new Counter(stripes);
+		timeouts = new Counter(stripes);
+		retriesExpired = new Counter(stripes);
+		checksumFailures = new Counter(stripes);
+		invalidSegments = new Counter(stripes);
+		outOfOrderDrops = new Counter(stripes);
+		windowDrops = new Counter(stripes);
+		predictedSegments = new Counter(stripes);
+		coalescedSegments = new Counter(stripes);
+		unmatchedSegments = new Counter(stripes);
+		stateTransitions = new Counter[ConnectionState.values().length];
+		for (int i = 0; i < stateTransitions.length; i++){
+			stateTransitions[i] = new Counter(stripes);
+		}
+		rtt = new Histogram(stripes);
+	}
+
+	/**
+	 * @return the number of stripes for the counters of a stack: the number of processors, rounded up to a power of 2
+	 */
+	static int defaultStripes(){
+		int n = Math.min(64, Runtime.getRuntime().availableProcessors());
+		int stripes = 1;
+		while (stripes < n){
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+
+	void segmentSent(int dataLength){
+		segmentsSent.increment();
+		bytesSent.add(dataLength);
+		if (parent != null){
+			parent.segmentSent(dataLength);
+		}
+	}
+
+	void segmentReceived(int dataLength){
+		segmentsReceived.increment();
+		bytesReceived.add(dataLength);
+		if (parent != null){
+			parent.segmentReceived(dataLength);
+		}
+	}
+
+	void retransmission(){
+		retransmissions.increment();
+		if (parent != null){
+			parent.retransmission();
+		}
+	}
+
+	void timeout(){
+		timeouts.increment();
+		if (parent != null){
+			parent.timeout();
+		}
+	}
+
+	void retriesExpired(){
+		retriesExpired.increment();
+		if (parent != null){
+			parent.retriesExpired();
+		}
+	}
+
+	void checksumFailure(){
+		checksumFailures.increment();
+	}
+
+	void invalidSegment(){
+		invalidSegments.increment();
+	}
+
+	void outOfOrderDrop(){
+		outOfOrderDrops.increment();
+		if (parent != null){
+			parent.outOfOrderDrop();
+		}
+	}
+
+	void windowDrop(){
+		windowDrops.increment();
+		if (parent != null){
+			parent.windowDrop();
+		}
+	}
+
+	/**
+	 * counts received segments whose data was merged into another received segment, which was counted already.
+	 */
+	void segmentsCoalesced(int n){
+		segmentsReceived.add(n);
+		coalescedSegments.add(n);
+		if (parent != null){
+			parent.segmentsCoalesced(n);
+		}
+	}
+
+	void predictedSegment(){
+		predictedSegments.increment();
+		if (parent != null){
+			parent.predictedSegment();
+		}
+	}
+
+	void unmatchedSegment(){
+		unmatchedSegments.increment();
+	}
+
+	void stateEntered(ConnectionState s){
+		stateTransitions[s.ordinal()].increment();
+		if (parent != null){
+			parent.stateEntered(s);
+		}
+	}
+
+	void rtt(long nanos){
+		rtt.record(nanos);
+		if (parent != null){
+			parent.rtt(nanos);
+		}
+	}
+
+	/**
+	 * @return the number of segments sent, retransmissions included
+	 */
+	public long getSegmentsSent(){
+		return segmentsSent.get();
+	}
+
+	/**
+	 * @return the number of valid segments received
+	 */
+	public long getSegmentsReceived(){
+		return segmentsReceived.get();
+	}
+
+	/**
+	 * @return the number of data bytes (without headers) sent, retransmissions included
+	 */
+	public long getBytesSent(){
+		return bytesSent.get();
+	}
+
+	/**
+	 * @return the number of data bytes (without headers) in the valid segments received, duplicates included
+	 */
+	public long getBytesReceived(){
+		return bytesReceived.get();
+	}
+
+	/**
+	 * @return the number of segments sent again because their ack did not come in time, or because the other side
+	 * sent its SYN again
+	 */
+	public long getRetransmissions(){
+		return retransmissions.get();
+	}
+
+	/**
+	 * @return the number of times the retransmission timer expired
+	 */
+	public long getTimeouts(){
+		return timeouts.get();
+	}
+
+	/**
+	 * @return the number of times a segment was sent MAX_TRIES times without being acknowledged, so the connection
+	 * attempt or the connection failed
+	 */
+	public long getRetriesExpired(){
+		return retriesExpired.get();
+	}
+
+	/**
+	 * @return the number of segments dropped because of a wrong checksum. Only counted by the stack.
+	 */
+	public long getChecksumFailures(){
+		return checksumFailures.get();
+	}
+
+	/**
+	 * @return the number of packets dropped because they are no valid TCP segments (protocol, length, flags).
+	 * Only counted by the stack.
+	 */
+	public long getInvalidSegments(){
+		return invalidSegments.get();
+	}
+
+	/**
+	 * @return the number of segments dropped because their sequence or acknowledgement number was not expected
+	 */
+	public long getOutOfOrderDrops(){
+		return outOfOrderDrops.get();
+	}
+
+	/**
+	 * @return the number of data segments dropped because the receive buffer had no room for them
+	 */
+	public long getWindowDrops(){
+		return windowDrops.get();
+	}
+
+	/**
+	 * @return the number of received segments whose data was merged into the segment before them, and handled with it
+	 */
+	public long getCoalescedSegments(){
+		return coalescedSegments.get();
+	}
+
+	/**
+	 * @return the number of segments handled by the header prediction fast path
+	 */
+	public long getPredictedSegments(){
+		return predictedSegments.get();
+	}
+
+	/**
+	 * @return the number of segments dropped because they belong to no socket. Only counted by the stack.
+	 */
+	public long getUnmatchedSegments(){
+		return unmatchedSegments.get();
+	}
+
+	/**
+	 * @return for every connection state (S_CLOSED, S_LISTEN, ...), the number of times a connection entered it
+	 */
+	public Map<String, Long> getStateTransitions(){
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		for (ConnectionState s : ConnectionState.values()){
+			m.put(s.name(), stateTransitions[s.ordinal()].get());
+		}
+		return m;
+	}
+
+	/**
+	 * @return the round trip times, from sending a segment to receiving its ack. Segments which were retransmitted
+	 * are not measured, since it is unknown which transmission the ack belongs to.
+	 */
+	public Histogram getRttHistogram(){
+		return rtt;
+	}
+}
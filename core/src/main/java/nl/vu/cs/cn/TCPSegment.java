@@ -23,6 +23,18 @@ class TCPSegment{
 	byte dataOffset;
 	
 	byte[] data;
+	/**
+	 * if not null, the data of this outgoing segment is not in data, but the first sourceLength bytes of this buffer,
+	 * which keeps them until the segment is acknowledged
+	 */
+	BoundedByteBuffer source;
+	int sourceLength;
+	
+	/**the number of received segments a ReceiveBatch chained to this one, and the length of their data*/
+	int coalesced;
+	int coalescedLength;
+	/**the next segment of a ReceiveBatch, whose data comes right after the data of this one*/
+	TCPSegment next;
 	
 	/**
 	 * all possible TCP segment types
@@ -34,6 +46,8 @@ class TCPSegment{
 	//these fields are not formally a part of the TCP header; however, in our implementation they are used. 
 	static final int HEADER_LENGTH = 20;
 	static final int CHECKSUM_OFFSET = 16;
+	/**the data of segments without data*/
+	static final byte[] NO_DATA = new byte[0];
 	IpAddress source_ip;
 	
 	/**constructor without checksum*/
@@ -50,6 +64,31 @@ class TCPSegment{
 		setControlFlags(st);
 	}
 	
+	/**
+	 * constructor for a data segment whose data stays in a buffer. It is copied from there each time the segment is
+	 * encoded.
+	 * @param source the buffer which starts with the data
+	 * @param length the number of bytes of data
+	 */
+	TCPSegment(int src_port, int dest_port, long seq_nr, long ack_nr, BoundedByteBuffer source, int length){
+		this(src_port, dest_port, seq_nr, ack_nr, 0, 0, 0, NO_DATA, (short) 0);
+		this.source = source;
+		this.sourceLength = length;
+	}
+	
+	/**
+	 * @return the header of this super-segment for the packet which carries length bytes from the given sequence
+	 * number on. For the fault injector and the log only: the data of the packet is not at the start of source.
+	 */
+	TCPSegment packetView(long seq_nr, int length){
+		TCPSegment view = new TCPSegment(src_port, dest_port, seq_nr, ack_nr, source, length);
+		view.syn = syn;
+		view.ack = ack;
+		view.fin = fin;
+		view.windowSize = windowSize;
+		return view;
+	}
+	
 	/** constructor with specified flags */
 	private TCPSegment(int src_port, int dest_port, long seq_nr, long ack_nr,
 			int syn, int ack, int fin, byte[] data, short checksum){
@@ -70,13 +109,8 @@ class TCPSegment{
 		
 		this.checksum = checksum;
 		
-		//add data
-		if(data != null){
-			this.data = new byte[data.length];
-			for(int i = 0; i < data.length; i++){
-				this.data[i] = data[i];
-			}
-		}
+		//add data. The segment takes the array, which must not be changed afterwards.
+		this.data = data;
 	}
 	
 	/**
@@ -112,12 +146,36 @@ class TCPSegment{
 	 * @return the byte array
 	 */
 	byte[] encode(){
+		byte[] result = new byte[HEADER_LENGTH + getDataLength()];
+		encode(result);
+		return result;
+	}
+
+	/**
+	 * Encode a TCP segment into the start of a byte array, which must be large enough.
+	 * 
+	 * @return the length of the encoded segment
+	 */
+	int encode(byte[] result){
 		
-		//check if there is any data. If data = null: skip this.
-		int dataLength = data.length;
+		int dataLength = getDataLength();
 		
-		byte[] result = new byte[HEADER_LENGTH + dataLength];
+		encodeHeader(result);
 		
+		//copy data
+		if (source != null){
+			source.peek(result, HEADER_LENGTH, dataLength);
+		} else {
+			System.arraycopy(data, 0, result, HEADER_LENGTH, dataLength);
+		}
+		
+		return HEADER_LENGTH + dataLength;
+	}
+
+	/**
+	 * writes the header of this segment, without data, into the first HEADER_LENGTH bytes of an array.
+	 */
+	void encodeHeader(byte[] result){
 		//add source port
 		result[0] = (byte) (src_port>>8);
 		result[1] = (byte) src_port;
@@ -155,13 +213,62 @@ class TCPSegment{
 		//add urgent pointer
 		result[18] = (byte) (urgent_pointer >>8);
 		result[19] = (byte) urgent_pointer;
-		
-		//copy data
-		for(int i = 0; i < dataLength; i++){
-			result[i + HEADER_LENGTH] = data[i];
+	}
+
+	/**
+	 * writes a sequence number into an encoded header.
+	 */
+	static void stampSeqnr(byte[] header, long seq_nr){
+		header[4] = (byte) (seq_nr >>24);
+		header[5] = (byte) (seq_nr >>16);
+		header[6] = (byte) (seq_nr >>8);
+		header[7] = (byte) seq_nr;
+	}
+
+	/**
+	 * sums the part of the checksum which the packets of a super-segment have in common: the pseudo header without the
+	 * length, and the header without the sequence number and checksum. See finishChecksum().
+	 * @param header the encoded header
+	 * @return the sum, not folded
+	 */
+	static int partialChecksum(int source, int dest, byte[] header){
+		int srcLE = ntohl(source);
+		int destLE = ntohl(dest);
+		int sum = ((srcLE>>16) & 0xffff) + (srcLE & 0xffff) + ((destLE>>16) & 0xffff) + (destLE & 0xffff) +
+				(IP.TCP_PROTOCOL & 0xff);
+		return sum + sum(header, 0, 4) + sum(header, 8, CHECKSUM_OFFSET) + sum(header, CHECKSUM_OFFSET + 2, HEADER_LENGTH);
+	}
+
+	/**
+	 * completes a checksum from partialChecksum() for one packet, so that only its data has to be summed.
+	 * Gives the same checksum as calculateChecksum().
+	 * @param partial the sum of partialChecksum()
+	 * @param seq_nr the sequence number of the packet
+	 * @param length the length of the packet, header and data
+	 * @param pck the packet
+	 */
+	static short finishChecksum(int partial, long seq_nr, int length, byte[] pck){
+		int sum = partial + (int) ((seq_nr >>16) & 0xffff) + (int) (seq_nr & 0xffff) + (length & 0xffff) +
+				sum(pck, HEADER_LENGTH, length);
+		while(sum>>16 != 0){
+			sum = (sum>>16) + (sum & 0x0000FFFF);
 		}
-		
-		return result;
+		return (short) ((sum ^ 0xffff) & 0xffff);
+	}
+
+	/**
+	 * @return the sum of the 16 bit words of an array from an even offset until end, the last byte padded with zero
+	 */
+	private static int sum(byte[] a, int from, int end){
+		int sum = 0;
+		int i = from;
+		for (; i < end - 1; i += 2){
+			sum += (a[i] & 0xff) <<8 | (a[i+1] & 0xff);
+		}
+		if (i < end){
+			sum += (a[i] & 0xff) <<8;
+		}
+		return sum;
 	}
 	
 	/**
@@ -217,7 +324,7 @@ class TCPSegment{
 		int fin = array[13] & 0x01;
 		
 		//window size
-		int windowSize = (((int) array[14]) & 0xff) | (((int) array[15]) & 0xff);
+		int windowSize = ((((int) array[14]) & 0xff) <<8) | (((int) array[15]) & 0xff);
 		
 		//left part of checksum, useful for debugging (Java Signedness is bothersome)
 		int c1 = ((int) array[16]) & 0xFF;
@@ -228,10 +335,8 @@ class TCPSegment{
 		
 		
 		/*check if there is any data. Otherwise, data is an empty array*/
-		byte [] data = new byte[length - HEADER_LENGTH];
-		for(int i = 0; i < data.length; i++){
-    		data[i] = array[i + HEADER_LENGTH];
-    	}
+		byte [] data = length == HEADER_LENGTH ? NO_DATA : new byte[length - HEADER_LENGTH];
+		System.arraycopy(array, HEADER_LENGTH, data, 0, data.length);
 		
 		//construct new segment
 		TCPSegment ret =  new TCPSegment(src_port, dest_port, seq_nr, ack_nr,
@@ -358,7 +463,7 @@ class TCPSegment{
 	}
 	
 	int getDataLength(){
-		return data.length;
+		return source != null ? sourceLength : data.length + coalescedLength;
 	}
 	
 	long getSeqNr(){
@@ -411,6 +516,9 @@ class TCPSegment{
 	 * @return the string object representing the data.
 	 */
 	private String arrayString() {
+		if (source != null){
+			return "[" + sourceLength + " bytes in the send buffer]";
+		}
     	StringBuffer dataString = new StringBuffer("[");
     	for (int i = 0; i < data.length; i++) {
     		if (i > 0) {
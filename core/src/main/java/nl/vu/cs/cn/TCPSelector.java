@@ -0,0 +1,298 @@
+package nl.vu.cs.cn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Multiplexes readiness events of many sockets, so that one application thread can serve all of them, typically with
+ * sockets in non-blocking mode.
+ * <br/>
+ * Sockets are registered with a set of operations the application is interested in. select() then blocks until at least
+ * one of them is ready. Readiness is level triggered: a socket stays selected as long as the operation is possible.
+ * <br/>
+ * The sockets signal the selector whenever their receive buffer, send buffer or connection state changes. Only the
+ * signalled sockets and the sockets that were ready before are checked by select(), so idle sockets cost nothing.
+ */
+public class TCPSelector {
+
+	/**data or the end of the stream can be read without blocking*/
+	public static final int OP_READ = 1;
+	/**there is space in the send buffer, or the connection cannot send anymore*/
+	public static final int OP_WRITE = 4;
+	/**the connection attempt of connectAsync() finished, successfully or not*/
+	public static final int OP_CONNECT = 8;
+	/**acceptAsync() made a connection*/
+	public static final int OP_ACCEPT = 16;
+
+	/**
+	 * The registration of a socket with a selector.
+	 */
+	public static class Key {
+		private final TCPSelector selector;
+		private final TCP.Socket socket;
+		private volatile int interestOps;
+		private volatile int readyOps;
+		private volatile boolean cancelled;
+		private volatile Object attachment;
+
+		private Key(TCPSelector selector, TCP.Socket socket, int interestOps, Object attachment){
+			this.selector = selector;
+			this.socket = socket;
+			this.interestOps = interestOps;
+			this.attachment = attachment;
+		}
+
+		public TCP.Socket socket(){
+			return socket;
+		}
+
+		public TCPSelector selector(){
+			return selector;
+		}
+
+		public int interestOps(){
+			return interestOps;
+		}
+
+		/**
+		 * changes the operations to select on. Takes effect on the next select().
+		 */
+		public void interestOps(int ops){
+			interestOps = ops;
+			selector.signal(this);
+		}
+
+		/**
+		 * @return the operations found ready by the last select()
+		 */
+		public int readyOps(){
+			return readyOps;
+		}
+
+		public boolean isReadable(){
+			return (readyOps & OP_READ) != 0;
+		}
+
+		public boolean isWritable(){
+			return (readyOps & OP_WRITE) != 0;
+		}
+
+		public boolean isConnectable(){
+			return (readyOps & OP_CONNECT) != 0;
+		}
+
+		public boolean isAcceptable(){
+			return (readyOps & OP_ACCEPT) != 0;
+		}
+
+		public Object attachment(){
+			return attachment;
+		}
+
+		public void attach(Object attachment){
+			this.attachment = attachment;
+		}
+
+		/**
+		 * removes the registration. The socket is not closed.
+		 */
+		public void cancel(){
+			cancelled = true;
+			socket.removeSelectionKey(this);
+			selector.signal(this);
+		}
+
+		public boolean isValid(){
+			return !cancelled;
+		}
+
+		/**
+		 * called by the socket when its state or one of its buffers changed
+		 */
+		void signal(){
+			selector.signal(this);
+		}
+	}
+
+	/**guards the key sets; select() waits on signalled*/
+	private final ReentrantLock lock;
+	private final Condition signalled;
+
+	/**all registered keys*/
+	private final HashSet<Key> keys;
+
+	/**keys to check in the next select(): signalled keys and keys that were ready in the last select()*/
+	private LinkedHashSet<Key> candidates;
+
+	private Set<Key> selectedKeys;
+	private boolean wakeupPending;
+
+	public TCPSelector(){
+		lock = new ReentrantLock();
+		signalled = lock.newCondition();
+		keys = new HashSet<Key>();
+		candidates = new LinkedHashSet<Key>();
+		selectedKeys = Collections.emptySet();
+	}
+
+	/**
+	 * registers a socket with this selector.
+	 * @param socket the socket
+	 * @param ops the operations to select on, a combination of the OP_ constants
+	 * @param attachment an object to attach to the key, may be null
+	 * @return the key representing the registration
+	 */
+	public Key register(TCP.Socket socket, int ops, Object attachment){
+		Key k = new Key(this, socket, ops, attachment);
+		lock.lock();
+		try {
+			keys.add(k);
+		} finally {
+			lock.unlock();
+		}
+		socket.addSelectionKey(k);
+		signal(k);
+		return k;
+	}
+
+	/**
+	 * @return all registered keys
+	 */
+	public Set<Key> keys(){
+		lock.lock();
+		try {
+			return new HashSet<Key>(keys);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the keys which were ready in the last select()
+	 */
+	public Set<Key> selectedKeys(){
+		lock.lock();
+		try {
+			return selectedKeys;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void signal(Key k){
+		lock.lock();
+		try {
+			candidates.add(k);
+			signalled.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * makes a select() which is blocked (or the next one) return at once.
+	 */
+	public void wakeup(){
+		lock.lock();
+		try {
+			wakeupPending = true;
+			signalled.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * checks the registered sockets without blocking.
+	 * @return the number of ready keys
+	 */
+	public int selectNow(){
+		return doSelect();
+	}
+
+	/**
+	 * blocks until at least one registered socket is ready, wakeup() is called or the timeout expires.
+	 * @param timeout the timeout in milliseconds, or 0 to wait indefinitely
+	 * @return the number of ready keys, which are in selectedKeys()
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public int select(long timeout) throws InterruptedException {
+		long left = TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (true){
+			int n = doSelect();
+			if (n != 0){
+				return n;
+			}
+			lock.lock();
+			try {
+				if (wakeupPending){
+					wakeupPending = false;
+					return 0;
+				}
+				if (!candidates.isEmpty()){
+					//signalled while checking
+					continue;
+				}
+				if (timeout <= 0){
+					signalled.await();
+				} else {
+					if (left <= 0){
+						return 0;
+					}
+					left = signalled.awaitNanos(left);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * checks the candidate keys and makes the ready ones the selected keys.
+	 * @return the number of ready keys
+	 */
+	private int doSelect(){
+		ArrayList<Key> check;
+		lock.lock();
+		try {
+			check = new ArrayList<Key>(candidates);
+			candidates.clear();
+		} finally {
+			lock.unlock();
+		}
+
+		//check the sockets outside the lock, since the sockets take their own locks
+		LinkedHashSet<Key> ready = new LinkedHashSet<Key>();
+		for (Key k : check){
+			if (k.cancelled){
+				continue;
+			}
+			int ops = k.socket.readyOps() & k.interestOps;
+			k.readyOps = ops;
+			if (ops != 0){
+				ready.add(k);
+			}
+		}
+
+		lock.lock();
+		try {
+			for (Key k : check){
+				if (k.cancelled){
+					keys.remove(k);
+				}
+			}
+			//level triggered: ready keys are checked again next time
+			candidates.addAll(ready);
+			selectedKeys = Collections.unmodifiableSet(ready);
+		} finally {
+			lock.unlock();
+		}
+		return ready.size();
+	}
+}
@@ -2,7 +2,6 @@ package nl.vu.cs.cn;
 
 import java.io.IOException;
 
-import android.util.Log;
 import nl.vu.cs.cn.IP.*;
 import nl.vu.cs.cn.TCPControlBlock.ConnectionState;
 import nl.vu.cs.cn.TCPSegment.TCPSegmentType;
@@ -13,7 +12,10 @@ import nl.vu.cs.cn.TCPSegment.TCPSegmentType;
  * 
  * Note that it is a duplicate of the TCP class, except that it can be passed an integer array which indicates that packets with
  * a certain ID are always dropped.
+ * 
+ * @deprecated it does not follow the changes of TCP. Set a FaultInjector on a TCP stack instead.
  */
+@Deprecated
 public class TCPWithPacketLoss {
 
 	/** The port a client socket will bind to automatically. Since only one connection is allowed at a time,
@@ -91,8 +93,8 @@ public class TCPWithPacketLoss {
 			tcb = new TCPControlBlock();
 			tcb.setLocalSocketAddress(new SocketAddress(ip.getLocalAddress(), port));
 
-			recv_buf = new BoundedByteBuffer(BUFFER_SIZE);
-			send_buf = new BoundedByteBuffer(BUFFER_SIZE);
+			recv_buf = new BoundedByteBuffer(new BufferPool(BufferPool.DEFAULT_MAX_BYTES), BUFFER_SIZE);
+			send_buf = new BoundedByteBuffer(new BufferPool(BufferPool.DEFAULT_MAX_BYTES), BUFFER_SIZE);
 		}
 		
 		/**
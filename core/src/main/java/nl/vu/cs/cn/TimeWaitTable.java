@@ -0,0 +1,117 @@
+package nl.vu.cs.cn;
+
+import java.util.HashMap;
+
+import nl.vu.cs.cn.TCPSegment.TCPSegmentType;
+
+/**
+ * Keeps the connections of a TCP stack which are in the TIME_WAIT state.
+ * <br/>
+ * Instead of keeping the socket (buffers, control block) alive for 2*MSL after the connection was closed, only the
+ * connection's addresses, its sequence numbers and an expiry timer are stored here. The stack looks up segments which do
+ * not belong to any socket in this table, and retransmitted FINs are acknowledged again from the stored numbers.
+ */
+class TimeWaitTable {
+
+	/**
+	 * A connection in the TIME_WAIT state.
+	 */
+	private static final class Entry {
+		/**the addresses of the connection, see TCP.connectionKey()*/
+		final long key;
+		/**our sequence number*/
+		final long seqnr;
+		/**the sequence number of the remote side's FIN*/
+		final long finSeqnr;
+		/**removes this entry after 2*MSL*/
+		TimingWheel.Timer expiry;
+
+		Entry(long key, long seqnr, long finSeqnr){
+			this.key = key;
+			this.seqnr = seqnr;
+			this.finSeqnr = finSeqnr;
+		}
+	}
+
+	private final HashMap<Long, Entry> entries;
+	private final TimingWheel timers;
+
+	TimeWaitTable(TimingWheel timers){
+		this.entries = new HashMap<Long, Entry>();
+		this.timers = timers;
+	}
+
+	/**
+	 * adds a connection that just entered the TIME_WAIT state. It is removed automatically after 2*MSL.
+	 * @param tcb the control block of the connection. Only its addresses and sequence numbers are copied.
+	 */
+	synchronized void add(TCPControlBlock tcb){
+		final long key = TCP.connectionKey(tcb.getLocalSocketAddress().getPort(),
+				tcb.getRemoteSocketAddress().getIp().getAddress(), tcb.getRemoteSocketAddress().getPort());
+		final Entry e = new Entry(key, tcb.getSeqnr(), tcb.getPreviousExpectedSeqnr());
+
+		remove(key);
+		entries.put(key, e);
+		e.expiry = timers.schedule(new Runnable() {
+			public void run() {
+				synchronized(TimeWaitTable.this){
+					if (entries.get(key) == e){
+						entries.remove(key);
+					}
+				}
+			}
+		}, 2 * TCP.MSL * 1000);
+	}
+
+	/**
+	 * removes a connection from the table, for instance because a new connection with the same addresses is opened.
+	 * @param key the addresses of the connection
+	 */
+	synchronized void remove(long key){
+		Entry e = entries.remove(key);
+		if (e != null){
+			timers.cancel(e.expiry);
+		}
+	}
+
+	/**
+	 * @return the number of connections in the TIME_WAIT state
+	 */
+	synchronized int size(){
+		return entries.size();
+	}
+
+	/**
+	 * handles a segment for a connection in this table.
+	 * @param key the addresses of the connection the segment belongs to
+	 * @param seg the segment
+	 * @return an ACK which has to be sent back if seg is a retransmitted FIN, or null.
+	 * The ports and sequence numbers of the ACK are filled in.
+	 */
+	synchronized TCPSegment handleSegment(long key, TCPSegment seg){
+		Entry e = entries.get(key);
+		if (e == null){
+			//expired in the meantime
+			return null;
+		}
+		if (seg.getSegmentType() != TCPSegmentType.FIN && seg.getSegmentType() != TCPSegmentType.FINACK){
+			Log.d("TimeWaitTable", "discarding " + seg.getSegmentType().name() + " in TIME_WAIT");
+			return null;
+		}
+		if (seg.seq_nr != e.finSeqnr){
+			Log.d("TimeWaitTable", "discarding FIN with unexpected seqnr " + seg.seq_nr);
+			return null;
+		}
+		//the ack to the fin was lost: send it again
+		return new TCPSegment(seg.dest_port, seg.src_port, e.seqnr, (e.finSeqnr + 1) % (TCPControlBlock.UINT_32_MAX + 1),
+				TCPSegmentType.ACK, TCPSegment.NO_DATA);
+	}
+
+	/**
+	 * @param key the addresses of a connection
+	 * @return true if the connection is in the TIME_WAIT state
+	 */
+	synchronized boolean contains(long key){
+		return entries.containsKey(key);
+	}
+}
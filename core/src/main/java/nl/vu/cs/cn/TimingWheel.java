@@ -0,0 +1,256 @@
+package nl.vu.cs.cn;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel used for all per-connection timers of a TCP stack (retransmissions, TIME_WAIT, ...).
+ * <br/>
+ * The wheel is an array of buckets, each holding a doubly linked list of timers. A timer that expires
+ * after n ticks is put in bucket (cursor + n) % size and remembers how many full revolutions of the wheel
+ * it still has to wait. Scheduling and cancelling a timer are therefore O(1), and a single clock thread
+ * advances the cursor once per tick and runs the timers that expired.
+ * <br/>
+ * The clock thread is started on the first schedule() and sleeps without ticking while no timers are
+ * pending, so idle connections do not cost anything. A manual wheel has no clock thread: its owner calls advance()
+ * once per tick, or never, in which case the timers never expire.
+ */
+class TimingWheel {
+
+	/**default duration (milliseconds) of one tick of the wheel*/
+	static final int DEFAULT_TICK_MILLIS = 50;
+
+	/**default number of buckets of the wheel*/
+	static final int DEFAULT_WHEEL_SIZE = 512;
+
+	/**
+	 * A task scheduled on the wheel. Returned by schedule() so that it can be cancelled.
+	 */
+	static final class Timer {
+		private final Runnable task;
+
+		/**number of full revolutions of the wheel before this timer expires*/
+		private long rounds;
+
+		/**the bucket this timer is linked in, or -1 if it is not scheduled (anymore)*/
+		private int bucket = -1;
+		private Timer prev, next;
+
+		private Timer(Runnable task){
+			this.task = task;
+		}
+	}
+
+	private final Timer[] buckets;
+	private final int tickMillis;
+
+	/**number of timers currently linked in the wheel*/
+	private int pending;
+
+	/**the bucket which expires on the next tick*/
+	private int cursor;
+
+	private Thread clock;
+	private final String name;
+
+	/**if set, no clock thread is started*/
+	private final boolean manual;
+
+	/**set by stop(): the clock thread ends, and no new one is started*/
+	private boolean stopped;
+
+	TimingWheel(String name){
+		this(name, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, false);
+	}
+
+	TimingWheel(String name, boolean manual){
+		this(name, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, manual);
+	}
+
+	TimingWheel(String name, int tickMillis, int wheelSize, boolean manual){
+		this.name = name;
+		this.tickMillis = tickMillis;
+		this.buckets = new Timer[wheelSize];
+		this.manual = manual;
+	}
+
+	/**
+	 * schedules a task to be run by the clock thread after (at least) the given delay.
+	 * The task should not block, since it delays all other timers of the wheel.
+	 * @param task the task to run
+	 * @param delayMillis the delay in milliseconds
+	 * @return a handle which can be used to cancel the timer
+	 */
+	synchronized Timer schedule(Runnable task, long delayMillis){
+		Timer t = new Timer(task);
+
+		//round up, so a timer never expires early
+		long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+		t.rounds = (ticks - 1) / buckets.length;
+		link(t, (int) ((cursor + ticks - 1) % buckets.length));
+
+		if (manual || stopped){
+			return t;
+		}
+		if (clock == null){
+			clock = new Thread(new ClockThread(), name);
+			clock.setDaemon(true);
+			clock.start();
+		} else if (pending == 1){
+			//the clock thread is idle, wake it up
+			notify();
+		}
+		return t;
+	}
+
+	/**
+	 * cancels a timer. Does nothing if the timer already expired or was cancelled before.
+	 * @param t the timer, may be null
+	 * @return true if the timer was still pending
+	 */
+	synchronized boolean cancel(Timer t){
+		if (t == null || t.bucket < 0){
+			return false;
+		}
+		unlink(t);
+		return true;
+	}
+
+	/**
+	 * stops the clock thread. The timers which are pending, or scheduled afterwards, do not run anymore.
+	 */
+	synchronized void stop(){
+		stopped = true;
+		if (clock != null){
+			clock.interrupt();
+		}
+	}
+
+	/**
+	 * advances a manual wheel by one tick, and runs the timers that expired on the calling thread.
+	 */
+	void advance(){
+		runTimers(tick());
+	}
+
+	/**
+	 * @return the duration (milliseconds) of one tick
+	 */
+	int getTickMillis(){
+		return tickMillis;
+	}
+
+	/**
+	 * @return the number of timers that have not expired yet
+	 */
+	synchronized int size(){
+		return pending;
+	}
+
+	private void link(Timer t, int bucket){
+		t.bucket = bucket;
+		t.prev = null;
+		t.next = buckets[bucket];
+		if (t.next != null){
+			t.next.prev = t;
+		}
+		buckets[bucket] = t;
+		pending++;
+	}
+
+	private void unlink(Timer t){
+		if (t.prev != null){
+			t.prev.next = t.next;
+		} else {
+			buckets[t.bucket] = t.next;
+		}
+		if (t.next != null){
+			t.next.prev = t.prev;
+		}
+		t.bucket = -1;
+		t.prev = t.next = null;
+		pending--;
+	}
+
+	/**
+	 * advances the wheel by one tick.
+	 * @return the timers that expired, linked through their next field
+	 */
+	private synchronized Timer tick(){
+		Timer expired = null;
+		Timer t = buckets[cursor];
+		while (t != null){
+			Timer next = t.next;
+			if (t.rounds <= 0){
+				unlink(t);
+				t.next = expired;
+				expired = t;
+			} else {
+				t.rounds--;
+			}
+			t = next;
+		}
+		cursor = (cursor + 1) % buckets.length;
+		return expired;
+	}
+
+	/**
+	 * blocks until there is at least one pending timer.
+	 * @return true if the thread had to wait, so the tick deadlines have to be realigned
+	 * @throws InterruptedException if the wheel was stopped
+	 */
+	private synchronized boolean awaitTimers() throws InterruptedException {
+		if (stopped){
+			throw new InterruptedException("stopped");
+		}
+		boolean waited = false;
+		while (pending == 0){
+			wait();
+			waited = true;
+		}
+		return waited;
+	}
+
+	/**
+	 * The single thread driving the wheel.
+	 */
+	private class ClockThread implements Runnable {
+		public void run() {
+			//nanoTime, so that the ticks do not jump when the wall clock is set
+			long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+			long deadline = System.nanoTime() + tickNanos;
+			while (true){
+				try {
+					if (awaitTimers()){
+						deadline = System.nanoTime() + tickNanos;
+					}
+					long sleep = deadline - System.nanoTime();
+					if (sleep > 0){
+						TimeUnit.NANOSECONDS.sleep(sleep);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				deadline += tickNanos;
+
+				runTimers(tick());
+			}
+		}
+	}
+
+	/**
+	 * runs expired timers. Called outside the lock, so they can schedule new ones.
+	 * @param t the timers, linked through their next field
+	 */
+	private static void runTimers(Timer t){
+		while (t != null){
+			Timer next = t.next;
+			t.next = null;
+			try {
+				t.task.run();
+			} catch (RuntimeException e) {
+				Log.e("TimingWheel", "timer task failed", e);
+			}
+			t = next;
+		}
+	}
+}
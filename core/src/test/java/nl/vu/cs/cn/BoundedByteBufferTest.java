@@ -0,0 +1,229 @@
+package nl.vu.cs.cn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import nl.vu.cs.cn.BufferPool.Chunk;
+
+/**
+ * Tests the buffers of the sockets and the pool they take their memory from: quotas, the accounting of the pool and
+ * of lent chunks.
+ */
+public class BoundedByteBufferTest {
+
+	private static final long SLAB = (long) BufferPool.CHUNK_SIZE * BufferPool.SLAB_CHUNKS;
+
+	private static byte[] pattern(int n){
+		byte[] b = new byte[n];
+		for (int i = 0; i < n; i++){
+			b[i] = (byte) (i * 7 + 3);
+		}
+		return b;
+	}
+
+	@Test
+	public void readsBackWhatWasBuffered() throws FullCollectionException {
+		BufferPool pool = new BufferPool(SLAB, false);
+		BoundedByteBuffer buf = new BoundedByteBuffer(pool, 3 * BufferPool.CHUNK_SIZE);
+		byte[] data = pattern(2 * BufferPool.CHUNK_SIZE + 100);
+		assertEquals(data.length, buf.buffer(data, 0, data.length));
+		assertEquals(data.length, buf.length());
+		assertEquals(3L * BufferPool.CHUNK_SIZE, pool.getUsedBytes());
+
+		byte[] out = new byte[data.length];
+		assertEquals(data.length, buf.deBuffer(out, 0, out.length));
+		assertArrayEquals(data, out);
+		assertTrue(buf.isEmpty());
+		assertEquals(0, pool.getUsedBytes());
+	}
+
+	@Test
+	public void bufferStopsAtQuota(){
+		BufferPool pool = new BufferPool(SLAB, false);
+		BoundedByteBuffer buf = new BoundedByteBuffer(pool, 1000);
+		assertEquals(1000, buf.buffer(pattern(1500), 0, 1500));
+		assertEquals(0, buf.remainingCapacity());
+		try {
+			buf.buffer(new byte[1]);
+			fail("buffered beyond the quota");
+		} catch (FullCollectionException e) {
+			//expected
+		}
+		assertEquals(1000, buf.length());
+	}
+
+	@Test
+	public void bufferStopsAtPoolMaximum(){
+		BufferPool pool = new BufferPool(SLAB, false);
+		BoundedByteBuffer a = new BoundedByteBuffer(pool, (int) SLAB);
+		BoundedByteBuffer b = new BoundedByteBuffer(pool, (int) SLAB);
+		int half = (int) SLAB / 2;
+		assertEquals(half + 1, a.buffer(pattern(half + 1), 0, half + 1));
+		//a holds one chunk more than half of the slab
+		int left = (int) (SLAB - (half / BufferPool.CHUNK_SIZE + 1) * BufferPool.CHUNK_SIZE);
+		assertEquals(left, b.remainingCapacity());
+		assertEquals(left, b.buffer(pattern(half), 0, half));
+		assertEquals(0, pool.available());
+
+		a.init();
+		assertEquals(SLAB - left, pool.available());
+	}
+
+	@Test
+	public void appendKeepsTheArray() throws FullCollectionException {
+		BufferPool pool = new BufferPool(SLAB, false);
+		BoundedByteBuffer buf = new BoundedByteBuffer(pool, 10000);
+		byte[] data = pattern(3000);
+		buf.append(data);
+		assertEquals(3000, buf.length());
+		assertEquals(3000, pool.getUsedBytes());
+
+		byte[] out = new byte[3000];
+		buf.deBuffer(out, 0, out.length);
+		assertArrayEquals(data, out);
+		assertEquals(0, pool.getUsedBytes());
+	}
+
+	@Test(expected = FullCollectionException.class)
+	public void appendBeyondQuotaFails() throws FullCollectionException {
+		BufferPool pool = new BufferPool(SLAB, false);
+		BoundedByteBuffer buf = new BoundedByteBuffer(pool, 100);
+		buf.append(new byte[101]);
+	}
+
+	@Test
+	public void appendCopiesIntoDirectPool() throws FullCollectionException {
+		BufferPool pool = new BufferPool(SLAB, true);
+		BoundedByteBuffer buf = new BoundedByteBuffer(pool, 10000);
+		byte[] data = pattern(3000);
+		buf.append(data);
+		assertEquals(BufferPool.CHUNK_SIZE, pool.getUsedBytes());
+		assertEquals(SLAB, pool.getDirectBytes());
+
+		ByteBuffer out = ByteBuffer.allocate(3000);
+		assertEquals(3000, buf.deBuffer(out));
+		assertArrayEquals(data, out.array());
+	}
+
+	@Test
+	public void peekAndSkip() throws FullCollectionException {
+		BufferPool pool = new BufferPool(SLAB, false);
+		BoundedByteBuffer buf = new BoundedByteBuffer(pool, 3 * BufferPool.CHUNK_SIZE);
+		byte[] data = pattern(2 * BufferPool.CHUNK_SIZE);
+		buf.buffer(data);
+
+		int skip = BufferPool.CHUNK_SIZE - 10;
+		byte[] out = new byte[20];
+		buf.peek(skip, out, 0, out.length);
+		for (int i = 0; i < out.length; i++){
+			assertEquals(data[skip + i], out[i]);
+		}
+		assertEquals(data.length, buf.length());
+
+		buf.skip(skip + 10);
+		assertEquals(BufferPool.CHUNK_SIZE, pool.getUsedBytes());
+		buf.peek(out, 0, 10);
+		assertEquals(data[skip + 10], out[0]);
+	}
+
+	@Test
+	public void lentChunksCountTowardsQuota(){
+		BufferPool pool = new BufferPool(SLAB, false);
+		int quota = 2 * BufferPool.CHUNK_SIZE;
+		BoundedByteBuffer buf = new BoundedByteBuffer(pool, quota);
+		buf.buffer(pattern(quota), 0, quota);
+
+		Chunk c = buf.lend();
+		int n = c.length();
+		assertEquals(BufferPool.CHUNK_SIZE, n);
+		assertEquals(quota - n, buf.length());
+		assertEquals(n, buf.lent());
+		assertEquals(0, buf.remainingCapacity());
+		assertEquals(0, buf.buffer(new byte[1], 0, 1));
+
+		//the memory stays in use until the chunk is given back
+		assertEquals((long) quota, pool.getUsedBytes());
+		buf.giveBack(c, n);
+		assertEquals(0, buf.lent());
+		assertEquals(BufferPool.CHUNK_SIZE, pool.getUsedBytes());
+		assertEquals(n, buf.remainingCapacity());
+	}
+
+	@Test
+	public void lendFromEmptyBuffer(){
+		BoundedByteBuffer buf = new BoundedByteBuffer(new BufferPool(SLAB, false), 100);
+		assertNull(buf.lend());
+	}
+
+	@Test
+	public void loweredQuotaKeepsData(){
+		BufferPool pool = new BufferPool(SLAB, false);
+		BoundedByteBuffer buf = new BoundedByteBuffer(pool, 1000);
+		buf.buffer(pattern(800), 0, 800);
+		buf.setQuota(500);
+		assertEquals(800, buf.length());
+		assertEquals(0, buf.remainingCapacity());
+		buf.skip(400);
+		assertEquals(100, buf.remainingCapacity());
+	}
+
+	@Test
+	public void poolRoundsMaximumToSlabs(){
+		BufferPool pool = new BufferPool(2 * SLAB + 1, false);
+		assertEquals(2 * SLAB, pool.getMaxBytes());
+		try {
+			pool.setMaxBytes(SLAB - 1);
+			fail("accepted a maximum below one slab");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void poolIsSharedByThreads() throws InterruptedException {
+		final BufferPool pool = new BufferPool(2 * SLAB, false);
+		final AtomicBoolean overdrawn = new AtomicBoolean();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++){
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					List<Chunk> chunks = new ArrayList<Chunk>();
+					for (int j = 0; j < 20000; j++){
+						if (pool.acquire(1 + j % 5, chunks) && pool.getUsedBytes() > pool.getMaxBytes()){
+							overdrawn.set(true);
+						}
+						//give back in another order than taken, some by another stripe than the one they came from
+						while (chunks.size() > j % 3){
+							pool.release(chunks.remove(0));
+						}
+					}
+					for (Chunk c : chunks){
+						pool.release(c);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads){
+			t.join();
+		}
+		assertFalse(overdrawn.get());
+		assertEquals(0, pool.getUsedBytes());
+		assertTrue(pool.getAllocatedBytes() <= pool.getMaxBytes());
+		//all chunks are free again: the whole maximum can be taken at once
+		List<Chunk> all = new ArrayList<Chunk>();
+		assertTrue(pool.acquire((int) (2 * SLAB / BufferPool.CHUNK_SIZE), all));
+		assertEquals(0, pool.available());
+	}
+}
@@ -0,0 +1,145 @@
+package nl.vu.cs.cn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.TCPSegment.TCPSegmentType;
+
+/**
+ * Tests the coalescing of the segments of a batch.
+ */
+public class ReceiveBatchTest {
+
+	private static final IpAddress PEER = IpAddress.getAddress("192.168.0.2");
+	private static final IpAddress OTHER_PEER = IpAddress.getAddress("192.168.0.3");
+
+	private ReceiveBatch batch;
+
+	@Before
+	public void setUp(){
+		batch = new ReceiveBatch(TCP.RECEIVE_BATCH);
+	}
+
+	private static TCPSegment data(IpAddress from, long seq_nr, int length, int window){
+		TCPSegment seg = new TCPSegment(12345, 80, seq_nr, 1000, TCPSegmentType.DATA, new byte[length]);
+		seg.source_ip = from;
+		seg.windowSize = window;
+		return seg;
+	}
+
+	@Test
+	public void mergesConsecutiveSegmentsWithoutCopying(){
+		TCPSegment a = data(PEER, 5000, 100, 1);
+		TCPSegment b = data(PEER, 5100, 200, 2);
+		TCPSegment c = data(PEER, 5300, 300, 3);
+		assertNull(batch.add(a));
+		assertNull(batch.add(b));
+		assertNull(batch.add(c));
+
+		TCPSegment merged = batch.poll();
+		assertSame(a, merged);
+		assertEquals(2, merged.coalesced);
+		assertEquals(600, merged.getDataLength());
+		assertEquals(3, merged.windowSize);
+		//the payloads stay in their own arrays, chained in order
+		assertSame(b, merged.next);
+		assertSame(c, b.next);
+		assertNull(c.next);
+		assertEquals(100, merged.data.length);
+		assertNull(batch.poll());
+	}
+
+	@Test
+	public void mergesAcrossSequenceNumberWrap(){
+		assertNull(batch.add(data(PEER, TCPControlBlock.UINT_32_MAX - 49, 100, 1)));
+		assertNull(batch.add(data(PEER, 50, 100, 1)));
+		assertEquals(200, batch.poll().getDataLength());
+	}
+
+	@Test
+	public void gapStartsNewSegment(){
+		TCPSegment a = data(PEER, 5000, 100, 1);
+		TCPSegment b = data(PEER, 5100, 100, 1);
+		TCPSegment c = data(PEER, 5300, 100, 1);
+		batch.add(a);
+		batch.add(b);
+		//the merged segments before the gap have to be handled first
+		TCPSegment before = batch.add(c);
+		assertSame(a, before);
+		assertEquals(200, before.getDataLength());
+
+		TCPSegment after = batch.poll();
+		assertSame(c, after);
+		assertEquals(0, after.coalesced);
+		assertNull(batch.poll());
+	}
+
+	@Test
+	public void controlSegmentsAreNotMerged(){
+		TCPSegment a = data(PEER, 5000, 100, 1);
+		TCPSegment fin = new TCPSegment(12345, 80, 5100, 1000, TCPSegmentType.FIN, TCPSegment.NO_DATA);
+		fin.source_ip = PEER;
+		batch.add(a);
+		assertSame(a, batch.add(fin));
+		assertEquals(100, a.getDataLength());
+		assertSame(fin, batch.poll());
+	}
+
+	@Test
+	public void differentAcknowledgementIsNotMerged(){
+		TCPSegment a = data(PEER, 5000, 100, 1);
+		TCPSegment b = data(PEER, 5100, 100, 1);
+		b.ack_nr = 1001;
+		batch.add(a);
+		assertSame(a, batch.add(b));
+	}
+
+	@Test
+	public void connectionsAreMergedSeparately(){
+		TCPSegment a1 = data(PEER, 5000, 100, 1);
+		TCPSegment b1 = data(OTHER_PEER, 9000, 100, 1);
+		TCPSegment a2 = data(PEER, 5100, 100, 1);
+		TCPSegment b2 = data(OTHER_PEER, 9100, 100, 1);
+		assertNull(batch.add(a1));
+		assertNull(batch.add(b1));
+		assertNull(batch.add(a2));
+		assertNull(batch.add(b2));
+
+		assertSame(a1, batch.poll());
+		assertEquals(200, a1.getDataLength());
+		assertSame(b1, batch.poll());
+		assertEquals(200, b1.getDataLength());
+		assertNull(batch.poll());
+	}
+
+	@Test
+	public void mergedLengthIsBounded(){
+		int n = TCP.MAX_DATA_LENGTH;
+		long seq_nr = 0;
+		int segments = ReceiveBatch.MAX_COALESCED_LENGTH / n + 1;
+		TCPSegment before = null;
+		for (int i = 0; i < segments; i++){
+			before = batch.add(data(PEER, seq_nr, n, 1));
+			seq_nr += n;
+		}
+		//the last segment did not fit anymore
+		assertEquals((segments - 1) * n, before.getDataLength());
+		assertEquals(n, batch.poll().getDataLength());
+	}
+
+	@Test
+	public void batchIsReusable(){
+		batch.add(data(PEER, 5000, 100, 1));
+		batch.poll();
+		assertNull(batch.poll());
+		TCPSegment a = data(PEER, 7000, 100, 1);
+		batch.add(a);
+		assertSame(a, batch.poll());
+		assertEquals(100, a.getDataLength());
+	}
+}
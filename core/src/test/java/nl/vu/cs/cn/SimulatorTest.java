@@ -0,0 +1,208 @@
+package nl.vu.cs.cn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import nl.vu.cs.cn.IP.IpAddress;
+
+/**
+ * Tests transfers between two stacks in the Simulator, on links with a fixed seed, checking the bytes delivered and
+ * the metrics of the stacks.
+ */
+public class SimulatorTest {
+
+	private static final int BYTES = 300000;
+
+	private Simulator sim;
+	private TCP server;
+	private TCP client;
+
+	private Simulator.Transfer transfer(long seed, String link){
+		return transfer(seed, link, BYTES);
+	}
+
+	private Simulator.Transfer transfer(long seed, String link, int bytes){
+		sim = new Simulator(seed);
+		sim.setDefaultLink(link);
+		server = sim.addStack(1);
+		client = sim.addStack(2);
+		Simulator.Transfer t = new Simulator.Transfer(sim, server, client, bytes);
+		sim.runUntilIdle();
+		return t;
+	}
+
+	/**
+	 * one end of a connection on which both ends send: writes its bytes, reads those of the other end, and closes
+	 * once both are done.
+	 */
+	private static final class Peer {
+		private final TCP.Socket socket;
+		private final int toRead;
+		private final ByteBuffer buf = ByteBuffer.allocate(TCP.MAX_DATA_LENGTH);
+		private long received;
+		private boolean written;
+
+		Peer(TCP.Socket socket, int toRead){
+			this.socket = socket;
+			this.toRead = toRead;
+		}
+
+		void write(int bytes){
+			socket.writeAsync(ByteBuffer.allocate(bytes)).addListener(new TCPFuture.Listener<Integer>() {
+				public void done(TCPFuture<Integer> future) {
+					written = true;
+					closeIfDone();
+				}
+			});
+		}
+
+		void read(){
+			buf.clear();
+			socket.readAsync(buf).addListener(new TCPFuture.Listener<Integer>() {
+				public void done(TCPFuture<Integer> future) {
+					int n = future.await();
+					if (n > 0){
+						received += n;
+						closeIfDone();
+						read();
+					}
+				}
+			});
+		}
+
+		private void closeIfDone(){
+			if (written && received == toRead){
+				socket.close();
+			}
+		}
+	}
+
+	private void assertClosed(){
+		assertEquals(0, server.getOpenConnections());
+		assertEquals(0, client.getOpenConnections());
+		assertEquals(0, server.getTimeWaitConnections());
+		assertEquals(0, client.getTimeWaitConnections());
+	}
+
+	@Test
+	public void transferOnCleanLink(){
+		Simulator.Transfer t = transfer(1, "delay=10");
+		assertEquals(BYTES, t.getReceived());
+		assertTrue(t.getCompletedAt() >= 0);
+		assertEquals(0, sim.getPacketsLost());
+
+		TCPMetrics s = server.getMetrics();
+		TCPMetrics c = client.getMetrics();
+		assertEquals(BYTES, c.getBytesSent());
+		assertEquals(BYTES, s.getBytesReceived());
+		assertEquals(0, c.getRetransmissions());
+		assertEquals(0, s.getRetransmissions());
+		assertEquals(0, s.getOutOfOrderDrops());
+		assertEquals(0, s.getChecksumFailures());
+		//the packets of a super-segment arrive together: they are coalesced, and then handled on the fast path
+		assertTrue(s.getCoalescedSegments() > 0);
+		assertTrue(s.getPredictedSegments() > 0);
+		assertTrue(c.getPredictedSegments() > 0);
+		assertClosed();
+	}
+
+	@Test
+	public void transferOnLossyLink(){
+		//long enough that an ack for a whole batch of coalesced segments is lost
+		Simulator.Transfer t = transfer(3, "delay=10,loss=10", 1000000);
+		assertEquals(1000000, t.getReceived());
+		assertTrue(sim.getPacketsLost() > 0);
+		assertTrue(client.getMetrics().getRetransmissions() > 0);
+		assertTrue(client.getMetrics().getTimeouts() > 0);
+		//retransmitted data is counted again
+		assertTrue(client.getMetrics().getBytesSent() > 1000000);
+		assertEquals(0, client.getMetrics().getRetriesExpired());
+		assertClosed();
+	}
+
+	@Test
+	public void transferOnReorderingLink(){
+		Simulator.Transfer t = transfer(2, "delay=10,loss=2,reorder=20,jitter=5");
+		assertEquals(BYTES, t.getReceived());
+		assertEquals(0, client.getMetrics().getRetriesExpired());
+		assertClosed();
+	}
+
+	@Test
+	public void sameSeedGivesSameRun(){
+		Simulator.Transfer first = transfer(5, "delay=10,loss=5,jitter=3");
+		long completedAt = first.getCompletedAt();
+		long packets = sim.getPacketsSent();
+		long retransmissions = client.getMetrics().getRetransmissions();
+
+		Simulator.Transfer second = transfer(5, "delay=10,loss=5,jitter=3");
+		assertEquals(BYTES, second.getReceived());
+		assertEquals(completedAt, second.getCompletedAt());
+		assertEquals(packets, sim.getPacketsSent());
+		assertEquals(retransmissions, client.getMetrics().getRetransmissions());
+	}
+
+	/**
+	 * runs a connection on which the server sends serverBytes as soon as it accepts, and the client sends clientBytes
+	 * clientDelay milliseconds after it connects. Both read what the other sends.
+	 */
+	private void twoWay(long seed, String link, final int serverBytes, final int clientBytes, final long clientDelay){
+		sim = new Simulator(seed);
+		sim.setDefaultLink(link);
+		server = sim.addStack(1);
+		client = sim.addStack(2);
+		final Peer serverPeer = new Peer(server.socket(80), clientBytes);
+		final Peer clientPeer = new Peer(client.socket(), serverBytes);
+		serverPeer.socket.acceptAsync().addListener(new TCPFuture.Listener<Boolean>() {
+			public void done(TCPFuture<Boolean> future) {
+				serverPeer.read();
+				serverPeer.write(serverBytes);
+			}
+		});
+		clientPeer.socket.connectAsync(IpAddress.getAddress(server.getIPAddress()), 80).addListener(
+				new TCPFuture.Listener<Boolean>() {
+			public void done(TCPFuture<Boolean> future) {
+				clientPeer.read();
+				sim.at(clientDelay, new Runnable() {
+					public void run() {
+						clientPeer.write(clientBytes);
+					}
+				});
+			}
+		});
+		sim.runUntilIdle();
+
+		assertEquals(clientBytes, serverPeer.received);
+		assertEquals(serverBytes, clientPeer.received);
+		assertEquals(0, server.getMetrics().getRetriesExpired());
+		assertEquals(0, client.getMetrics().getRetriesExpired());
+		assertClosed();
+	}
+
+	@Test
+	public void bothEndsSendAtOnce(){
+		//each data segment acknowledges the data before the one the other end sent meanwhile
+		twoWay(1, "delay=10", 100000, 100000, 0);
+		twoWay(1, "delay=10", 1000000, 1000000, 0);
+	}
+
+	@Test
+	public void sendingWhileSuperSegmentInFlight(){
+		//the client's data carries a partial ack of the server's super-segment
+		for (long clientDelay : new long[] {20, 30, 40, 50}){
+			twoWay(1, "delay=10,rate=1000000", TCP.MAX_WINDOW, 100, clientDelay);
+			assertEquals(0, server.getMetrics().getOutOfOrderDrops());
+			assertEquals(0, client.getMetrics().getOutOfOrderDrops());
+		}
+	}
+
+	@Test
+	public void bothEndsSendOnReorderingLink(){
+		//retransmitted data acknowledges what was received since it was sent first
+		twoWay(2, "delay=10,loss=2,reorder=20,jitter=5", 300000, 200000, 15);
+	}
+}
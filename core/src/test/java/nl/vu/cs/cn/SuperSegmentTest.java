@@ -0,0 +1,130 @@
+package nl.vu.cs.cn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.IP.Packet;
+
+/**
+ * Tests how a super-segment, a data segment larger than MAX_DATA_LENGTH, is split into packets when it is sent.
+ */
+public class SuperSegmentTest {
+
+	private static final IpAddress LOCAL = IpAddress.getAddress("192.168.0.1");
+	private static final IpAddress REMOTE = IpAddress.getAddress("192.168.0.2");
+
+	/**
+	 * Keeps a copy of every packet sent.
+	 */
+	private static final class RecordingIP implements IPTransport {
+		final List<Packet> sent = new ArrayList<Packet>();
+
+		public IpAddress getLocalAddress() {
+			return LOCAL;
+		}
+
+		public int ip_send(Packet p) {
+			byte[] data = new byte[p.length];
+			System.arraycopy(p.data, 0, data, 0, p.length);
+			Packet copy = new Packet(p.destination, p.protocol, p.id, data, p.length);
+			copy.source = p.source;
+			sent.add(copy);
+			return p.length;
+		}
+
+		public void ip_receive(Packet p) throws IOException {
+			throw new IOException("not receiving");
+		}
+
+		public void ip_receive_timeout(Packet p, int timeout) throws IOException {
+			throw new IOException("not receiving");
+		}
+	}
+
+	private RecordingIP ip;
+	private TCP stack;
+	private BoundedByteBuffer sendBuffer;
+	private byte[] data;
+
+	@Before
+	public void setUp() throws FullCollectionException {
+		ip = new RecordingIP();
+		stack = new TCP(ip, Clock.SYSTEM, false);
+		data = new byte[3 * TCP.MAX_DATA_LENGTH + 100];
+		new Random(1).nextBytes(data);
+		sendBuffer = new BoundedByteBuffer(new BufferPool(1 << 20, false), data.length);
+		sendBuffer.buffer(data);
+	}
+
+	/**
+	 * checks that a sent packet is a valid segment with the given part of the data.
+	 */
+	private void assertPacket(Packet p, long seq_nr, int offset, int length) throws InvalidPacketException {
+		assertEquals(LOCAL.getAddress(), p.source);
+		assertEquals(REMOTE.getAddress(), p.destination);
+		assertEquals(TCPSegment.HEADER_LENGTH + length, p.length);
+		//validates the checksum as well
+		TCPSegment seg = stack.decode_tcp_segment(p);
+		assertEquals(seq_nr % (TCPControlBlock.UINT_32_MAX + 1), seg.seq_nr);
+		assertEquals(77, seg.ack_nr);
+		byte[] expected = new byte[length];
+		System.arraycopy(data, offset, expected, 0, length);
+		assertArrayEquals(expected, seg.data);
+	}
+
+	@Test
+	public void splitsIntoPacketsOfMaximumSize() throws IOException, InvalidPacketException {
+		long base = 1000;
+		stack.send_tcp_segment(REMOTE, new TCPSegment(1024, 80, base, 77, sendBuffer, data.length));
+
+		assertEquals(4, ip.sent.size());
+		for (int i = 0; i < 3; i++){
+			assertPacket(ip.sent.get(i), base + i * TCP.MAX_DATA_LENGTH, i * TCP.MAX_DATA_LENGTH, TCP.MAX_DATA_LENGTH);
+		}
+		assertPacket(ip.sent.get(3), base + 3 * TCP.MAX_DATA_LENGTH, 3 * TCP.MAX_DATA_LENGTH, 100);
+		//the data stays in the send buffer until it is acknowledged
+		assertEquals(data.length, sendBuffer.length());
+	}
+
+	@Test
+	public void sequenceNumbersWrap() throws IOException, InvalidPacketException {
+		long base = TCPControlBlock.UINT_32_MAX - TCP.MAX_DATA_LENGTH / 2;
+		stack.send_tcp_segment(REMOTE, new TCPSegment(1024, 80, base, 77, sendBuffer, data.length));
+
+		assertEquals(4, ip.sent.size());
+		for (int i = 0; i < 4; i++){
+			int offset = i * TCP.MAX_DATA_LENGTH;
+			assertPacket(ip.sent.get(i), base + offset, offset, Math.min(TCP.MAX_DATA_LENGTH, data.length - offset));
+		}
+	}
+
+	@Test
+	public void segmentOfMaximumSizeIsOnePacket() throws IOException, InvalidPacketException {
+		stack.send_tcp_segment(REMOTE, new TCPSegment(1024, 80, 5, 77, sendBuffer, TCP.MAX_DATA_LENGTH));
+		assertEquals(1, ip.sent.size());
+		assertPacket(ip.sent.get(0), 5, 0, TCP.MAX_DATA_LENGTH);
+	}
+
+	@Test
+	public void faultInjectorSeesEveryPacket() throws IOException, InvalidPacketException {
+		FaultInjector faults = new FaultInjector().dropNth(FaultInjector.Direction.SEND, FaultInjector.Kind.DATA, 2);
+		stack.setFaultInjector(faults);
+		long base = 1000;
+		stack.send_tcp_segment(REMOTE, new TCPSegment(1024, 80, base, 77, sendBuffer, data.length));
+
+		assertEquals(4, faults.getSent());
+		assertEquals(3, ip.sent.size());
+		assertPacket(ip.sent.get(0), base, 0, TCP.MAX_DATA_LENGTH);
+		//the second packet is missing
+		assertPacket(ip.sent.get(1), base + 2 * TCP.MAX_DATA_LENGTH, 2 * TCP.MAX_DATA_LENGTH, TCP.MAX_DATA_LENGTH);
+	}
+}
@@ -0,0 +1,81 @@
+package nl.vu.cs.cn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the striped counters and RTT histograms of the metrics.
+ */
+public class TCPMetricsTest {
+
+	private static final int THREADS = 8;
+	private static final int PER_THREAD = 10000;
+
+	/**
+	 * runs task in THREADS threads at once, so that the updates go to different stripes.
+	 */
+	private static void inThreads(Runnable task) throws InterruptedException {
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++){
+			threads[i] = new Thread(task);
+			threads[i].start();
+		}
+		for (Thread t : threads){
+			t.join();
+		}
+	}
+
+	@Test
+	public void histogramSumsItsStripes() throws InterruptedException {
+		final TCPMetrics.Histogram h = new TCPMetrics.Histogram(4);
+		inThreads(new Runnable() {
+			public void run() {
+				for (int i = 0; i < PER_THREAD; i++){
+					//1.5 ms, in the bucket up to 2^11 microseconds
+					h.record(1500000);
+				}
+			}
+		});
+		assertEquals(THREADS * PER_THREAD, h.getCount());
+		assertEquals(THREADS * PER_THREAD, h.getBucket(11));
+		assertEquals(0, h.getBucket(10));
+		assertEquals(THREADS * PER_THREAD * 1500000L, h.getSumNanos());
+		assertEquals(2048, h.getPercentileMicros(99), 0);
+	}
+
+	@Test
+	public void histogramBuckets(){
+		TCPMetrics.Histogram h = new TCPMetrics.Histogram(2);
+		h.record(999);
+		h.record(1000);
+		h.record(3999);
+		h.record(Long.MAX_VALUE);
+		assertEquals(1, h.getBucket(0));
+		assertEquals(1, h.getBucket(1));
+		assertEquals(1, h.getBucket(2));
+		assertEquals(1, h.getBucket(TCPMetrics.Histogram.BUCKETS - 1));
+		assertEquals(4, h.getCount());
+		assertEquals(1, h.getPercentileMicros(25), 0);
+		assertTrue(Double.isInfinite(h.getPercentileMicros(100)));
+	}
+
+	@Test
+	public void socketUpdatesReachTheStack() throws InterruptedException {
+		final TCPMetrics stack = new TCPMetrics();
+		final TCPMetrics socket = new TCPMetrics(stack);
+		inThreads(new Runnable() {
+			public void run() {
+				for (int i = 0; i < PER_THREAD; i++){
+					socket.segmentSent(10);
+					socket.rtt(1000000);
+				}
+			}
+		});
+		assertEquals(THREADS * PER_THREAD, socket.getSegmentsSent());
+		assertEquals(THREADS * PER_THREAD * 10L, stack.getBytesSent());
+		assertEquals(THREADS * PER_THREAD, socket.getRttHistogram().getCount());
+		assertEquals(THREADS * PER_THREAD, stack.getRttHistogram().getBucket(10));
+	}
+}
@@ -0,0 +1,135 @@
+package nl.vu.cs.cn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import nl.vu.cs.cn.TCPSegment.TCPSegmentType;
+
+/**
+ * Tests encoding and decoding of segments, and the checksums.
+ */
+public class TCPSegmentTest {
+
+	private static final int SOURCE = IP.IpAddress.getAddress("192.168.0.1").getAddress();
+	private static final int DEST = IP.IpAddress.getAddress("192.168.0.2").getAddress();
+
+	private static byte[] random(Random r, int n){
+		byte[] b = new byte[n];
+		r.nextBytes(b);
+		return b;
+	}
+
+	@Test
+	public void decodesWhatWasEncoded(){
+		byte[] data = random(new Random(1), 1000);
+		TCPSegment seg = new TCPSegment(12345, 80, 0xfffffff0L, 42, TCPSegmentType.DATA, data);
+		seg.windowSize = 0x1234;
+		byte[] encoded = seg.encode();
+		assertEquals(TCPSegment.HEADER_LENGTH + data.length, encoded.length);
+
+		TCPSegment decoded = TCPSegment.decode(encoded, encoded.length);
+		assertEquals(12345, decoded.src_port);
+		assertEquals(80, decoded.dest_port);
+		assertEquals(0xfffffff0L, decoded.seq_nr);
+		assertEquals(42, decoded.ack_nr);
+		assertEquals(0x1234, decoded.windowSize);
+		assertEquals(TCPSegmentType.DATA, decoded.getSegmentType());
+		assertArrayEquals(data, decoded.data);
+	}
+
+	@Test
+	public void decodesAllTypes(){
+		TCPSegmentType[] types = {TCPSegmentType.SYN, TCPSegmentType.SYNACK, TCPSegmentType.ACK, TCPSegmentType.FIN,
+				TCPSegmentType.FINACK};
+		for (TCPSegmentType type : types){
+			byte[] encoded = new TCPSegment(1, 2, 3, 4, type, TCPSegment.NO_DATA).encode();
+			TCPSegment decoded = TCPSegment.decode(encoded, encoded.length);
+			assertEquals(type, decoded.getSegmentType());
+			assertEquals(0, decoded.data.length);
+		}
+	}
+
+	@Test
+	public void decodesOnlyTheGivenLength(){
+		byte[] data = random(new Random(2), 100);
+		byte[] encoded = new TCPSegment(1, 2, 3, 4, TCPSegmentType.DATA, data).encode();
+		byte[] packet = new byte[encoded.length + 50];
+		System.arraycopy(encoded, 0, packet, 0, encoded.length);
+		assertArrayEquals(data, TCPSegment.decode(packet, encoded.length).data);
+	}
+
+	@Test
+	public void encodesDataFromSendBuffer() throws FullCollectionException {
+		byte[] data = random(new Random(3), 5000);
+		BufferPool pool = new BufferPool(BufferPool.CHUNK_SIZE * BufferPool.SLAB_CHUNKS, false);
+		BoundedByteBuffer buf = new BoundedByteBuffer(pool, 10000);
+		buf.buffer(data);
+		TCPSegment seg = new TCPSegment(1, 2, 3, 4, buf, 3000);
+		byte[] encoded = seg.encode();
+		assertEquals(TCPSegment.HEADER_LENGTH + 3000, encoded.length);
+		byte[] expected = new byte[3000];
+		System.arraycopy(data, 0, expected, 0, 3000);
+		assertArrayEquals(expected, TCPSegment.decode(encoded, encoded.length).data);
+		//the data stays in the buffer until it is acknowledged
+		assertEquals(5000, buf.length());
+	}
+
+	@Test
+	public void checksumSurvivesEncoding(){
+		Random r = new Random(4);
+		for (int n : new int[] {0, 1, 2, 999, TCP.MAX_DATA_LENGTH}){
+			TCPSegment seg = new TCPSegment(1000, 2000, r.nextLong() & TCPControlBlock.UINT_32_MAX, 7,
+					TCPSegmentType.DATA, random(r, n));
+			byte[] encoded = seg.encode();
+			seg.checksum = TCPSegment.calculateChecksum(SOURCE, DEST, encoded.length, encoded);
+			encoded = seg.encode();
+			//the checksum field itself is left out of the sum, as the receiver does
+			TCPSegment decoded = TCPSegment.decode(encoded, encoded.length);
+			assertEquals(seg.checksum, decoded.checksum);
+			assertEquals(decoded.checksum, TCPSegment.calculateChecksum(SOURCE, DEST, encoded.length, encoded));
+			//and any change of the data shows
+			if (n > 0){
+				encoded[encoded.length - 1]++;
+				assertNotEquals(decoded.checksum, TCPSegment.calculateChecksum(SOURCE, DEST, encoded.length, encoded));
+			}
+		}
+	}
+
+	@Test
+	public void incrementalChecksumEqualsFullChecksum(){
+		Random r = new Random(5);
+		TCPSegment seg = new TCPSegment(1000, 2000, 0, 0x89abcdefL, TCPSegmentType.DATA, TCPSegment.NO_DATA);
+		seg.windowSize = 0xffff;
+		byte[] header = new byte[TCPSegment.HEADER_LENGTH];
+		seg.encodeHeader(header);
+		int partial = TCPSegment.partialChecksum(SOURCE, DEST, header);
+
+		for (int i = 0; i < 50; i++){
+			long seq_nr = i == 0 ? TCPControlBlock.UINT_32_MAX : r.nextLong() & TCPControlBlock.UINT_32_MAX;
+			//odd lengths too, whose last byte is padded
+			int length = TCPSegment.HEADER_LENGTH + (i == 1 ? 0 : r.nextInt(TCP.MAX_DATA_LENGTH + 1));
+			byte[] packet = new byte[length];
+			System.arraycopy(header, 0, packet, 0, TCPSegment.HEADER_LENGTH);
+			TCPSegment.stampSeqnr(packet, seq_nr);
+			byte[] data = random(r, length - TCPSegment.HEADER_LENGTH);
+			System.arraycopy(data, 0, packet, TCPSegment.HEADER_LENGTH, data.length);
+
+			assertEquals(TCPSegment.calculateChecksum(SOURCE, DEST, length, packet),
+					TCPSegment.finishChecksum(partial, seq_nr, length, packet));
+		}
+	}
+
+	@Test
+	public void stampSeqnrOverwritesSequenceNumber(){
+		byte[] encoded = new TCPSegment(1, 2, 3, 4, TCPSegmentType.ACK, TCPSegment.NO_DATA).encode();
+		TCPSegment.stampSeqnr(encoded, 0xdeadbeefL);
+		TCPSegment decoded = TCPSegment.decode(encoded, encoded.length);
+		assertEquals(0xdeadbeefL, decoded.seq_nr);
+		assertEquals(4, decoded.ack_nr);
+	}
+}
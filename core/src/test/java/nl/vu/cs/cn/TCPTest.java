@@ -0,0 +1,193 @@
+package nl.vu.cs.cn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.IP.Packet;
+
+/**
+ * Tests stacks which run with their own threads: their life cycle, and writes from several threads.
+ */
+public class TCPTest {
+
+	private static final IpAddress LOCAL = IpAddress.getAddress("192.168.0.1");
+	private static final IpAddress REMOTE = IpAddress.getAddress("192.168.0.2");
+
+	/**
+	 * Sends nowhere and never receives anything, like a network which is down.
+	 */
+	private static final class SilentIP implements IPTransport {
+		public IpAddress getLocalAddress() {
+			return LOCAL;
+		}
+
+		public int ip_send(Packet p) {
+			return p.length;
+		}
+
+		public void ip_receive(Packet p) throws IOException {
+			throw new IOException("receiving without a timeout");
+		}
+
+		public void ip_receive_timeout(Packet p, int timeout) throws InterruptedException {
+			Thread.sleep(timeout * 1000L);
+			throw new InterruptedException("timeout");
+		}
+	}
+
+	/**
+	 * Passes the packets to the other end of a pair, without loss, so that two stacks can run with their own threads.
+	 */
+	private static final class LoopbackIP implements IPTransport {
+		private final IpAddress address;
+		private final BlockingQueue<Packet> inbox = new LinkedBlockingQueue<Packet>();
+		private LoopbackIP peer;
+
+		LoopbackIP(IpAddress address){
+			this.address = address;
+		}
+
+		static LoopbackIP[] pair(IpAddress a, IpAddress b){
+			LoopbackIP[] ips = {new LoopbackIP(a), new LoopbackIP(b)};
+			ips[0].peer = ips[1];
+			ips[1].peer = ips[0];
+			return ips;
+		}
+
+		public IpAddress getLocalAddress() {
+			return address;
+		}
+
+		public int ip_send(Packet p) {
+			Packet copy = new Packet(p.destination, p.protocol, p.id, Arrays.copyOf(p.data, p.length), p.length);
+			copy.source = address.getAddress();
+			peer.inbox.add(copy);
+			return p.length;
+		}
+
+		public void ip_receive(Packet p) throws IOException {
+			throw new IOException("receiving without a timeout");
+		}
+
+		public void ip_receive_timeout(Packet p, int timeout) throws InterruptedException {
+			Packet q = inbox.poll(timeout, TimeUnit.SECONDS);
+			if (q == null){
+				throw new InterruptedException("timeout");
+			}
+			p.source = q.source;
+			p.destination = q.destination;
+			p.protocol = q.protocol;
+			p.id = q.id;
+			p.data = q.data;
+			p.length = q.length;
+		}
+	}
+
+	/**
+	 * @return true if a thread of the given name is alive
+	 */
+	private static boolean isRunning(String name){
+		for (Thread t : Thread.getAllStackTraces().keySet()){
+			if (t.getName().equals(name) && t.isAlive()){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean awaitStopped(String name) throws InterruptedException {
+		long deadline = System.nanoTime() + (TCP.RECEIVE_POLL_SECONDS + 5) * 1000000000L;
+		while (isRunning(name)){
+			if (System.nanoTime() > deadline){
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	@Test
+	public void closeStopsThreadsAndDeregisters() throws InterruptedException {
+		TCP stack = new TCP(new SilentIP());
+		assertTrue(TCP.getStacks().contains(stack));
+		//a listener starts the receiving threads, and the SYN's retransmission timer the timer thread
+		stack.socket(80).acceptAsync();
+		stack.socket().connectAsync(REMOTE, 80);
+		assertTrue(isRunning("TCP receiver " + LOCAL));
+		assertTrue(isRunning("TCP demultiplexer " + LOCAL));
+		assertTrue(isRunning("TCP timers " + LOCAL));
+
+		stack.close();
+		assertFalse(TCP.getStacks().contains(stack));
+		assertTrue(awaitStopped("TCP receiver " + LOCAL));
+		assertTrue(awaitStopped("TCP demultiplexer " + LOCAL));
+		assertTrue(awaitStopped("TCP timers " + LOCAL));
+
+		//a closed stack does not start them again
+		stack.socket(81).acceptAsync();
+		assertFalse(isRunning("TCP demultiplexer " + LOCAL));
+	}
+
+	@Test
+	public void gatherWritesAreNotInterleaved() throws InterruptedException {
+		LoopbackIP[] ips = LoopbackIP.pair(LOCAL, REMOTE);
+		TCP serverStack = new TCP(ips[0]);
+		TCP clientStack = new TCP(ips[1]);
+		TCP.Socket server = serverStack.socket(80);
+		TCPFuture<Boolean> accepted = server.acceptAsync();
+		final TCP.Socket client = clientStack.socket();
+		assertTrue(client.connect(LOCAL, 80));
+		assertTrue(accepted.await());
+
+		//a small send buffer, so that the writers wait for room in the middle of their buffers
+		client.setSendBufferSize(2 * TCP.MAX_DATA_LENGTH);
+		client.setBlockingWrite(true);
+		final int n = 5 * TCP.MAX_DATA_LENGTH;
+		Thread[] writers = new Thread[3];
+		for (int i = 0; i < writers.length; i++){
+			final byte b = (byte) ('a' + i);
+			writers[i] = new Thread(new Runnable() {
+				public void run() {
+					byte[] header = new byte[n];
+					byte[] body = new byte[n];
+					Arrays.fill(header, b);
+					Arrays.fill(body, b);
+					client.write(new ByteBuffer[] {ByteBuffer.wrap(header), ByteBuffer.wrap(body)});
+				}
+			});
+			writers[i].start();
+		}
+
+		byte[] received = new byte[writers.length * 2 * n];
+		int length = 0;
+		while (length < received.length){
+			int r = server.read(received, length, received.length - length);
+			assertTrue(r > 0);
+			length += r;
+		}
+		for (Thread t : writers){
+			t.join();
+		}
+		//each writer's bytes are in one piece
+		for (int i = 0; i < received.length; i += 2 * n){
+			for (int j = i; j < i + 2 * n; j++){
+				assertEquals(received[i], received[j]);
+			}
+		}
+		client.close();
+		server.close();
+		serverStack.close();
+		clientStack.close();
+	}
+}
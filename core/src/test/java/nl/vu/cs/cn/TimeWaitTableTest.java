@@ -0,0 +1,113 @@
+package nl.vu.cs.cn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.TCPSegment.TCPSegmentType;
+
+/**
+ * Tests the table of connections in TIME_WAIT, with its timers advanced by hand.
+ */
+public class TimeWaitTableTest {
+
+	private static final IpAddress LOCAL = IpAddress.getAddress("192.168.0.1");
+	private static final IpAddress REMOTE = IpAddress.getAddress("192.168.0.2");
+	private static final long FIN_SEQNR = 7000;
+
+	private TimingWheel timers;
+	private TimeWaitTable table;
+	private TCPControlBlock tcb;
+	private long key;
+
+	@Before
+	public void setUp(){
+		timers = new TimingWheel("test", true);
+		table = new TimeWaitTable(timers);
+
+		tcb = new TCPControlBlock();
+		tcb.setLocalSocketAddress(new SocketAddress(LOCAL, 80));
+		tcb.setRemoteSocketAddress(new SocketAddress(REMOTE, 12345));
+		tcb.generateSeqnr();
+		//the remote side's FIN, after which we expect FIN_SEQNR + 1
+		tcb.initClient(new TCPSegment(12345, 80, FIN_SEQNR, 0, TCPSegmentType.FIN, TCPSegment.NO_DATA));
+		key = TCP.connectionKey(80, REMOTE.getAddress(), 12345);
+	}
+
+	private TCPSegment fin(long seq_nr){
+		TCPSegment seg = new TCPSegment(12345, 80, seq_nr, tcb.getSeqnr(), TCPSegmentType.FINACK, TCPSegment.NO_DATA);
+		seg.source_ip = REMOTE;
+		return seg;
+	}
+
+	@Test
+	public void acknowledgesRetransmittedFin(){
+		table.add(tcb);
+		assertTrue(table.contains(key));
+		assertEquals(1, table.size());
+
+		TCPSegment ack = table.handleSegment(key, fin(FIN_SEQNR));
+		assertNotNull(ack);
+		assertEquals(TCPSegmentType.ACK, ack.getSegmentType());
+		assertEquals(80, ack.src_port);
+		assertEquals(12345, ack.dest_port);
+		assertEquals(tcb.getSeqnr(), ack.seq_nr);
+		assertEquals(FIN_SEQNR + 1, ack.ack_nr);
+	}
+
+	@Test
+	public void ignoresOtherSegments(){
+		table.add(tcb);
+		assertNull(table.handleSegment(key, fin(FIN_SEQNR + 1)));
+		TCPSegment data = new TCPSegment(12345, 80, FIN_SEQNR, 0, TCPSegmentType.DATA, new byte[10]);
+		assertNull(table.handleSegment(key, data));
+		assertTrue(table.contains(key));
+	}
+
+	@Test
+	public void expiresAfterTwiceMsl(){
+		table.add(tcb);
+		int ticks = 2 * TCP.MSL * 1000 / timers.getTickMillis();
+		for (int i = 0; i < ticks - 1; i++){
+			timers.advance();
+		}
+		assertTrue(table.contains(key));
+		timers.advance();
+		assertFalse(table.contains(key));
+		assertEquals(0, table.size());
+		assertEquals(0, timers.size());
+		assertNull(table.handleSegment(key, fin(FIN_SEQNR)));
+	}
+
+	@Test
+	public void removeCancelsTimer(){
+		table.add(tcb);
+		assertEquals(1, timers.size());
+		table.remove(key);
+		assertFalse(table.contains(key));
+		assertEquals(0, timers.size());
+	}
+
+	@Test
+	public void addingAgainRestartsTimer(){
+		table.add(tcb);
+		timers.advance();
+		table.add(tcb);
+		assertEquals(1, table.size());
+		assertEquals(1, timers.size());
+		int ticks = 2 * TCP.MSL * 1000 / timers.getTickMillis();
+		for (int i = 0; i < ticks - 1; i++){
+			timers.advance();
+		}
+		//the first timer would have expired by now
+		assertTrue(table.contains(key));
+		timers.advance();
+		assertFalse(table.contains(key));
+	}
+}
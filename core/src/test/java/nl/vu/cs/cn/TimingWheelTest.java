@@ -0,0 +1,129 @@
+package nl.vu.cs.cn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the timing wheel, advanced by hand.
+ */
+public class TimingWheelTest {
+
+	private static final int TICK = 10;
+	private static final int SIZE = 8;
+
+	private TimingWheel wheel;
+	private List<String> fired;
+
+	@Before
+	public void setUp(){
+		wheel = new TimingWheel("test", TICK, SIZE, true);
+		fired = new ArrayList<String>();
+	}
+
+	private Runnable task(final String name){
+		return new Runnable() {
+			public void run() {
+				fired.add(name);
+			}
+		};
+	}
+
+	private void advance(int ticks){
+		for (int i = 0; i < ticks; i++){
+			wheel.advance();
+		}
+	}
+
+	@Test
+	public void expiresAfterDelayRoundedUp(){
+		wheel.schedule(task("a"), 25);
+		advance(2);
+		assertTrue(fired.isEmpty());
+		advance(1);
+		assertEquals(1, fired.size());
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void zeroDelayExpiresOnNextTick(){
+		wheel.schedule(task("a"), 0);
+		assertTrue(fired.isEmpty());
+		advance(1);
+		assertEquals(1, fired.size());
+	}
+
+	@Test
+	public void waitsForFullRevolutions(){
+		wheel.schedule(task("a"), (3 * SIZE + 2) * TICK);
+		advance(3 * SIZE + 1);
+		assertTrue(fired.isEmpty());
+		assertEquals(1, wheel.size());
+		advance(1);
+		assertEquals(1, fired.size());
+	}
+
+	@Test
+	public void runsTimersInDelayOrder(){
+		wheel.schedule(task("late"), 5 * TICK);
+		wheel.schedule(task("early"), TICK);
+		wheel.schedule(task("middle"), 3 * TICK);
+		advance(5);
+		assertEquals(3, fired.size());
+		assertEquals("early", fired.get(0));
+		assertEquals("middle", fired.get(1));
+		assertEquals("late", fired.get(2));
+	}
+
+	@Test
+	public void cancelledTimerDoesNotRun(){
+		TimingWheel.Timer t = wheel.schedule(task("a"), 2 * TICK);
+		wheel.schedule(task("b"), 2 * TICK);
+		assertTrue(wheel.cancel(t));
+		assertFalse(wheel.cancel(t));
+		assertEquals(1, wheel.size());
+		advance(2);
+		assertEquals(1, fired.size());
+		assertEquals("b", fired.get(0));
+		assertFalse(wheel.cancel(null));
+	}
+
+	@Test
+	public void expiredTimerCannotBeCancelled(){
+		TimingWheel.Timer t = wheel.schedule(task("a"), TICK);
+		advance(1);
+		assertFalse(wheel.cancel(t));
+	}
+
+	@Test
+	public void timerMaySchedule(){
+		wheel.schedule(new Runnable() {
+			public void run() {
+				wheel.schedule(task("again"), TICK);
+			}
+		}, TICK);
+		advance(1);
+		assertEquals(1, wheel.size());
+		advance(1);
+		assertEquals(1, fired.size());
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void failingTimerDoesNotStopOthers(){
+		wheel.schedule(new Runnable() {
+			public void run() {
+				throw new IllegalStateException("test");
+			}
+		}, TICK);
+		wheel.schedule(task("a"), TICK);
+		advance(1);
+		assertEquals(1, fired.size());
+	}
+}
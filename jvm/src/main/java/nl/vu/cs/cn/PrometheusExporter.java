@@ -0,0 +1,302 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics of all TCP stacks of the process, and of their sockets, in the Prometheus text exposition format
+ * at http://127.0.0.1:&lt;port&gt;/metrics. Uses the HTTP server of the JDK, so it is not available on Android.
+ * <br/>
+ * The metrics are only read when they are scraped: the counters are read without locking, and the sockets are listed
+ * from the concurrent maps of the stacks. The buffer gauges do take the locks of the buffer pool and of the socket
+ * buffers, for as long as it takes to read a length, so a scrape may hold up the packet path as briefly as a socket
+ * call does.
+ * <br/>
+ * Stack metrics are named tcp_stack_*, with a stack label (the IP address). Socket metrics are named tcp_socket_*,
+ * with the stack, local_port, remote and state labels, and only cover the sockets which are listening or have a
+ * connection at the time of the scrape. Sockets with the same labels, such as the listeners on one port, are summed
+ * into one series, since Prometheus rejects duplicate samples. The RTT histogram is only rendered per stack, to keep
+ * the number of series down.
+ */
+public class PrometheusExporter {
+
+	/**the default port to listen on*/
+	public static final int DEFAULT_PORT = 9464;
+
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/**
+	 * A counter of TCPMetrics.
+	 */
+	private interface CounterValue {
+		long get(TCPMetrics m);
+	}
+
+	/**
+	 * A metric of a socket.
+	 */
+	private interface SocketValue {
+		long get(TCP.Socket sock);
+	}
+
+	private final HttpServer server;
+
+	/**
+	 * creates an exporter listening on localhost at the given port. Call start() to serve.
+	 * @param port the port, or 0 for any free port
+	 * @throws IOException if the port cannot be bound
+	 */
+	public PrometheusExporter(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = render().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+		});
+	}
+
+	public void start(){
+		server.start();
+	}
+
+	/**
+	 * stops serving, waiting at most a second for the scrapes in progress.
+	 */
+	public void stop(){
+		server.stop(1);
+	}
+
+	/**
+	 * @return the port the exporter listens on
+	 */
+	public int getPort(){
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return the metrics of all stacks and their sockets in the Prometheus text format
+	 */
+	static String render(){
+		List<TCP> stacks = TCP.getStacks();
+		List<List<TCP.Socket>> sockets = new ArrayList<List<TCP.Socket>>();
+		for (TCP stack : stacks){
+			sockets.add(stack.getSockets());
+		}
+
+		StringBuilder sb = new StringBuilder();
+		counters(sb, stacks, sockets, "segments_sent_total", "Segments sent, retransmissions included.",
+				new CounterValue() {
+					public long get(TCPMetrics m) { return m.getSegmentsSent(); }
+				});
+		counters(sb, stacks, sockets, "segments_received_total", "Valid segments received.",
+				new CounterValue() {
+					public long get(TCPMetrics m) { return m.getSegmentsReceived(); }
+				});
+		counters(sb, stacks, sockets, "bytes_sent_total", "Data bytes sent, retransmissions included.",
+				new CounterValue() {
+					public long get(TCPMetrics m) { return m.getBytesSent(); }
+				});
+		counters(sb, stacks, sockets, "bytes_received_total", "Data bytes received, duplicates included.",
+				new CounterValue() {
+					public long get(TCPMetrics m) { return m.getBytesReceived(); }
+				});
+		counters(sb, stacks, sockets, "retransmissions_total", "Segments sent again.",
+				new CounterValue() {
+					public long get(TCPMetrics m) { return m.getRetransmissions(); }
+				});
+		counters(sb, stacks, sockets, "timeouts_total", "Expirations of the retransmission timer.",
+				new CounterValue() {
+					public long get(TCPMetrics m) { return m.getTimeouts(); }
+				});
+		counters(sb, stacks, sockets, "retries_expired_total", "Segments given up after the maximum number of tries.",
+				new CounterValue() {
+					public long get(TCPMetrics m) { return m.getRetriesExpired(); }
+				});
+		counters(sb, stacks, sockets, "out_of_order_drops_total", "Segments dropped for unexpected sequence numbers.",
+				new CounterValue() {
+					public long get(TCPMetrics m) { return m.getOutOfOrderDrops(); }
+				});
+		counters(sb, stacks, sockets, "window_drops_total", "Data segments dropped for lack of room in the receive buffer.",
+				new CounterValue() {
+					public long get(TCPMetrics m) { return m.getWindowDrops(); }
+				});
+		counters(sb, stacks, sockets, "predicted_segments_total", "Segments handled by the header prediction fast path.",
+				new CounterValue() {
+					public long get(TCPMetrics m) { return m.getPredictedSegments(); }
+				});
+		counters(sb, stacks, sockets, "coalesced_segments_total", "Received segments merged into the segment before them.",
+				new CounterValue() {
+					public long get(TCPMetrics m) { return m.getCoalescedSegments(); }
+				});
+		counters(sb, stacks, null, "checksum_failures_total", "Segments dropped for a wrong checksum.",
+				new CounterValue() {
+					public long get(TCPMetrics m) { return m.getChecksumFailures(); }
+				});
+		counters(sb, stacks, null, "invalid_segments_total", "Packets dropped which are no valid TCP segments.",
+				new CounterValue() {
+					public long get(TCPMetrics m) { return m.getInvalidSegments(); }
+				});
+		counters(sb, stacks, null, "unmatched_segments_total", "Segments dropped which belong to no socket.",
+				new CounterValue() {
+					public long get(TCPMetrics m) { return m.getUnmatchedSegments(); }
+				});
+		stateTransitions(sb, stacks);
+		rtt(sb, stacks);
+		gauges(sb, stacks, sockets);
+		return sb.toString();
+	}
+
+	private static void header(StringBuilder sb, String name, String help, String type){
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void stackLabels(StringBuilder sb, TCP stack){
+		sb.append("stack=\"").append(escape(stack.getIPAddress())).append('"');
+	}
+
+	private static void socketLabels(StringBuilder sb, TCP stack, TCP.Socket sock){
+		stackLabels(sb, stack);
+		SocketAddress remote = sock.getRemoteSocketAddress();
+		sb.append(",local_port=\"").append(sock.getLocalPort()).append("\",remote=\"");
+		if (remote != null){
+			sb.append(escape(remote.getIp().toString())).append(':').append(remote.getPort());
+		}
+		sb.append("\",state=\"").append(sock.getStateName()).append('"');
+	}
+
+	/**
+	 * renders a counter for all stacks and, if sockets is not null, for all sockets
+	 */
+	private static void counters(StringBuilder sb, List<TCP> stacks, List<List<TCP.Socket>> sockets, String name,
+			String help, final CounterValue value){
+		header(sb, "tcp_stack_" + name, help, "counter");
+		for (TCP stack : stacks){
+			sb.append("tcp_stack_").append(name).append('{');
+			stackLabels(sb, stack);
+			sb.append("} ").append(value.get(stack.getMetrics())).append('\n');
+		}
+		if (sockets == null){
+			return;
+		}
+		header(sb, "tcp_socket_" + name, help, "counter");
+		socketSamples(sb, stacks, sockets, "tcp_socket_" + name, new SocketValue() {
+			public long get(TCP.Socket sock) { return value.get(sock.getMetrics()); }
+		});
+	}
+
+	/**
+	 * renders a metric for all sockets, summing those with the same labels
+	 */
+	private static void socketSamples(StringBuilder sb, List<TCP> stacks, List<List<TCP.Socket>> sockets, String name,
+			SocketValue value){
+		Map<String, Long> series = new LinkedHashMap<String, Long>();
+		StringBuilder labels = new StringBuilder();
+		for (int i = 0; i < stacks.size(); i++){
+			for (TCP.Socket sock : sockets.get(i)){
+				labels.setLength(0);
+				socketLabels(labels, stacks.get(i), sock);
+				String key = labels.toString();
+				Long sum = series.get(key);
+				series.put(key, (sum == null ? 0 : sum) + value.get(sock));
+			}
+		}
+		for (Map.Entry<String, Long> e : series.entrySet()){
+			sb.append(name).append('{').append(e.getKey()).append("} ").append(e.getValue()).append('\n');
+		}
+	}
+
+	private static void stateTransitions(StringBuilder sb, List<TCP> stacks){
+		header(sb, "tcp_stack_state_transitions_total", "Connections entering a state.", "counter");
+		for (TCP stack : stacks){
+			for (Map.Entry<String, Long> e : stack.getMetrics().getStateTransitions().entrySet()){
+				sb.append("tcp_stack_state_transitions_total{");
+				stackLabels(sb, stack);
+				sb.append(",state=\"").append(e.getKey()).append("\"} ").append(e.getValue()).append('\n');
+			}
+		}
+	}
+
+	private static void rtt(StringBuilder sb, List<TCP> stacks){
+		header(sb, "tcp_stack_rtt_seconds", "Round trip times of segments which were not retransmitted.", "histogram");
+		for (TCP stack : stacks){
+			TCPMetrics.Histogram h = stack.getMetrics().getRttHistogram();
+			long cumulative = 0;
+			for (int i = 0; i < TCPMetrics.Histogram.BUCKETS; i++){
+				cumulative += h.getBucket(i);
+				double bound = h.getUpperBoundMicros(i);
+				sb.append("tcp_stack_rtt_seconds_bucket{");
+				stackLabels(sb, stack);
+				sb.append(",le=\"").append(Double.isInfinite(bound) ? "+Inf" : Double.toString(bound / 1e6));
+				sb.append("\"} ").append(cumulative).append('\n');
+			}
+			sb.append("tcp_stack_rtt_seconds_sum{");
+			stackLabels(sb, stack);
+			sb.append("} ").append(h.getSumNanos() / 1e9).append('\n');
+			sb.append("tcp_stack_rtt_seconds_count{");
+			stackLabels(sb, stack);
+			sb.append("} ").append(cumulative).append('\n');
+		}
+	}
+
+	private static void gauges(StringBuilder sb, List<TCP> stacks, List<List<TCP.Socket>> sockets){
+		header(sb, "tcp_stack_open_connections", "Connections which are (half) open or being opened.", "gauge");
+		for (TCP stack : stacks){
+			sb.append("tcp_stack_open_connections{");
+			stackLabels(sb, stack);
+			sb.append("} ").append(stack.getOpenConnections()).append('\n');
+		}
+		header(sb, "tcp_stack_time_wait_connections", "Connections in the TIME_WAIT state.", "gauge");
+		for (TCP stack : stacks){
+			sb.append("tcp_stack_time_wait_connections{");
+			stackLabels(sb, stack);
+			sb.append("} ").append(stack.getTimeWaitConnections()).append('\n');
+		}
+		header(sb, "tcp_stack_buffer_bytes", "Memory of the buffer pool in use by send and receive buffers.", "gauge");
+		for (TCP stack : stacks){
+			sb.append("tcp_stack_buffer_bytes{");
+			stackLabels(sb, stack);
+			sb.append("} ").append(stack.getBufferPool().getUsedBytes()).append('\n');
+		}
+		header(sb, "tcp_stack_buffer_direct_bytes", "Memory of the buffer pool allocated outside of the heap.", "gauge");
+		for (TCP stack : stacks){
+			sb.append("tcp_stack_buffer_direct_bytes{");
+			stackLabels(sb, stack);
+			sb.append("} ").append(stack.getBufferPool().getDirectBytes()).append('\n');
+		}
+		header(sb, "tcp_socket_receive_buffer_bytes", "Bytes in the receive buffer, not read by the application yet.",
+				"gauge");
+		socketSamples(sb, stacks, sockets, "tcp_socket_receive_buffer_bytes", new SocketValue() {
+			public long get(TCP.Socket sock) { return sock.getReceiveBufferUsed(); }
+		});
+		header(sb, "tcp_socket_send_buffer_bytes", "Bytes in the send buffer, not sent yet.", "gauge");
+		socketSamples(sb, stacks, sockets, "tcp_socket_send_buffer_bytes", new SocketValue() {
+			public long get(TCP.Socket sock) { return sock.getSendBufferUsed(); }
+		});
+	}
+
+	/**
+	 * escapes a label value
+	 */
+	private static String escape(String s){
+		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
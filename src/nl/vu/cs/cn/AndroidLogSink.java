@@ -0,0 +1,20 @@
+package nl.vu.cs.cn;
+
+/**
+ * Passes the log messages of the stack on to the Android logger, so that they show up in logcat.
+ */
+public class AndroidLogSink implements Log.Sink {
+
+	public boolean isLoggable(String tag, int level){
+		//like android.util.Log.d() and friends, which log regardless of the level set for the tag
+		return true;
+	}
+
+	public void println(int level, String tag, String msg, Throwable tr){
+		if (tr != null){
+			msg = msg + '\n' + android.util.Log.getStackTraceString(tr);
+		}
+		//the levels of Log are those of android.util.Log
+		android.util.Log.println(level, tag, msg);
+	}
+}
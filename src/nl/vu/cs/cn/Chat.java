@@ -1,6 +1,8 @@
 package nl.vu.cs.cn;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import nl.vu.cs.cn.IP.IpAddress;
 import nl.vu.cs.cn.TCP.Socket;
@@ -22,6 +24,7 @@ public class Chat extends Activity{
 	EditText etTop, etBottom;
 	
 	int maxlen = 50;	//max length of a message
+	ExecutorService sender = Executors.newSingleThreadExecutor();	//writes the messages, so the UI never blocks
 
 	//Server's variables
 	Thread serverThread;
@@ -65,7 +68,7 @@ public class Chat extends Activity{
 				byte[] tmp = message.getBytes();
 				
 				// Send the message
-				serverSocket.write(tmp, 0, tmp.length);
+				send(serverSocket, tmp);
 				
 				// Clear the EditText view
 				etTop.setText("");
@@ -92,7 +95,7 @@ public class Chat extends Activity{
 				byte[] tmp = message.getBytes();
 				
 				// Send the message
-				clientSocket.write(tmp, 0, tmp.length);
+				send(clientSocket, tmp);
 				
 				// Clear the EditText view
 				etBottom.setText("");
@@ -101,6 +104,21 @@ public class Chat extends Activity{
 	}
 
 
+	/**
+	 * sends a message with the sender thread, which waits for room in the send buffer. Messages are sent in the order
+	 * of the clicks, and completely unless the connection breaks.
+	 */
+	void send(final Socket socket, final byte[] message){
+		sender.execute(new Runnable() {
+			public void run() {
+				if (socket.write(message, 0, message.length, 0) < message.length){
+					Log.e("send()", "message not sent completely: the connection is closed");
+				}
+			}
+		});
+	}
+
+
 	/**
 	 * When the application starts. Sets the layout and call initVariables() to initialize the views.
 	 * Starts the server and client threads.
@@ -108,6 +126,7 @@ public class Chat extends Activity{
 	protected void onCreate(Bundle savedInstanceState) {
 
 		super.onCreate(savedInstanceState);
+		nl.vu.cs.cn.Log.setSink(new AndroidLogSink());	// Log the stack to logcat
 		setContentView(R.layout.main);
 		initVariables();		// Initialize the views objects
 
@@ -207,6 +226,7 @@ public class Chat extends Activity{
 		super.onPause();
 		serverSocket.close();
 		clientSocket.close();
+		sender.shutdown();		// a write still waiting ends now that the sockets are closed
 		finish();
 	}
 